@@ -0,0 +1,23 @@
+import com.google.inject.AbstractModule;
+
+import services.persistence.PayloadJournal;
+import services.persistence.PayloadJournalProvider;
+import services.storage.PayloadStorage;
+import services.storage.PayloadStorageProvider;
+
+/**
+ *******************************************************************************
+ *Guice bindings loaded by Play at startup 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public class Module extends AbstractModule {
+
+	@Override
+	protected void configure() {
+		bind(PayloadStorage.class).toProvider(PayloadStorageProvider.class).asEagerSingleton();
+		bind(PayloadJournal.class).toProvider(PayloadJournalProvider.class).asEagerSingleton();
+	}
+}
@@ -0,0 +1,26 @@
+package controllers;
+
+import javax.inject.Inject;
+
+import com.typesafe.config.Config;
+
+import play.http.HttpErrorHandler;
+import play.mvc.BodyParser;
+
+/**
+ *******************************************************************************
+ *Json body parser of POST /v1/diff/batch and /v1/baseline/:name/compare, 
+ *buffering up to diff.batch.maxBodySize bytes instead of the default Json 
+ *limit, since their bodies carry many inputs 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public class BatchBodyParser extends BodyParser.Json {
+
+	@Inject
+	public BatchBodyParser(Config config, HttpErrorHandler errorHandler){
+		super(config.getBytes("diff.batch.maxBodySize"), errorHandler);
+	}
+}
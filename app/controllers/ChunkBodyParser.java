@@ -0,0 +1,24 @@
+package controllers;
+
+import javax.inject.Inject;
+
+import play.http.HttpErrorHandler;
+import play.mvc.BodyParser;
+import services.UploadStore;
+
+/**
+ *******************************************************************************
+ *Raw body parser of PUT /v1/uploads/:upload/:chunk, buffering one chunk of 
+ *at most the chunk size of the uploads, whatever its content type 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public class ChunkBodyParser extends BodyParser.Bytes {
+
+	@Inject
+	public ChunkBodyParser(UploadStore uploads, HttpErrorHandler errorHandler){
+		super(uploads.chunkSize(), errorHandler);
+	}
+}
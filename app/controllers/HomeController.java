@@ -1,13 +1,61 @@
 package controllers;
-import java.util.Hashtable;
-import java.util.LinkedList;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import javax.inject.Inject;
 import org.apache.commons.codec.binary.Base64;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.typesafe.config.Config;
+import akka.NotUsed;
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import scala.concurrent.duration.FiniteDuration;
+import play.api.http.MediaRange;
+import play.http.HttpEntity;
+import play.libs.EventSource;
 import play.libs.Json;
+import play.mvc.BodyParser;
 import play.mvc.Controller;
+import play.mvc.Http;
 import play.mvc.Result;
+import services.Base64Codec;
+import services.BaselineStore;
+import services.BlockDelta;
+import services.BlockDiff;
+import services.DiffEvents;
+import services.DiffExecutor;
+import services.DiffPage;
+import services.DiffPrecompute;
+import services.DiffRanges;
+import services.DiffResult;
+import services.DiffResultCache;
+import services.DiffResultWriter;
+import services.DiffStore;
+import services.DiffSummary;
 import services.DiffTools;
+import services.EditScript;
+import services.MyersDiff;
+import services.ParallelDiff;
+import services.Payload;
+import services.Side;
+import services.UploadStore;
+import services.storage.StorageBlock;
 
 /**
  *******************************************************************************
@@ -21,10 +69,50 @@ import services.DiffTools;
  */
 public class HomeController extends Controller {
 
-	private final Hashtable<String, String> right =  new Hashtable<String, String>();
-	private final Hashtable<String, String> left =  new Hashtable<String, String>();
+	private static final String TOTAL_HEADER = "X-Total-Count";
+	private static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+	private static final String RAW = "application/octet-stream";
+	private static final int RAW_CHUNK = 64 * 1024;
+
+	private final DiffStore diffStore;
 	private DiffTools diffTools = new DiffTools();
+	private final ParallelDiff parallelDiff;
+	private final DiffResultCache diffCache;
+	private final DiffPrecompute precompute;
+	private final DiffEvents events;
+	private final DiffResultWriter diffWriter;
+	private final MyersDiff myersDiff;
+	private final BlockDiff blockDiff;
+	private final DiffExecutor diffExecutor;
+	private final BaselineStore baselines;
+	private final UploadStore uploads;
+	private final Materializer materializer;
+	private final int batchMaxItems;
+	private final int batchParallelism;
+	private final int eventsMaxIds;
+	private final FiniteDuration eventsKeepAlive;
 
+	@Inject
+	public HomeController(DiffStore diffStore, ParallelDiff parallelDiff, DiffResultCache diffCache, DiffResultWriter diffWriter,
+			DiffPrecompute precompute, DiffEvents events, MyersDiff myersDiff, BlockDiff blockDiff, DiffExecutor diffExecutor, BaselineStore baselines,
+			UploadStore uploads, Materializer materializer, Config config) {
+		this.diffStore = diffStore;
+		this.parallelDiff = parallelDiff;
+		this.diffCache = diffCache;
+		this.precompute = precompute;
+		this.events = events;
+		this.diffWriter = diffWriter;
+		this.myersDiff = myersDiff;
+		this.blockDiff = blockDiff;
+		this.diffExecutor = diffExecutor;
+		this.baselines = baselines;
+		this.uploads = uploads;
+		this.materializer = materializer;
+		this.batchMaxItems = config.getInt("diff.batch.maxItems");
+		this.batchParallelism = Math.max(1, config.getInt("diff.batch.parallelism"));
+		this.eventsMaxIds = config.getInt("diff.events.maxIds");
+		this.eventsKeepAlive = FiniteDuration.create(config.getDuration("diff.events.keepAlive", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS);
+	}
 
 	/**
 	 * simple notification to check if the application is ready
@@ -34,133 +122,217 @@ public class HomeController extends Controller {
 	}
 
 	/**
-	 * Create right input - route: /v1/diff/:id/right  
-	 * @param id - unique :id used to localized the input 
+	 * Diff result cache counters - route: /v1/stats/cache  
+	 * @return - ok with hits, misses, evictions, entries and bytes of the cache, 
+	 *           with the results computed, the changes coalesced into a scheduled computation, 
+	 *           the requests that waited for a computation in progress and the ids waiting for one
+	 */
+	public Result cacheStats() {
+		ObjectNode result = Json.newObject();
+		result.put("hits", diffCache.hits());
+		result.put("misses", diffCache.misses());
+		result.put("evictions", diffCache.evictions());
+		result.put("entries", diffCache.size());
+		result.put("bytes", diffCache.weight());
+		result.put("computed", precompute.computed());
+		result.put("coalesced", precompute.coalesced());
+		result.put("joined", precompute.joined());
+		result.put("pending", precompute.pending());
+		return ok(result);
+	}
+
+	/**
+	 * Store many inputs at once - route: /v1/diff/batch  
+	 * body: {"items": [{"id": ..., "left": base64, "right": base64}, ...], "diff": true|false} 
 	 * @return - bad request if malformed
-	 * @return - bad request if missing expected input parameter
-	 * @return - conflict if the input was already created
-	 * @return - bad request the if input is not base64
-	 * @return - created if the input met the requirements
+	 * @return - bad request if missing the items or with more than diff.batch.maxItems of them
+	 * @return - ok with an array streamed as the items are done, in the order they were sent, 
+	 *           {"id": ..., "result": "stored"} for each stored item (created or updated), 
+	 *           plus the diff result of the id ("diff": {...}) if asked for, 
+	 *           or {"id": ..., "error": ...} for each item that could not be stored 
 	 */
-	public Result createRight(String id) {
+	@BodyParser.Of(BatchBodyParser.class)
+	public Result batch() {
 
 		JsonNode json = request().body().asJson();
 
 		if(json == null) {
 			return badRequest("Expecting Json data");
-		} else {
-			String content = json.findPath("input").textValue();
-			if(content == null) {
-				return badRequest("Missing parameter [input]");
-			} else{ 
-				//verify if the id was already created
-				try {
-					right.get(id).isEmpty();
-					ObjectNode result = Json.newObject();
-					result.put("input", content);
-					result.put("result", "id already created, update instead");
-					return status(409, result);
-				} catch (Exception e) {
-					if(diffTools.checkBase64(content)){
-						right.put(id,content);
-						ObjectNode result = Json.newObject();
-						result.put("id", id);
-						result.put("content", content);
-						result.put("result", "created");
-						return created(result);
-					} else{
-						return badRequest("Input is not Base64");
-					}
-				}
-			}
 		}
+		JsonNode items = json.get("items");
+		if(items == null || !items.isArray()) {
+			return badRequest("Missing parameter [items]");
+		}
+		if(items.size() > batchMaxItems) {
+			return badRequest("Too many items, at most " + batchMaxItems);
+		}
+		boolean withDiff = json.path("diff").asBoolean(false);
+
+		//items run in parallel on the diff executor, each one written as soon as it and the ones before it are done 
+		List<JsonNode> list = new ArrayList<JsonNode>(items.size());
+		items.forEach(list::add);
+		Source<ByteString, NotUsed> results = Source.from(list)
+				.mapAsync(batchParallelism, item -> batchItem(item, withDiff))
+				.intersperse(ByteString.fromString("["), ByteString.fromString(","), ByteString.fromString("]"));
+		return ok().chunked(results).as(Http.MimeTypes.JSON);
 	}
 
 	/**
-	 * Create left input - route: /v1/diff/:id/left  
-	 * @param id - unique :id used to localized the input 
+	 * Create or replace a named baseline - route: /v1/baseline/:name  
+	 * @param name - name of the baseline 
 	 * @return - bad request if malformed
 	 * @return - bad request if missing expected input parameter
-	 * @return - conflict if the input was already created
 	 * @return - bad request the if input is not base64
-	 * @return - created if all requirements were met
+	 * @return - created if the baseline is new, ok if it replaced the previous one
+	 * @return - request entity too large if the body is above diff.input.maxBodySize
+	 * @return - body: {"input": base64}, or the raw bytes sent as application/octet-stream
+	 * @return - service unavailable (with Retry-After) if too many requests are waiting
 	 */
-	public Result createLeft(String id) {
+	@BodyParser.Of(InputBodyParser.class)
+	public CompletionStage<Result> putBaseline(String name) {
+		return async(() -> storeBaseline(name));
+	}
+
+	/**
+	 * Drop a named baseline - route: /v1/baseline/:name  
+	 * @param name - name of the baseline 
+	 * @return - ok if the baseline was dropped
+	 * @return - not found if there is no baseline with the name
+	 */
+	public Result deleteBaseline(String name) {
+		ObjectNode result = Json.newObject();
+		result.put("name", name);
+		if(!baselines.remove(name)) {
+			result.put("result", "baseline not found");
+			return notFound(result);
+		}
+		result.put("result", "deleted");
+		return ok(result);
+	}
+
+	/**
+	 * Compare a baseline with many candidates - route: /v1/baseline/:name/compare  
+	 * body: {"ids": [...], "side": "left"|"right", "candidates": [base64, ...]}, 
+	 * ids are compared through their input of the side (right if not given) 
+	 * @param name - name of the baseline 
+	 * @return - bad request if malformed
+	 * @return - bad request if missing the ids and candidates, with more than diff.batch.maxItems of them or an invalid side
+	 * @return - not found if there is no baseline with the name
+	 * @return - ok with one summary per id and candidate, in the order they were sent, 
+	 *           {"id": ...} or {"candidate": index} with the result, equal, sizeDifference, ranges and bytes differing, 
+	 *           or the error of the candidate (missing input, not base64, too many requests) 
+	 */
+	@BodyParser.Of(BatchBodyParser.class)
+	public CompletionStage<Result> compareBaseline(String name) {
 
 		JsonNode json = request().body().asJson();
 
 		if(json == null) {
-			return badRequest("Expecting Json data");
-		} else {
-			String content = json.findPath("input").textValue();
-			if(content == null) {
-				return badRequest("Missing parameter [input]");
-			} else{ 
-				//verify if the id was already created
-				try {
-					left.get(id).isEmpty();
-					ObjectNode result = Json.newObject();
-					result.put("input", content);
-					result.put("result", "id already created, update instead");
-					return status(409, result);
-				} catch (Exception e) {
-					if(diffTools.checkBase64(content)){
-						left.put(id,content);
+			return CompletableFuture.completedFuture(badRequest("Expecting Json data"));
+		}
+		JsonNode ids = json.path("ids");
+		JsonNode candidates = json.path("candidates");
+		if(!ids.isArray() && !candidates.isArray()) {
+			return CompletableFuture.completedFuture(badRequest("Missing parameter [ids] or [candidates]"));
+		}
+		if(ids.size() + candidates.size() > batchMaxItems) {
+			return CompletableFuture.completedFuture(badRequest("Too many items, at most " + batchMaxItems));
+		}
+		String sideName = json.path("side").asText(Side.RIGHT.path());
+		if(!Side.LEFT.path().equals(sideName) && !Side.RIGHT.path().equals(sideName)) {
+			return CompletableFuture.completedFuture(badRequest("Invalid parameter [side]"));
+		}
+		Side side = Side.LEFT.path().equals(sideName) ? Side.LEFT : Side.RIGHT;
+
+		//one retain for the whole fan out, every candidate reads the same buffer 
+		Payload baseline = baselines.acquire(name);
+		if(baseline == null) {
+			ObjectNode result = Json.newObject();
+			result.put("name", name);
+			result.put("result", "baseline not found");
+			return CompletableFuture.completedFuture(notFound(result));
+		}
+
+		List<ObjectNode> entries = new ArrayList<ObjectNode>(ids.size() + candidates.size());
+		for(JsonNode id : ids) {
+			entries.add(Json.newObject().put("id", id.asText()));
+		}
+		for(int i = 0; i < candidates.size(); i++) {
+			entries.add(Json.newObject().put("candidate", i));
+		}
+
+		//candidates run in parallel on the diff executor, at most diff.batch.parallelism at a time 
+		CompletionStage<Result> response;
+		try {
+			response = Source.from(entries)
+					.mapAsync(batchParallelism, entry -> fanOut(entry, () -> entry.has("id")
+							? compareId(entry, baseline, side)
+							: compareCandidate(entry, baseline, candidates.get(entry.get("candidate").asInt()).textValue())))
+					.runWith(Sink.seq(), materializer)
+					.thenApply(summaries -> {
 						ObjectNode result = Json.newObject();
-						result.put("id", id);
-						result.put("content", content);
-						result.put("result", "created");
-						return created(result);
-					} else{
-						return badRequest("Input is not Base64");
-					}
-				}
-			}
+						result.put("baseline", name);
+						result.put("length", baseline.length());
+						result.putArray("results").addAll(summaries);
+						return ok(result);
+					});
+		} catch(RuntimeException e) {
+			baseline.release();
+			throw e;
 		}
+		return response.whenComplete((result, error) -> baseline.release());
 	}
 
 	/**
-	 * Update left input - route: /v1/diff/:id/left  
+	 * Create right input - route: /v1/diff/:id/right  
 	 * @param id - unique :id used to localized the input 
 	 * @return - bad request if malformed
 	 * @return - bad request if missing expected input parameter
-	 * @return - not found if the input was not created yet
+	 * @return - conflict if the input was already created
 	 * @return - bad request the if input is not base64
-	 * @return - ok if all requirements were met
+	 * @return - created if the input met the requirements, with the ETag of its version
+	 * @return - request entity too large if the body is above diff.input.maxBodySize
+	 * @return - body: {"input": base64}, or the raw bytes sent as application/octet-stream
+	 * @return - service unavailable (with Retry-After) if too many requests are waiting
 	 */
-	public Result updateLeft(String id) {
+	@BodyParser.Of(InputBodyParser.class)
+	public CompletionStage<Result> createRight(String id) {
+		return async(() -> create(id, Side.RIGHT));
+	}
 
-		JsonNode json = request().body().asJson();
+	/**
+	 * Create left input - route: /v1/diff/:id/left  
+	 * @param id - unique :id used to localized the input 
+	 * @return - bad request if malformed
+	 * @return - bad request if missing expected input parameter
+	 * @return - conflict if the input was already created
+	 * @return - bad request the if input is not base64
+	 * @return - created if all requirements were met, with the ETag of its version
+	 * @return - request entity too large if the body is above diff.input.maxBodySize
+	 * @return - body: {"input": base64}, or the raw bytes sent as application/octet-stream
+	 * @return - service unavailable (with Retry-After) if too many requests are waiting
+	 */
+	@BodyParser.Of(InputBodyParser.class)
+	public CompletionStage<Result> createLeft(String id) {
+		return async(() -> create(id, Side.LEFT));
+	}
 
-		if(json == null) {
-			return badRequest("Expecting Json data");
-		} else {
-			String content = json.findPath("input").textValue();
-			if(content == null) {
-				return badRequest("Missing parameter [input]");
-			} else{ 
-				//verify if the id was already created
-				try {
-					left.get(id).isEmpty();
-					if(diffTools.checkBase64(content)){
-						left.put(id,content);
-						ObjectNode result = Json.newObject();
-						result.put("id", id);
-						result.put("content", content);
-						result.put("result", "updated");
-						return ok(result);
-					} else{
-						return badRequest("Input is not Base64");
-					}
-				} catch (Exception e) {
-					ObjectNode result = Json.newObject();
-					result.put("id", id);
-					result.put("content", content);
-					result.put("result", "id not found, create instead");
-					return notFound(result);
-				}
-			}
-		}
+	/**
+	 * Update left input - route: /v1/diff/:id/left  
+	 * @param id - unique :id used to localized the input 
+	 * @return - bad request if malformed
+	 * @return - bad request if missing expected input parameter
+	 * @return - not found if the input was not created yet
+	 * @return - bad request the if input is not base64
+	 * @return - precondition failed if If-Match does not list the ETag of the current version
+	 * @return - ok if all requirements were met, with the ETag of the new version
+	 * @return - request entity too large if the body is above diff.input.maxBodySize
+	 * @return - body: {"input": base64}, or the raw bytes sent as application/octet-stream
+	 * @return - service unavailable (with Retry-After) if too many requests are waiting
+	 */
+	@BodyParser.Of(InputBodyParser.class)
+	public CompletionStage<Result> updateLeft(String id) {
+		return async(() -> update(id, Side.LEFT));
 	}
 
 	/**
@@ -170,41 +342,43 @@ public class HomeController extends Controller {
 	 * @return - bad request if missing expected input parameter
 	 * @return - not found if the input was not created yet
 	 * @return - bad request the if input is not base64
-	 * @return - ok if all requirements were met
+	 * @return - precondition failed if If-Match does not list the ETag of the current version
+	 * @return - ok if all requirements were met, with the ETag of the new version
+	 * @return - request entity too large if the body is above diff.input.maxBodySize
+	 * @return - body: {"input": base64}, or the raw bytes sent as application/octet-stream
+	 * @return - service unavailable (with Retry-After) if too many requests are waiting
 	 */
-	public Result updateRight(String id) {
+	@BodyParser.Of(InputBodyParser.class)
+	public CompletionStage<Result> updateRight(String id) {
+		return async(() -> update(id, Side.RIGHT));
+	}
 
-		JsonNode json = request().body().asJson();
+	/**
+	 * Patch left input - route: /v1/diff/:id/left  
+	 * @param id - unique :id used to localized the input 
+	 * @return - bad request if malformed
+	 * @return - bad request if missing expected offset or input parameter
+	 * @return - not found if the input was not created yet
+	 * @return - bad request the if input is not base64 or does not fit at the offset
+	 * @return - ok if all requirements were met, with the ETag of the new version
+	 * @return - service unavailable (with Retry-After) if too many requests are waiting
+	 */
+	public CompletionStage<Result> patchLeft(String id) {
+		return async(() -> patch(id, Side.LEFT));
+	}
 
-		if(json == null) {
-			return badRequest("Expecting Json data");
-		} else {
-			String content = json.findPath("input").textValue();
-			if(content == null) {
-				return badRequest("Missing parameter [input]");
-			} else{ 
-				//verify if the id was already created
-				try {
-					right.get(id).isEmpty();
-					if(diffTools.checkBase64(content)){
-						right.put(id,content);
-						ObjectNode result = Json.newObject();
-						result.put("id", id);
-						result.put("content", content);
-						result.put("result", "updated");
-						return ok(result);
-					} else{
-						return badRequest("Input is not Base64");
-					}
-				} catch (Exception e) {
-					ObjectNode result = Json.newObject();
-					result.put("id", id);
-					result.put("content", content);
-					result.put("result", "id not found, create instead");
-					return notFound(result);
-				}
-			}
-		}
+	/**
+	 * Patch right input - route: /v1/diff/:id/right  
+	 * @param id - unique :id used to localized the input 
+	 * @return - bad request if malformed
+	 * @return - bad request if missing expected offset or input parameter
+	 * @return - not found if the input was not created yet
+	 * @return - bad request the if input is not base64 or does not fit at the offset
+	 * @return - ok if all requirements were met, with the ETag of the new version
+	 * @return - service unavailable (with Retry-After) if too many requests are waiting
+	 */
+	public CompletionStage<Result> patchRight(String id) {
+		return async(() -> patch(id, Side.RIGHT));
 	}
 
 	/**
@@ -212,31 +386,10 @@ public class HomeController extends Controller {
 	 * @param id - unique :id used to localized the input 
 	 * @return - not found if the input was not created yet
 	 * @return - ok if all requirements were met and, the result of the decoded string
+	 * @return - service unavailable (with Retry-After) if too many requests are waiting
 	 */
-	public Result decodeLeftToString(String id) {
-
-		//get left and right inputs
-		String leftEncoded = left.get(id);
-
-		//verify if the input exists
-		try {
-			leftEncoded.isEmpty();	
-		} catch (Exception e) {
-			ObjectNode result = Json.newObject();
-			result.put("result", "missing input");
-			return notFound(result);
-		}
-
-		//decode from base64
-		byte[] leftDecoded = Base64.decodeBase64(leftEncoded);
-		//convert bytes to String
-		String leftDecodedString = new String(leftDecoded);
-		
-		ObjectNode result = Json.newObject();
-		result.put("input", leftEncoded.toString());
-		result.put("result", leftDecodedString);
-		return ok(result);
-
+	public CompletionStage<Result> decodeLeftToString(String id) {
+		return async(() -> decodeToString(id, Side.LEFT));
 	}
 	
 	/**
@@ -244,31 +397,151 @@ public class HomeController extends Controller {
 	 * @param id - unique :id used to localized the input 
 	 * @return - not found if the input was not created yet
 	 * @return - ok if all requirements were met and, the result of the decoded string
+	 * @return - service unavailable (with Retry-After) if too many requests are waiting
 	 */
-	public Result decodeRightToString(String id) {
+	public CompletionStage<Result> decodeRightToString(String id) {
+		return async(() -> decodeToString(id, Side.RIGHT));
+	}
 
-		//get right inputs
-		String rightEncoded = right.get(id);
+	/**
+	 * Download left input bytes - route: /v1/diff/:id/left/raw  
+	 * @param id - unique :id used to localized the input 
+	 * @return - not found if the input was not created yet
+	 * @return - ok with the bytes as application/octet-stream, streamed from the storage, with the ETag of its version
+	 * @return - not modified if If-None-Match lists the ETag of the current version
+	 * @return - partial content with the bytes of a single Range (bytes=first-last, first- or -suffix)
+	 * @return - range not satisfiable if the Range starts after the last byte
+	 */
+	public Result rawLeft(String id) {
+		return raw(id, Side.LEFT);
+	}
 
-		//verify if the input exists
-		try {
-			rightEncoded.isEmpty();	
-		} catch (Exception e) {
-			ObjectNode result = Json.newObject();
-			result.put("result", "missing input");
-			return notFound(result);
+	/**
+	 * Download right input bytes - route: /v1/diff/:id/right/raw  
+	 * @param id - unique :id used to localized the input 
+	 * @return - not found if the input was not created yet
+	 * @return - ok with the bytes as application/octet-stream, streamed from the storage, with the ETag of its version
+	 * @return - not modified if If-None-Match lists the ETag of the current version
+	 * @return - partial content with the bytes of a single Range (bytes=first-last, first- or -suffix)
+	 * @return - range not satisfiable if the Range starts after the last byte
+	 */
+	public Result rawRight(String id) {
+		return raw(id, Side.RIGHT);
+	}
+
+	/**
+	 * Open a resumable upload of the left input - route: /v1/diff/:id/left/uploads  
+	 * body: {"length": bytes} 
+	 * @param id - unique :id used to localized the input 
+	 * @return - bad request if malformed
+	 * @return - bad request if missing the length, or above diff.upload.maxLength
+	 * @return - created with the upload key, chunkSize and number of chunks to be sent
+	 * @return - service unavailable if diff.upload.maxUploads are already open, or their lengths
+	 *           would be above diff.upload.maxReserved
+	 */
+	public Result openUploadLeft(String id) {
+		return openUpload(id, Side.LEFT);
+	}
+
+	/**
+	 * Open a resumable upload of the right input - route: /v1/diff/:id/right/uploads  
+	 * body: {"length": bytes} 
+	 * @param id - unique :id used to localized the input 
+	 * @return - bad request if malformed
+	 * @return - bad request if missing the length, or above diff.upload.maxLength
+	 * @return - created with the upload key, chunkSize and number of chunks to be sent
+	 * @return - service unavailable if diff.upload.maxUploads are already open, or their lengths
+	 *           would be above diff.upload.maxReserved
+	 */
+	public Result openUploadRight(String id) {
+		return openUpload(id, Side.RIGHT);
+	}
+
+	/**
+	 * State of an upload - route: /v1/uploads/:upload  
+	 * @param upload - key of the upload 
+	 * @return - not found if the upload is unknown, committed, aborted or expired
+	 * @return - ok with the chunks still missing
+	 */
+	public Result uploadStatus(String upload) {
+		UploadStore.Upload open = uploads.get(upload);
+		if(open == null) {
+			return uploadNotFound(upload);
 		}
+		return ok(uploadJson(open));
+	}
+
+	/**
+	 * Send one chunk of an upload, chunks can be sent in any order, concurrently and again - route: /v1/uploads/:upload/:chunk  
+	 * body: the raw bytes of the chunk, chunkSize of them (less for the last chunk) 
+	 * @param upload - key of the upload 
+	 * @param chunk - index of the chunk, from zero 
+	 * @return - not found if the upload is unknown, committed, aborted or expired
+	 * @return - bad request if the index is out of range or the chunk does not have the expected size
+	 * @return - ok if the chunk was written
+	 * @return - request entity too large if the body is above the chunk size
+	 * @return - service unavailable (with Retry-After) if too many requests are waiting
+	 */
+	@BodyParser.Of(ChunkBodyParser.class)
+	public CompletionStage<Result> uploadChunk(String upload, int chunk) {
+		return async(() -> writeChunk(upload, chunk));
+	}
+
+	/**
+	 * Store the input of an upload once every chunk was sent - route: /v1/uploads/:upload/commit  
+	 * @param upload - key of the upload 
+	 * @return - not found if the upload is unknown, committed, aborted or expired
+	 * @return - conflict with the chunks still missing
+	 * @return - ok if the input was stored (created or updated)
+	 * @return - service unavailable (with Retry-After) if too many requests are waiting
+	 */
+	public CompletionStage<Result> commitUpload(String upload) {
+		return async(() -> commit(upload));
+	}
 
-		//decode from base64
-		byte[] rightDecoded = Base64.decodeBase64(rightEncoded);
-		//convert bytes to String
-		String rightDecodedString = new String(rightDecoded);
-		
+	/**
+	 * Abort an upload, dropping the chunks sent - route: /v1/uploads/:upload  
+	 * @param upload - key of the upload 
+	 * @return - ok if the upload was aborted
+	 * @return - not found if the upload is unknown, committed, aborted or expired
+	 */
+	public Result abortUpload(String upload) {
+		if(!uploads.remove(upload)) {
+			return uploadNotFound(upload);
+		}
 		ObjectNode result = Json.newObject();
-		result.put("input", rightEncoded.toString());
-		result.put("result", rightDecodedString);
+		result.put("upload", upload);
+		result.put("result", "aborted");
 		return ok(result);
+	}
 
+	/**
+	 * Follow the diff summaries of some ids as Server-Sent Events - route: /v1/diff/events?ids=a,b  
+	 * @return - bad request if missing the ids or with more than diff.events.maxIds of them
+	 * @return - ok with a text/event-stream sending {"id", "leftVersion", "rightVersion", "result", 
+	 *           "sizeDifference", "ranges", "bytes"} each time one of the ids changes (only the latest 
+	 *           summary of an id is sent to a client that reads slower than the ids change), 
+	 *           and a comment every diff.events.keepAlive without changes
+	 */
+	public Result diffEvents() {
+		String[] values = request().queryString().get("ids");
+		LinkedHashSet<String> ids = new LinkedHashSet<String>();
+		for(String value : values == null ? new String[0] : values) {
+			for(String id : value.split(",")) {
+				if(!id.trim().isEmpty()) ids.add(id.trim());
+			}
+		}
+		if(ids.isEmpty()) {
+			return badRequest("Missing parameter [ids]");
+		}
+		if(ids.size() > eventsMaxIds) {
+			return badRequest("Too many ids, at most " + eventsMaxIds);
+		}
+		Source<ByteString, NotUsed> stream = events.subscribe(ids)
+				.map(summary -> EventSource.Event.event(summary))
+				.via(EventSource.flow())
+				.keepAlive(eventsKeepAlive, () -> ByteString.fromString(":\n\n"));
+		return ok().chunked(stream).as(Http.MimeTypes.EVENT_STREAM);
 	}
 
 	/**
@@ -278,56 +551,886 @@ public class HomeController extends Controller {
 	 * @return - ok if the inputs are equal
 	 * @return - ok if the inputs have the same size (showing offset and length of the differences)  
 	 * @return - ok if the inputs are not equal
+	 * @return - the ranges as offsets/lengths arrays if accepting application/vnd.diff+json, 
+	 *           or varint encoded if accepting application/vnd.diff+binary 
+	 * @return - only the ranges inside byteStart/byteEnd, from the range from and at most limit of them, 
+	 *           with the number of ranges in the window (X-Total-Count) and the cursor of the next page (X-Next-Cursor) 
+	 * @return - conflict if the cursor was taken from older versions of the inputs 
+	 * @return - unprocessable entity if the inputs have more than diff.stream.maxRanges ranges of different bytes 
+	 * @return - with mode=edits, ok with the operations turning the left input into the right one 
+	 *           (unprocessable entity if they exceed the configured distance or time) 
+	 * @return - with mode=blocks, ok with the blocks copied from the left input and the bytes inserted 
+	 * @return - the weak ETag of the versions of both inputs, not modified if If-None-Match lists it
+	 * @return - service unavailable (with Retry-After) if too many requests are waiting
 	 */
-	public Result checkDifference(String id) {
+	public CompletionStage<Result> checkDifference(String id) {
 
-		//get left and right inputs
-		String leftEncoded = left.get(id);
-		String rightEncoded = right.get(id);
+		//unchanged inputs are answered at once, read without locking or queueing on the diff executor 
+		DiffStore.Slot slot = diffStore.get(id);
+		DiffStore.Record record = slot == null ? null : slot.record();
+		if(record != null && record.get(Side.LEFT) != null && record.get(Side.RIGHT) != null) {
+			String etag = diffTag(record.get(Side.LEFT), record.get(Side.RIGHT));
+			if(request().header(Http.HeaderNames.IF_NONE_MATCH).map(header -> matches(header, etag, true)).orElse(false)) {
+				return CompletableFuture.completedFuture(status(Http.Status.NOT_MODIFIED).withHeader(Http.HeaderNames.ETAG, etag));
+			}
+		}
+		return async(() -> difference(id));
+	}
 
-		//verify if one of the inputs is missing 
+	/**
+	 * Compare the inputs of an id, run on the diff executor  
+	 * @param id - unique :id used to localized the input 
+	 */
+	private Result difference(String id) {
+
+		//get left and right inputs, retained while they are read 
+		Payload left = diffStore.acquire(id, Side.LEFT);
+		Payload right = diffStore.acquire(id, Side.RIGHT);
+		try {
+			//verify if one of the inputs is missing 
+			if(left == null || right == null) {
+				ObjectNode result = Json.newObject();
+				result.put("result", "missing input");
+				return badRequest(result);
+			}
+
+			//insertions and deletions instead of ranges of different bytes 
+			String etag = diffTag(left, right);
+			if("edits".equals(request().getQueryString("mode"))) {
+				return editScript(left, right).withHeader(Http.HeaderNames.ETAG, etag);
+			}
+			//blocks of the left input copied (or moved) to the right one 
+			if("blocks".equals(request().getQueryString("mode"))) {
+				return blockDelta(left, right).withHeader(Http.HeaderNames.ETAG, etag);
+			}
+
+			//window of the ranges asked for, null for all of them 
+			DiffPage page;
+			try {
+				page = diffPage(left, right);
+			} catch(IllegalArgumentException e) {
+				return badRequest(e.getMessage());
+			}
+			if(page != null && !page.matches(left.version(), right.version())) {
+				ObjectNode result = Json.newObject();
+				result.put("result", "cursor is stale, inputs were updated");
+				return status(409, result);
+			}
+
+			DiffResult result = precompute.result(id, left, right);
+			if(result.status() == DiffResult.Status.TOO_MANY_RANGES) {
+				ObjectNode tooMany = Json.newObject();
+				tooMany.put("result", result.status().message());
+				return status(422, tooMany).withHeader(Http.HeaderNames.ETAG, etag);
+			}
+
+			//only the ranges of the page are written, the whole result stays cached 
+			DiffRanges ranges = result.ranges();
+			if(page != null) {
+				result = new DiffResult(result.status(), page.select(ranges));
+			}
+
+			//large range lists are written chunk by chunk as the client reads them 
+			DiffResultWriter.Format format = resultFormat();
+			Result response = diffWriter.streams(result)
+					? ok().chunked(diffWriter.stream(result, format))
+					: ok(diffWriter.toBytes(result, format));
+			response = response.as(format.mimeType()).withHeader(Http.HeaderNames.VARY, Http.HeaderNames.ACCEPT)
+					.withHeader(Http.HeaderNames.ETAG, etag);
+			if(page != null) {
+				DiffPage next = page.next(ranges);
+				response = response.withHeader(TOTAL_HEADER, String.valueOf(page.total(ranges)));
+				if(next != null) {
+					response = response.withHeader(NEXT_CURSOR_HEADER, next.cursor());
+				}
+			}
+			return response;
+		} finally {
+			if(left != null) left.release();
+			if(right != null) right.release();
+		}
+	}
+
+	/**
+	 * Delta rebuilding the right input from blocks of the left one  
+	 * @param left - left input
+	 * @param right - right input
+	 */
+	private Result blockDelta(Payload left, Payload right) {
+		BlockDelta delta = blockDiff.diff(left.buffer(), right.buffer());
+		ObjectNode result = Json.newObject();
+		result.put("result", left.length() == right.length()
+				? (left.contentEquals(right) ? DiffResult.Status.EQUAL : DiffResult.Status.SAME_SIZE).message()
+				: DiffResult.Status.DIFFERENT_SIZES.message());
+		result.put("blockSize", delta.blockSize());
+		result.put("copied", delta.total(BlockDelta.Op.COPY));
+		result.put("inserted", delta.total(BlockDelta.Op.INSERT));
+		ArrayNode ops = result.putArray("delta");
+		for(int i = 0; i < delta.size(); i++) {
+			ObjectNode op = ops.addObject();
+			op.put("op", delta.op(i).label());
+			if(delta.op(i) == BlockDelta.Op.COPY) {
+				op.put("leftOffset", delta.leftOffset(i));
+			}
+			op.put("rightOffset", delta.rightOffset(i));
+			op.put("length", delta.length(i));
+		}
+		return ok(result);
+	}
+
+	/**
+	 * Run an action on the diff executor, rejecting it at once if its queue is full  
+	 * @param action - action to be run (the HTTP context is kept)
+	 */
+	private CompletionStage<Result> async(Supplier<Result> action) {
 		try {
-			leftEncoded.isEmpty();	
-			rightEncoded.isEmpty();
-		} catch (Exception e) {
+			return diffExecutor.supply(action);
+		} catch(RejectedExecutionException e) {
+			//an input decoded by the body parser is not stored
+			StorageBlock decoded = request().body().as(StorageBlock.class);
+			if(decoded != null) decoded.release();
 			ObjectNode result = Json.newObject();
-			result.put("result", "missing input");
-			return badRequest(result);
+			result.put("result", "too many requests, retry later");
+			return CompletableFuture.completedFuture(status(503, result)
+					.withHeader(Http.HeaderNames.RETRY_AFTER, String.valueOf(diffExecutor.retryAfterSeconds())));
+		}
+	}
+
+	/**
+	 * Run one item of a batch on the diff executor, reporting a full queue as the error of the item  
+	 * @param item - {"id": ..., "left": base64, "right": base64}
+	 * @param withDiff - true to add the diff result of the id
+	 */
+	private CompletionStage<ByteString> batchItem(JsonNode item, boolean withDiff) {
+		try {
+			return diffExecutor.supply(() -> {
+				try {
+					return storeItem(item, withDiff);
+				} catch(RuntimeException e) {
+					return batchEntry(item.path("id").textValue(), e.getMessage() == null ? e.toString() : e.getMessage(), null);
+				}
+			});
+		} catch(RejectedExecutionException e) {
+			return CompletableFuture.completedFuture(batchEntry(item.path("id").textValue(), "too many requests, retry later", null));
+		}
+	}
+
+	/**
+	 * Store the inputs of one item of a batch, decoding them once  
+	 * @param item - {"id": ..., "left": base64, "right": base64}, at least one of the sides
+	 * @param withDiff - true to add the diff result of the id
+	 */
+	private ByteString storeItem(JsonNode item, boolean withDiff) {
+		String id = item.path("id").textValue();
+		if(id == null) {
+			return batchEntry(null, "Missing parameter [id]", null);
+		}
+		String left = item.path("left").textValue();
+		String right = item.path("right").textValue();
+		if(left == null && right == null) {
+			return batchEntry(id, "Missing parameter [left] or [right]", null);
+		}
+		//nothing is stored unless both sides are valid
+		StorageBlock leftBlock = null;
+		StorageBlock rightBlock = null;
+		try {
+			leftBlock = left == null ? null : Base64Codec.decode(left, diffStore.storage());
+			rightBlock = right == null ? null : Base64Codec.decode(right, diffStore.storage());
+		} catch(Base64Codec.InvalidBase64Exception e) {
+			if(leftBlock != null) leftBlock.release();
+			return batchEntry(id, notBase64(e), null);
+		}
+		if(leftBlock != null) {
+			diffStore.put(id, Side.LEFT, leftBlock);
+		}
+		if(rightBlock != null) {
+			diffStore.put(id, Side.RIGHT, rightBlock);
+		}
+		diffCache.invalidate(id);
+		changed(id);
+		if(!withDiff) {
+			return batchEntry(id, null, null);
+		}
+
+		Payload leftPayload = diffStore.acquire(id, Side.LEFT);
+		Payload rightPayload = diffStore.acquire(id, Side.RIGHT);
+		try {
+			if(leftPayload == null || rightPayload == null) {
+				ObjectNode result = Json.newObject();
+				result.put("result", "missing input");
+				return batchEntry(id, null, Json.stringify(result));
+			}
+			//same document GET /v1/diff/:id answers in the legacy format
+			byte[] result = diffWriter.toBytes(precompute.result(id, leftPayload, rightPayload));
+			return batchEntry(id, null, new String(result, StandardCharsets.UTF_8));
+		} finally {
+			if(leftPayload != null) leftPayload.release();
+			if(rightPayload != null) rightPayload.release();
+		}
+	}
+
+	/**
+	 * One element of the batch response: {"id": ..., "result": "stored", "diff": {...}} or {"id": ..., "error": ...}  
+	 * @param id - unique :id of the item, null if it had none
+	 * @param error - why the item was not stored, null if it was
+	 * @param diff - diff result of the id as Json, null if not asked for
+	 */
+	private ByteString batchEntry(String id, String error, String diff) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(JsonGenerator generator = Json.mapper().getFactory().createGenerator(out)) {
+			generator.writeStartObject();
+			generator.writeStringField("id", id);
+			if(error != null) {
+				generator.writeStringField("error", error);
+			} else {
+				generator.writeStringField("result", "stored");
+			}
+			if(diff != null) {
+				generator.writeFieldName("diff");
+				generator.writeRawValue(diff);
+			}
+			generator.writeEndObject();
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return ByteString.fromArray(out.toByteArray());
+	}
+
+	/**
+	 * Decode and store a baseline, run on the diff executor  
+	 * @param name - name of the baseline 
+	 */
+	private Result storeBaseline(String name) {
+
+		//already decoded by the body parser
+		StorageBlock decoded = request().body().as(StorageBlock.class);
+		int length = decoded.buffer().limit();
+		boolean created = baselines.put(name, decoded);
+		ObjectNode result = Json.newObject();
+		result.put("name", name);
+		result.put("length", length);
+		result.put("result", created ? "created" : "updated");
+		return created ? created(result) : ok(result);
+	}
+
+	/**
+	 * Run one comparison of a fan out on the diff executor, reporting a full queue as its error  
+	 * @param entry - entry of the candidate
+	 * @param comparison - fills the entry with the summary of the candidate
+	 */
+	private CompletionStage<ObjectNode> fanOut(ObjectNode entry, Supplier<ObjectNode> comparison) {
+		try {
+			return diffExecutor.supply(comparison);
+		} catch(RejectedExecutionException e) {
+			return CompletableFuture.completedFuture(entry.put("error", "too many requests, retry later"));
+		}
+	}
+
+	/**
+	 * Compare a baseline with the input of an id  
+	 * @param result - entry of the id
+	 * @param baseline - baseline, retained by the caller
+	 * @param side - side of the input
+	 */
+	private ObjectNode compareId(ObjectNode result, Payload baseline, Side side) {
+		Payload candidate = diffStore.acquire(result.get("id").asText(), side);
+		if(candidate == null) {
+			result.put("error", "missing input");
+			return result;
+		}
+		try {
+			return summary(result, DiffSummary.of(parallelDiff, baseline, candidate));
+		} catch(ParallelDiff.TooManyRangesException e) {
+			result.put("error", e.getMessage());
+			return result;
+		} finally {
+			candidate.release();
+		}
+	}
+
+	/**
+	 * Compare a baseline with an uploaded candidate, decoded on the diff executor  
+	 * @param result - entry of the candidate
+	 * @param baseline - baseline, retained by the caller
+	 * @param content - candidate input, base64
+	 */
+	private ObjectNode compareCandidate(ObjectNode result, Payload baseline, String content) {
+		if(content == null) {
+			result.put("error", "Missing parameter [input]");
+			return result;
+		}
+		//decoded into a block of the storage, given back once compared
+		StorageBlock decoded;
+		try {
+			decoded = Base64Codec.decode(content, diffStore.storage());
+		} catch(Base64Codec.InvalidBase64Exception e) {
+			result.put("error", notBase64(e));
+			return result;
+		}
+		try {
+			return summary(result, DiffSummary.of(parallelDiff, baseline, decoded.buffer()));
+		} catch(ParallelDiff.TooManyRangesException e) {
+			result.put("error", e.getMessage());
+			return result;
+		} finally {
+			decoded.release();
+		}
+	}
+
+	/**
+	 * Add the counts of a summary to the entry of its candidate  
+	 * @param result - entry of the candidate
+	 * @param summary - differences of the candidate
+	 */
+	private ObjectNode summary(ObjectNode result, DiffSummary summary) {
+		result.put("result", summary.status().message());
+		result.put("equal", summary.equal());
+		result.put("sizeDifference", summary.sizeDifference());
+		result.put("ranges", summary.ranges());
+		result.put("bytes", summary.bytes());
+		return result;
+	}
+
+	/**
+	 * Edit script turning the left input into the right one  
+	 * @param left - left input
+	 * @param right - right input
+	 */
+	private Result editScript(Payload left, Payload right) {
+		ObjectNode result = Json.newObject();
+		result.put("result", left.length() == right.length()
+				? (left.contentEquals(right) ? DiffResult.Status.EQUAL : DiffResult.Status.SAME_SIZE).message()
+				: DiffResult.Status.DIFFERENT_SIZES.message());
+
+		EditScript script = myersDiff.diff(left.buffer(), right.buffer());
+		if(script == null) {
+			result.put("error", "edit script exceeds the configured limits");
+			return status(422, result);
+		}
+		result.put("distance", script.distance());
+		ArrayNode edits = result.putArray("edits");
+		for(int i = 0; i < script.size(); i++) {
+			ObjectNode edit = edits.addObject();
+			edit.put("op", script.op(i).label());
+			edit.put("leftOffset", script.leftOffset(i));
+			edit.put("rightOffset", script.rightOffset(i));
+			edit.put("length", script.length(i));
+		}
+		return ok(result);
+	}
+
+	/**
+	 * Page of the diff result asked by the query string, from a cursor or from byteStart, byteEnd, from and limit  
+	 * @param left - left input
+	 * @param right - right input
+	 * @return - null if no page was asked
+	 * @throws IllegalArgumentException - if a parameter is invalid
+	 */
+	private DiffPage diffPage(Payload left, Payload right) {
+		String cursor = request().getQueryString("cursor");
+		if(cursor != null) {
+			DiffPage page = DiffPage.fromCursor(cursor);
+			if(page == null) {
+				throw new IllegalArgumentException("Invalid parameter [cursor]");
+			}
+			return page;
+		}
+		Long byteStart = longParameter("byteStart");
+		Long byteEnd = longParameter("byteEnd");
+		Long from = longParameter("from");
+		Long limit = longParameter("limit");
+		if(byteStart == null && byteEnd == null && from == null && limit == null) {
+			return null;
+		}
+		long start = byteStart == null ? 0 : byteStart;
+		long end = byteEnd == null ? Math.max(left.length(), right.length()) : byteEnd;
+		if(start < 0 || end < start) {
+			throw new IllegalArgumentException("Invalid parameter [byteStart/byteEnd]");
+		}
+		if(from != null && (from < 0 || from > Integer.MAX_VALUE)) {
+			throw new IllegalArgumentException("Invalid parameter [from]");
+		}
+		if(limit != null && limit <= 0) {
+			throw new IllegalArgumentException("Invalid parameter [limit]");
 		}
+		return new DiffPage(left.version(), right.version(), start, end,
+				from == null ? 0 : from.intValue(), limit == null ? Integer.MAX_VALUE : (int) Math.min(limit, Integer.MAX_VALUE));
+	}
+
+	private Long longParameter(String name) {
+		String value = request().getQueryString(name);
+		if(value == null) {
+			return null;
+		}
+		try {
+			return Long.parseLong(value);
+		} catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid parameter [" + name + "]");
+		}
+	}
 
-		//return if the inputs are equal
-		if(leftEncoded.contentEquals(rightEncoded)){
+	/**
+	 * Format of the diff result, the first accepted type with a format or the legacy one  
+	 */
+	private DiffResultWriter.Format resultFormat() {
+		for(MediaRange range : request().acceptedTypes()) {
+			DiffResultWriter.Format format = DiffResultWriter.Format.of(range.mediaType() + "/" + range.mediaSubType());
+			if(format != null) {
+				return format;
+			}
+		}
+		return DiffResultWriter.Format.LEGACY;
+	}
+
+	/**
+	 * Create one side input, decoding it once to be stored  
+	 * @param id - unique :id used to localized the input 
+	 * @param side - side of the input
+	 */
+	private Result create(String id, Side side) {
+
+		//validated and decoded by the body parser, straight into a block of the storage
+		StorageBlock decoded = request().body().as(StorageBlock.class);
+		int length = decoded.buffer().limit();
+
+		//the block is released if the id was already created, even by a concurrent create
+		Payload payload = diffStore.create(id, side, decoded);
+		if(payload != null){
+			changed(id);
 			ObjectNode result = Json.newObject();
-			result.put("result", "inputs are equal");
-			return ok(result);
-		} 
+			result.put("id", id);
+			result.put("length", length);
+			result.put("result", "created");
+			return created(result).withHeader(Http.HeaderNames.ETAG, etag(payload));
+		}
+		ObjectNode result = Json.newObject();
+		result.put("id", id);
+		result.put("result", "id already created, update instead");
+		return status(409, result);
+	}
 
-		//decode from base64
-		byte[] leftDecoded = Base64.decodeBase64(leftEncoded);
-		byte[] rightDecoded = Base64.decodeBase64(rightEncoded);
+	/**
+	 * Update one side input, decoding it once to be stored  
+	 * @param id - unique :id used to localized the input 
+	 * @param side - side of the input
+	 */
+	private Result update(String id, Side side) {
 
-		//convert bytes to String
-		String leftDecodedString = new String(leftDecoded);
-		String rightDecodedString = new String(rightDecoded);
+		//validated and decoded by the body parser, straight into a block of the storage
+		StorageBlock decoded = request().body().as(StorageBlock.class);
+		int length = decoded.buffer().limit();
 
-		if(leftDecodedString.length() == rightDecodedString.length()){
+		//with If-Match the input is only replaced if it is still the version the client read 
+		long expected = -1;
+		Optional<String> ifMatch = request().header(Http.HeaderNames.IF_MATCH);
+		Payload current = diffStore.get(id, side);
+		if(ifMatch.isPresent() && current != null && !ifMatch.get().trim().equals("*")) {
+			if(!matches(ifMatch.get(), etag(current), false)) {
+				decoded.release();
+				return preconditionFailed(id, current.version());
+			}
+			expected = current.version();
+		}
 
-			LinkedList<String> strList = new LinkedList<String>();
+		//the block is released if the id was not created yet, or was changed meanwhile 
+		Payload payload;
+		try {
+			payload = diffStore.update(id, side, decoded, expected);
+		} catch(DiffStore.VersionMismatchException e) {
+			return preconditionFailed(id, e.current());
+		}
+		if(payload != null){
+			diffCache.invalidate(id);
+			changed(id);
+			ObjectNode result = Json.newObject();
+			result.put("id", id);
+			result.put("length", length);
+			result.put("result", "updated");
+			return ok(result).withHeader(Http.HeaderNames.ETAG, etag(payload));
+		}
+		ObjectNode result = Json.newObject();
+		result.put("id", id);
+		result.put("result", "id not found, create instead");
+		return notFound(result);
+	}
+
+	/**
+	 * Replace bytes of one side input, from offset on, with the decoded input  
+	 * @param id - unique :id used to localized the input 
+	 * @param side - side of the input
+	 */
+	private Result patch(String id, Side side) {
+
+		JsonNode json = request().body().asJson();
+
+		if(json == null) {
+			return badRequest("Expecting Json data");
+		}
+		JsonNode offset = json.findPath("offset");
+		String content = json.findPath("input").textValue();
+		if(!offset.canConvertToInt() || offset.intValue() < 0) {
+			return badRequest("Missing parameter [offset]");
+		}
+		if(content == null) {
+			return badRequest("Missing parameter [input]");
+		}
+		byte[] decoded;
+		try {
+			decoded = Base64Codec.decode(content);
+		} catch(Base64Codec.InvalidBase64Exception e) {
+			return badRequest(notBase64(e));
+		}
+		Payload payload;
+		try {
+			payload = diffStore.patch(id, side, offset.intValue(), decoded);
+		} catch(IllegalArgumentException e) {
+			return badRequest("Input does not fit at offset");
+		}
+		if(payload == null) {
+			ObjectNode result = Json.newObject();
+			result.put("id", id);
+			result.put("result", "id not found, create instead");
+			return notFound(result);
+		}
+		patchDifference(id, side, payload, offset.intValue(), decoded.length);
+		changed(id);
 
-			//identify offset and length of the differences 
-			if (leftDecodedString.length() == rightDecodedString.length()) {
-				strList = diffTools.diffString(leftDecodedString, rightDecodedString);
+		ObjectNode result = Json.newObject();
+		result.put("id", id);
+		result.put("offset", offset.intValue());
+		result.put("length", decoded.length);
+		result.put("result", "patched");
+		return ok(result).withHeader(Http.HeaderNames.ETAG, etag(payload));
+	}
+
+	/**
+	 * Let the results and the subscribers of an id know one of its inputs changed  
+	 * @param id - unique :id used to localized the input 
+	 */
+	private void changed(String id) {
+		precompute.schedule(id);
+		events.changed(id);
+	}
+
+	/**
+	 * Update refused because the input changed since the client read it  
+	 * @param id - unique :id used to localized the input 
+	 * @param version - version of the current input
+	 */
+	private Result preconditionFailed(String id, long version) {
+		ObjectNode result = Json.newObject();
+		result.put("id", id);
+		result.put("result", "input was changed, read it again");
+		return status(Http.Status.PRECONDITION_FAILED, result).withHeader(Http.HeaderNames.ETAG, "\"" + version + "\"");
+	}
+
+	/**
+	 * Strong entity tag of one side input, its version  
+	 * @param payload - input of the side
+	 */
+	private static String etag(Payload payload) {
+		return "\"" + payload.version() + "\"";
+	}
+
+	/**
+	 * Weak entity tag of the difference of an id, the versions of both inputs 
+	 * (the same for every format and page of the result)  
+	 * @param left - left input
+	 * @param right - right input
+	 */
+	private static String diffTag(Payload left, Payload right) {
+		return "W/\"" + left.version() + "-" + right.version() + "\"";
+	}
+
+	/**
+	 * Check an If-Match or If-None-Match header against an entity tag  
+	 * @param header - "*" or entity tags separated by commas
+	 * @param etag - entity tag of the current representation
+	 * @param weak - true to ignore the weak prefix (If-None-Match), false for the strong comparison of If-Match
+	 * @return boolean - true if the header matches the entity tag
+	 */
+	private static boolean matches(String header, String etag, boolean weak) {
+		String current = weak && etag.startsWith("W/") ? etag.substring(2) : etag;
+		for(String tag : header.split(",")) {
+			String value = tag.trim();
+			if(value.equals("*")) return true;
+			if(weak && value.startsWith("W/")) value = value.substring(2);
+			if(value.equals(current)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Message of an input that is not strict base64  
+	 * @param e - error with the offset of the first invalid character
+	 */
+	private static String notBase64(Base64Codec.InvalidBase64Exception e) {
+		return "Input is not Base64, invalid character at offset " + e.offset();
+	}
+
+	/**
+	 * Update the cached diff result after a patch, comparing only the patched bytes  
+	 * and keeping the ranges outside of them. Without a result for the inputs 
+	 * the patch was applied to, the cached result is dropped 
+	 * @param id - unique :id used to localized the input 
+	 * @param side - side of the patched input
+	 * @param patched - the patched input
+	 * @param offset - first byte replaced
+	 * @param length - number of bytes replaced
+	 */
+	private void patchDifference(String id, Side side, Payload patched, int offset, int length) {
+
+		//a patched input already replaced (or patched again in place) is not read 
+		if(!patched.retain()) {
+			diffCache.invalidate(id);
+			return;
+		}
+		Payload other = diffStore.acquire(id, side.other());
+		try {
+			DiffResult previous = null;
+			if(other != null) {
+				previous = side == Side.LEFT
+						? diffCache.peek(id, patched.baseVersion(), other.version())
+						: diffCache.peek(id, other.version(), patched.baseVersion());
+			}
+			//without its ranges the result can not be patched, it is computed again 
+			if(previous == null || previous.status() == DiffResult.Status.TOO_MANY_RANGES) {
+				diffCache.invalidate(id);
+				return;
+			}
+
+			Payload left = side == Side.LEFT ? patched : other;
+			Payload right = side == Side.LEFT ? other : patched;
+			DiffResult result = previous;
+			if(left.length() == right.length()) {
+				DiffRanges region = new DiffRanges();
+				diffTools.diffRange(left.buffer(), right.buffer(), offset, offset + length, region);
+				DiffRanges ranges = previous.ranges().replace(offset, offset + length, region);
+				result = new DiffResult(ranges.size() == 0 ? DiffResult.Status.EQUAL : DiffResult.Status.SAME_SIZE, ranges);
 			}
+			diffCache.put(id, left.version(), right.version(), result);
+		} finally {
+			patched.release();
+			if(other != null) other.release();
+		}
+	}
+
+	/**
+	 * Open an upload of one side input  
+	 * @param id - unique :id used to localized the input 
+	 * @param side - side of the input
+	 */
+	private Result openUpload(String id, Side side) {
+
+		JsonNode json = request().body().asJson();
+
+		if(json == null) {
+			return badRequest("Expecting Json data");
+		}
+		JsonNode length = json.get("length");
+		if(length == null || !length.canConvertToLong()) {
+			return badRequest("Missing parameter [length]");
+		}
 
+		UploadStore.Upload upload;
+		try {
+			upload = uploads.open(id, side, length.asLong());
+		} catch(IllegalArgumentException e) {
+			return badRequest(e.getMessage());
+		}
+		if(upload == null) {
 			ObjectNode result = Json.newObject();
-			result.put("result", "inputs have the same size");
-			result.put("diff", strList.toString());
-			return ok(result);
+			result.put("result", "too many uploads in progress, retry later");
+			return status(503, result);
+		}
+		return created(uploadJson(upload)).withHeader(Http.HeaderNames.LOCATION, "/v1/uploads/" + upload.key());
+	}
+
+	/**
+	 * Write one chunk of an upload, run on the diff executor  
+	 * @param upload - key of the upload 
+	 * @param chunk - index of the chunk
+	 */
+	private Result writeChunk(String upload, int chunk) {
+		UploadStore.Upload open = uploads.get(upload);
+		if(open == null) {
+			return uploadNotFound(upload);
 		}
-		else {
+		ByteString data = request().body().as(ByteString.class);
+		try {
+			if(!open.write(chunk, data.asByteBuffer())) {
+				return uploadNotFound(upload);
+			}
+		} catch(IllegalArgumentException e) {
+			return badRequest(e.getMessage());
+		}
+		ObjectNode result = Json.newObject();
+		result.put("upload", upload);
+		result.put("chunk", chunk);
+		result.put("result", "written");
+		return ok(result);
+	}
+
+	/**
+	 * Store the input of an upload, run on the diff executor  
+	 * @param upload - key of the upload 
+	 */
+	private Result commit(String upload) {
+		UploadStore.Upload open = uploads.get(upload);
+		if(open == null) {
+			return uploadNotFound(upload);
+		}
+		Payload payload = uploads.commit(open);
+		if(payload == null) {
+			if(open.missing().length == 0) return uploadNotFound(upload);
+			ObjectNode result = uploadJson(open);
+			result.put("result", "missing chunks");
+			return status(409, result);
+		}
+		diffCache.invalidate(open.id());
+		changed(open.id());
+		ObjectNode result = Json.newObject();
+		result.put("id", open.id());
+		result.put("side", open.side().path());
+		result.put("length", payload.length());
+		result.put("result", "stored");
+		return ok(result);
+	}
+
+	/**
+	 * @param upload - open upload
+	 * @return ObjectNode - key, id, side, length and chunks of the upload, with the chunks still missing
+	 */
+	private ObjectNode uploadJson(UploadStore.Upload upload) {
+		ObjectNode result = Json.newObject();
+		result.put("upload", upload.key());
+		result.put("id", upload.id());
+		result.put("side", upload.side().path());
+		result.put("length", upload.length());
+		result.put("chunkSize", upload.chunkSize());
+		result.put("chunks", upload.chunks());
+		ArrayNode missing = result.putArray("missing");
+		for(int chunk : upload.missing()) {
+			missing.add(chunk);
+		}
+		return result;
+	}
+
+	private Result uploadNotFound(String upload) {
+		ObjectNode result = Json.newObject();
+		result.put("upload", upload);
+		result.put("result", "upload not found");
+		return notFound(result);
+	}
+
+	/**
+	 * Stream the bytes of one side input, or of the Range asked for  
+	 * @param id - unique :id used to localized the input 
+	 * @param side - side of the input
+	 */
+	private Result raw(String id, Side side) {
+
+		//only retained once the body is streamed (never for a HEAD or a request aborted before), 
+		//until then the block can still be recycled or patched in place 
+		Payload payload = diffStore.get(id, side);
+		if(payload == null) {
+			ObjectNode result = Json.newObject();
+			result.put("result", "missing input");
+			return notFound(result);
+		}
+		String etag = etag(payload);
+		if(request().header(Http.HeaderNames.IF_NONE_MATCH).map(header -> matches(header, etag, true)).orElse(false)) {
+			return status(Http.Status.NOT_MODIFIED).withHeader(Http.HeaderNames.ETAG, etag);
+		}
+
+		int length = payload.length();
+		long[] range = request().header(Http.HeaderNames.RANGE).map(header -> byteRange(header, length)).orElse(null);
+		if(range != null && range.length == 0) {
+			return status(416).withHeader(Http.HeaderNames.CONTENT_RANGE, "bytes */" + length);
+		}
+		int first = range == null ? 0 : (int) range[0];
+		int end = range == null ? length : (int) range[1] + 1;
+
+		//read in chunks straight from the storage block, the payload is released when the stream ends. 
+		//If the input was replaced meanwhile the stream fails, its headers were sent for this version 
+		Source<ByteString, NotUsed> bytes = Source.unfoldResource(() -> {
+			if(!payload.retain()) throw new IllegalStateException("Input was replaced, read it again");
+			ByteBuffer view = payload.buffer();
+			view.limit(end).position(first);
+			return view;
+		}, view -> {
+			if(!view.hasRemaining()) return Optional.empty();
+			ByteBuffer chunk = view.slice();
+			chunk.limit(Math.min(RAW_CHUNK, chunk.remaining()));
+			view.position(view.position() + chunk.remaining());
+			return Optional.of(ByteString.fromByteBuffer(chunk));
+		}, view -> payload.release());
+
+		HttpEntity entity = new HttpEntity.Streamed(bytes, Optional.of((long) (end - first)), Optional.of(RAW));
+		Result response = range == null
+				? ok().sendEntity(entity)
+				: status(206).sendEntity(entity).withHeader(Http.HeaderNames.CONTENT_RANGE,
+						"bytes " + first + "-" + (end - 1) + "/" + length);
+		return response.withHeader(Http.HeaderNames.ACCEPT_RANGES, "bytes").withHeader(Http.HeaderNames.ETAG, etag);
+	}
+
+	/**
+	 * Parse a Range header, only a single byte range is served (others are ignored and the whole input is sent)  
+	 * @param header - value of the Range header
+	 * @param length - length of the input
+	 * @return long[] - first and last index asked for, empty if not satisfiable, null to send the whole input
+	 */
+	private static long[] byteRange(String header, int length) {
+		String value = header.trim();
+		if(!value.startsWith("bytes=") || value.indexOf(',') >= 0) return null;
+		value = value.substring("bytes=".length()).trim();
+		int dash = value.indexOf('-');
+		if(dash < 0) return null;
+		try {
+			String first = value.substring(0, dash).trim();
+			String last = value.substring(dash + 1).trim();
+			if(first.isEmpty()) {
+				//suffix: the last bytes of the input, none of an empty input 
+				long suffix = Long.parseLong(last);
+				if(suffix <= 0 || length == 0) return new long[0];
+				return new long[] {Math.max(0, length - suffix), length - 1};
+			}
+			long from = Long.parseLong(first);
+			long to = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+			if(from < 0 || (!last.isEmpty() && Long.parseLong(last) < from)) return null;
+			if(from >= length) return new long[0];
+			return new long[] {from, to};
+		} catch(NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Decode one side input to string  
+	 * @param id - unique :id used to localized the input 
+	 * @param side - side of the input
+	 */
+	private Result decodeToString(String id, Side side) {
+
+		Payload payload = diffStore.acquire(id, side);
+
+		//verify if the input exists
+		if(payload == null) {
 			ObjectNode result = Json.newObject();
-			result.put("result", "inputs have different sizes");
-			return ok(result);
+			result.put("result", "missing input");
+			return notFound(result);
+		}
+
+		byte[] decoded;
+		try {
+			decoded = payload.copyBytes();
+		} finally {
+			payload.release();
 		}
+
+		ObjectNode result = Json.newObject();
+		result.put("input", Base64.encodeBase64String(decoded));
+		result.put("result", new String(decoded));
+		return ok(result);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,350 @@
+package controllers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.inject.Inject;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.typesafe.config.Config;
+
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.StreamConverters;
+import akka.util.ByteString;
+import play.libs.F;
+import play.libs.streams.Accumulator;
+import play.mvc.BodyParser;
+import play.mvc.Http;
+import play.mvc.Result;
+import play.mvc.Results;
+import services.Base64Codec;
+import services.DiffStore;
+import services.InputExecutor;
+import services.storage.StorageBlock;
+
+/**
+ *******************************************************************************
+ *Body parser of the create/update actions reading {"input": base64} as a
+ *stream: Jackson's streaming JsonParser finds the top level input field and
+ *its characters are then decoded chunk by chunk (Base64Codec.StreamDecoder)
+ *straight into a block of the storage, so neither the body, a JsonNode nor
+ *the input String is ever held in memory. The block starts small and grows
+ *as the input is decoded, up to the Content-Length (an upper bound of the
+ *decoded length), so a body announced larger than it is sent holds no more
+ *than what arrived. Fields after the input are not read. Parsing blocks on
+ *the body stream for the whole transfer, so it runs on the input executor
+ *and not the diff executor, bodies above diff.input.maxBodySize are refused
+ *with 413. Bodies sent as application/octet-stream are the raw input, their
+ *chunks are copied into the block as they arrive (no Base64 or Json on the
+ *wire)
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public class InputBodyParser implements BodyParser<StorageBlock> {
+
+	private static final String INPUT = "input";
+	private static final String RAW = "application/octet-stream";
+	private static final int CHUNK = 64 * 1024;
+
+	private final DiffStore diffStore;
+	private final InputExecutor inputExecutor;
+	private final long maxLength;
+
+	/**
+	 * Body longer than the configured maximum
+	 */
+	private static final class TooLargeException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+	}
+
+	@Inject
+	public InputBodyParser(DiffStore diffStore, InputExecutor inputExecutor, Config config){
+		this.diffStore = diffStore;
+		this.inputExecutor = inputExecutor;
+		this.maxLength = config.getBytes("diff.input.maxBodySize");
+	}
+
+	@Override
+	public Accumulator<ByteString, F.Either<Result, StorageBlock>> apply(Http.RequestHeader request){
+		String contentType = request.contentType().orElse("");
+		boolean raw = contentType.equals(RAW);
+		if (!raw && !contentType.equals("application/json") && !contentType.equals("text/json")) {
+			return Accumulator.done(F.Either.Left(Results.badRequest("Expecting Json data or " + RAW)));
+		}
+		long contentLength = request.header(Http.HeaderNames.CONTENT_LENGTH).map(Long::parseLong).orElse(-1L);
+		if (contentLength > maxLength) {
+			return Accumulator.done(F.Either.Left(tooLarge()));
+		}
+		if (raw) {
+			RawWriter writer = new RawWriter(contentLength);
+			return Accumulator.fromSink(Sink.<ByteString>foreach(writer::write).mapMaterializedValue(done ->
+					done.handle((ignored, failure) -> {
+						if (failure == null) return F.Either.<Result, StorageBlock>Right(writer.finish());
+						writer.abort();
+						return F.Either.<Result, StorageBlock>Left(failure instanceof TooLargeException
+								|| failure.getCause() instanceof TooLargeException ? tooLarge() : Results.badRequest("Incomplete request body"));
+					})));
+		}
+		return Accumulator.fromSink(StreamConverters.asInputStream().mapMaterializedValue(body -> {
+			try {
+				return inputExecutor.supply(() -> parse(body, contentLength));
+			} catch (RejectedExecutionException e) {
+				close(body);
+				ObjectNode result = play.libs.Json.newObject();
+				result.put("result", "too many requests, retry later");
+				return CompletableFuture.completedFuture(F.Either.Left(Results.status(503, result)
+						.withHeader(Http.HeaderNames.RETRY_AFTER, String.valueOf(inputExecutor.retryAfterSeconds()))));
+			}
+		}));
+	}
+
+	/**
+	 * Method to find the input field and decode it, blocking on the body stream
+	 * @param body - request body
+	 * @param contentLength - length of the body, -1 if unknown
+	 * @return F.Either<Result, StorageBlock> - decoded input, or the error response
+	 */
+	private F.Either<Result, StorageBlock> parse(InputStream body, long contentLength){
+		BodyReader reader = new BodyReader(body);
+		try (JsonParser parser = play.libs.Json.mapper().getFactory().createParser(reader)) {
+			if (parser.nextToken() != JsonToken.START_OBJECT) {
+				return F.Either.Left(Results.badRequest("Expecting Json data"));
+			}
+			while (parser.nextToken() == JsonToken.FIELD_NAME) {
+				String name = parser.getCurrentName();
+				if (parser.nextToken() == JsonToken.VALUE_STRING && INPUT.equals(name)) {
+					//the parser stops right after the opening quote, the characters it read ahead are pushed back
+					ByteArrayOutputStream readAhead = new ByteArrayOutputStream();
+					if (parser.releaseBuffered(readAhead) < 0) {
+						return F.Either.Left(Results.badRequest("Expecting UTF-8 Json data"));
+					}
+					reader.pushBack(readAhead.toByteArray());
+					return decode(reader, contentLength);
+				}
+				parser.skipChildren();
+			}
+			return F.Either.Left(Results.badRequest("Missing parameter [input]"));
+		} catch (TooLargeException e) {
+			return F.Either.Left(tooLarge());
+		} catch (JsonProcessingException e) {
+			return F.Either.Left(Results.badRequest("Expecting Json data"));
+		} catch (IOException e) {
+			return F.Either.Left(Results.badRequest("Incomplete request body"));
+		} finally {
+			close(body);
+		}
+	}
+
+	/**
+	 * Method to decode the characters of the input string up to its closing quote
+	 * @param reader - body, positioned after the opening quote
+	 * @param contentLength - length of the body, -1 if unknown
+	 * @return F.Either<Result, StorageBlock> - decoded input, or the error response
+	 * @throws IOException - if the body is malformed, incomplete or too large
+	 */
+	private F.Either<Result, StorageBlock> decode(BodyReader reader, long contentLength) throws IOException {
+		int bound = contentLength < 0 ? Integer.MAX_VALUE - 8 : (int) Math.min(Integer.MAX_VALUE - 8, contentLength / 4 * 3);
+		Base64Codec.StreamDecoder decoder = new Base64Codec.StreamDecoder(diffStore.storage(), CHUNK, bound);
+		try {
+			while (true) {
+				if (!reader.fill()) throw new EOFException("Unterminated input");
+				int start = reader.position;
+				int end = reader.indexOfQuoteOrEscape();
+				boolean valid = decoder.update(reader.buffer, start, end);
+				if (valid && end < reader.limit) {
+					if (reader.buffer[end] == '"') {
+						return F.Either.Right(decoder.finish());
+					}
+					valid = decoder.update(reader.escape());
+				}
+				if (!valid) {
+					decoder.abort();
+					return F.Either.Left(Results.badRequest("Input is not Base64, invalid character at offset " + decoder.invalidOffset()));
+				}
+			}
+		} catch (Base64Codec.InvalidBase64Exception e) {
+			return F.Either.Left(Results.badRequest("Input is not Base64, invalid character at offset " + e.offset()));
+		} catch (IOException | RuntimeException e) {
+			decoder.abort();
+			throw e;
+		}
+	}
+
+	private Result tooLarge(){
+		return Results.status(Http.Status.REQUEST_ENTITY_TOO_LARGE, "Request entity too large");
+	}
+
+	private static void close(InputStream body){
+		try {
+			body.close();
+		} catch (IOException e) {
+			//cancels the rest of the upload anyway
+		}
+	}
+
+	/**
+	 * Raw body copied chunk by chunk into a block of the storage, allocated on the first
+	 * chunk and grown as the body arrives, up to the Content-Length when it is known
+	 */
+	private final class RawWriter {
+
+		private final long contentLength;
+		private StorageBlock block;
+		private ByteBuffer target;
+
+		RawWriter(long contentLength){
+			this.contentLength = contentLength;
+		}
+
+		void write(ByteString chunk) throws TooLargeException {
+			long bound = Math.min(contentLength < 0 ? maxLength : contentLength, Integer.MAX_VALUE - 8);
+			if (block == null) {
+				block = diffStore.storage().allocate((int) Math.max(1, Math.min(CHUNK, bound)));
+				target = block.buffer().duplicate();
+			}
+			long length = (long) target.position() + chunk.size();
+			if (length > maxLength) throw new TooLargeException();
+			if (length > target.limit()) {
+				StorageBlock bigger = diffStore.storage().allocate((int) Math.min(Integer.MAX_VALUE - 8,
+						Math.max(Math.min(2L * target.limit(), bound), length)));
+				target.flip();
+				ByteBuffer written = bigger.buffer().duplicate();
+				written.put(target);
+				block.release();
+				block = bigger;
+				target = written;
+			}
+			for (ByteBuffer buffer : chunk.getByteBuffers()) {
+				target.put(buffer);
+			}
+		}
+
+		/**
+		 * @return StorageBlock - block holding exactly the bytes received, owned by the caller
+		 */
+		StorageBlock finish(){
+			if (block == null) return diffStore.storage().allocate(0);
+			StorageBlock received = block.truncate(target.position());
+			block = null;
+			return received;
+		}
+
+		void abort(){
+			if (block != null) block.release();
+			block = null;
+		}
+	}
+
+	/**
+	 * Body stream counting the bytes read (to refuse bodies above the maximum),
+	 * read in chunks by the decoder once the parser has found the input
+	 */
+	private final class BodyReader extends InputStream {
+
+		private final InputStream body;
+		private final byte[] buffer = new byte[CHUNK];
+		private int position;
+		private int limit;
+		private long read;
+
+		BodyReader(InputStream body){
+			this.body = body;
+		}
+
+		/**
+		 * Method to put back bytes read ahead by the Json parser
+		 * @param bytes - bytes to be read again, at most the buffer size
+		 */
+		void pushBack(byte[] bytes){
+			System.arraycopy(bytes, 0, buffer, 0, bytes.length);
+			position = 0;
+			limit = bytes.length;
+		}
+
+		/**
+		 * @return boolean - false at the end of the body, true if the buffer has bytes to be read
+		 */
+		boolean fill() throws IOException {
+			if (position < limit) return true;
+			int count = readBody(buffer, 0, buffer.length);
+			position = 0;
+			limit = Math.max(count, 0);
+			return count > 0;
+		}
+
+		/**
+		 * @return int - index of the first quote or backslash of the buffer (its limit if none), the reader is moved to it
+		 */
+		int indexOfQuoteOrEscape(){
+			int i = position;
+			while (i < limit && buffer[i] != '"' && buffer[i] != '\\') i++;
+			position = i;
+			return i;
+		}
+
+		/**
+		 * Method to read an escape sequence, the reader is on its backslash
+		 * @return char - escaped character
+		 */
+		char escape() throws IOException {
+			position++;
+			int c = next();
+			switch (c) {
+				case '"': case '\\': case '/': return (char) c;
+				case 'b': return '\b';
+				case 'f': return '\f';
+				case 'n': return '\n';
+				case 'r': return '\r';
+				case 't': return '\t';
+				case 'u':
+					int value = 0;
+					for (int i = 0; i < 4; i++) {
+						int digit = Character.digit(next(), 16);
+						if (digit < 0) throw new JsonParseException(null, "Invalid unicode escape");
+						value = value << 4 | digit;
+					}
+					return (char) value;
+				default:
+					throw new JsonParseException(null, "Invalid escape");
+			}
+		}
+
+		private int next() throws IOException {
+			if (!fill()) throw new EOFException("Unterminated input");
+			return buffer[position++] & 0xff;
+		}
+
+		private int readBody(byte[] b, int off, int len) throws IOException {
+			int count = body.read(b, off, len);
+			if (count > 0) {
+				read += count;
+				if (read > maxLength) throw new TooLargeException();
+			}
+			return count;
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			//used by the parser before any bytes are pushed back
+			return readBody(b, off, len);
+		}
+	}
+}
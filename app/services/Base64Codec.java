@@ -0,0 +1,347 @@
+package services;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import services.storage.PayloadStorage;
+import services.storage.StorageBlock;
+
+/**
+ *******************************************************************************
+ *Strict Base64 (RFC 4648 standard alphabet) codec validating and decoding
+ *in the same pass, four characters at a time through a lookup table. The
+ *decoded length is known from the input length and padding, so the bytes
+ *are written straight into a block of the PayloadStorage (a recycled slab
+ *chunk with the offheap backend) without an intermediate copy. Strict means:
+ *length multiple of 4, no whitespace or line breaks, padding only at the end
+ *and the unused bits of the last character zero (the canonical encoding).
+ *StreamDecoder applies the same rules to an input read in chunks
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public final class Base64Codec {
+
+	private static final String ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+	private static final char PAD = '=';
+	//6 bits value of each ASCII character, -1 if it is not in the alphabet
+	private static final byte[] DECODE = new byte[128];
+
+	static {
+		Arrays.fill(DECODE, (byte) -1);
+		for (int i = 0; i < ALPHABET.length(); i++) {
+			DECODE[ALPHABET.charAt(i)] = (byte) i;
+		}
+	}
+
+	/**
+	 * Input that is not strict Base64
+	 */
+	public static final class InvalidBase64Exception extends IllegalArgumentException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int offset;
+
+		InvalidBase64Exception(int offset){
+			super("Invalid Base64 character at offset " + offset);
+			this.offset = offset;
+		}
+
+		/**
+		 * @return int - offset of the first invalid character
+		 */
+		public int offset(){
+			return offset;
+		}
+	}
+
+	/**
+	 * Decoder of an input given in chunks of characters (e.g. read from a request body), 
+	 * writing into a block of the storage that grows when the decoded length was underestimated
+	 */
+	public static final class StreamDecoder {
+
+		private final PayloadStorage storage;
+		private final int maxLength;
+		private StorageBlock block;
+		private ByteBuffer target;
+		//decoded bytes written and characters read
+		private int length;
+		private int offset;
+		//characters of the current group, and padding characters after them
+		private int bits;
+		private int count;
+		private int pads;
+		private int invalid = -1;
+
+		/**
+		 * @param storage - where the block is allocated
+		 * @param expectedLength - decoded length expected (an upper bound avoids growing the block)
+		 */
+		public StreamDecoder(PayloadStorage storage, int expectedLength){
+			this(storage, expectedLength, Integer.MAX_VALUE - 8);
+		}
+
+		/**
+		 * @param storage - where the block is allocated
+		 * @param initialLength - size of the block allocated before any character is read
+		 * @param maxLength - upper bound of the decoded length, the block does not grow past it
+		 *        (unless it was wrong)
+		 */
+		public StreamDecoder(PayloadStorage storage, int initialLength, int maxLength){
+			this.storage = storage;
+			this.maxLength = Math.max(maxLength, 3);
+			this.block = storage.allocate(Math.max(Math.min(initialLength, maxLength), 3));
+			this.target = block.buffer();
+		}
+
+		/**
+		 * Method to decode ASCII characters, whole groups at once while no padding is found
+		 * @param chars - characters, one per byte (bytes above 127 are invalid)
+		 * @param from - first index (inclusive)
+		 * @param to - last index (exclusive)
+		 * @return boolean - false if an invalid character was found (see invalidOffset)
+		 */
+		public boolean update(byte[] chars, int from, int to){
+			int i = from;
+			while (i < to) {
+				if (count == 0 && pads == 0) i = groups(chars, i, to);
+				if (i < to && !update((char) (chars[i++] & 0xff))) return false;
+			}
+			return true;
+		}
+
+		private int groups(byte[] chars, int from, int to){
+			int end = from + (to - from) / 4 * 4;
+			ensure((end - from) / 4 * 3);
+			int i = from;
+			for (; i < end; i += 4) {
+				int c0 = chars[i] & 0xff, c1 = chars[i + 1] & 0xff, c2 = chars[i + 2] & 0xff, c3 = chars[i + 3] & 0xff;
+				if ((c0 | c1 | c2 | c3) >= DECODE.length) break;
+				int group = DECODE[c0] << 18 | DECODE[c1] << 12 | DECODE[c2] << 6 | DECODE[c3];
+				//invalid or padding characters are left to the per character path
+				if (group < 0) break;
+				target.put(length, (byte) (group >> 16));
+				target.put(length + 1, (byte) (group >> 8));
+				target.put(length + 2, (byte) group);
+				length += 3;
+				offset += 4;
+			}
+			return i;
+		}
+
+		/**
+		 * Method to decode one character
+		 * @param c - next character of the input
+		 * @return boolean - false if it is invalid (see invalidOffset)
+		 */
+		public boolean update(char c){
+			if (invalid >= 0) return false;
+			if (pads > 0 || c == PAD) {
+				//padding only completes a group of 2 or 3 characters, and nothing follows it
+				if (c != PAD || count < 2 || count + pads >= 4) return fail();
+				pads++;
+				offset++;
+				return true;
+			}
+			if (c >= DECODE.length || DECODE[c] < 0) return fail();
+			bits = bits << 6 | DECODE[c];
+			offset++;
+			if (++count == 4) {
+				ensure(3);
+				target.put(length, (byte) (bits >> 16));
+				target.put(length + 1, (byte) (bits >> 8));
+				target.put(length + 2, (byte) bits);
+				length += 3;
+				bits = 0;
+				count = 0;
+			}
+			return true;
+		}
+
+		/**
+		 * Method to end the input, checking its last group
+		 * @return StorageBlock - block holding exactly the decoded bytes, owned by the caller
+		 * @throws InvalidBase64Exception - if the input is not strict Base64 (the block is released)
+		 */
+		public StorageBlock finish(){
+			if (invalid < 0 && pads > 0 && count + pads == 4) {
+				//bits past the last decoded byte must be zero
+				if ((count == 2 && (bits & 0xf) != 0) || (count == 3 && (bits & 0x3) != 0)) {
+					invalid = offset - pads - 1;
+				} else if (count == 2) {
+					target.put(length++, (byte) (bits >> 4));
+				} else {
+					target.put(length++, (byte) (bits >> 10));
+					target.put(length++, (byte) (bits >> 2));
+				}
+			} else if (invalid < 0 && count + pads > 0) {
+				//incomplete last group
+				invalid = offset - count - pads;
+			}
+			if (invalid >= 0) {
+				abort();
+				throw new InvalidBase64Exception(invalid);
+			}
+			StorageBlock decoded = block.truncate(length);
+			block = null;
+			return decoded;
+		}
+
+		/**
+		 * Method to give the block back to the storage when the input is not decoded to the end
+		 */
+		public void abort(){
+			if (block != null) block.release();
+			block = null;
+		}
+
+		/**
+		 * @return int - offset of the invalid character found, -1 if none was found
+		 */
+		public int invalidOffset(){
+			return invalid;
+		}
+
+		private boolean fail(){
+			invalid = offset;
+			return false;
+		}
+
+		private void ensure(int bytes){
+			if (target.limit() - length >= bytes) return;
+			long needed = (long) length + bytes;
+			StorageBlock bigger = storage.allocate((int) Math.min(Integer.MAX_VALUE - 8,
+					Math.max(Math.min(2L * target.limit(), maxLength), needed)));
+			ByteBuffer written = target.duplicate();
+			written.position(0).limit(length);
+			bigger.buffer().duplicate().put(written);
+			block.release();
+			block = bigger;
+			target = bigger.buffer();
+		}
+	}
+
+	private Base64Codec(){}
+
+	/**
+	 * Method to validate an input without decoding it
+	 * @param input - Base64 text
+	 * @return int - offset of the first invalid character (the start of the incomplete
+	 *  last group if the length is not a multiple of 4), -1 if the input is valid
+	 */
+	public static int invalidOffset(CharSequence input){
+		return decodeInto(input, null);
+	}
+
+	/**
+	 * @param input - Base64 text, its length a multiple of 4
+	 * @return int - number of decoded bytes
+	 */
+	public static int decodedLength(CharSequence input){
+		return input.length() / 4 * 3 - padding(input);
+	}
+
+	/**
+	 * Method to decode an input into a block of the storage
+	 * @param input - Base64 text
+	 * @param storage - where the block is allocated
+	 * @return StorageBlock - block holding the decoded bytes, owned by the caller
+	 * @throws InvalidBase64Exception - if the input is not strict Base64 (nothing is kept allocated)
+	 */
+	public static StorageBlock decode(CharSequence input, PayloadStorage storage){
+		if (input.length() % 4 != 0) throw new InvalidBase64Exception(invalidOffset(input));
+		StorageBlock block = storage.allocate(decodedLength(input));
+		int invalid;
+		try {
+			invalid = decodeInto(input, block.buffer());
+		} catch (RuntimeException e) {
+			block.release();
+			throw e;
+		}
+		if (invalid >= 0) {
+			block.release();
+			throw new InvalidBase64Exception(invalid);
+		}
+		return block;
+	}
+
+	/**
+	 * Method to decode an input on the heap
+	 * @param input - Base64 text
+	 * @return byte[] - decoded bytes
+	 * @throws InvalidBase64Exception - if the input is not strict Base64
+	 */
+	public static byte[] decode(CharSequence input){
+		if (input.length() % 4 != 0) throw new InvalidBase64Exception(invalidOffset(input));
+		byte[] decoded = new byte[decodedLength(input)];
+		int invalid = decodeInto(input, ByteBuffer.wrap(decoded));
+		if (invalid >= 0) throw new InvalidBase64Exception(invalid);
+		return decoded;
+	}
+
+	/**
+	 * Method to validate and decode in one pass
+	 * @param input - Base64 text
+	 * @param target - buffer of decodedLength bytes written from index zero, null to only validate
+	 * @return int - offset of the first invalid character, -1 if the input is valid
+	 */
+	private static int decodeInto(CharSequence input, ByteBuffer target){
+		int length = input.length();
+		int padding = padding(input);
+		//groups of 4 characters without padding
+		int full = length % 4 != 0 ? length - length % 4 : padding > 0 ? length - 4 : length;
+		int o = 0;
+		for (int i = 0; i < full; i += 4, o += 3) {
+			char c0 = input.charAt(i), c1 = input.charAt(i + 1), c2 = input.charAt(i + 2), c3 = input.charAt(i + 3);
+			if ((c0 | c1 | c2 | c3) >= DECODE.length) return invalid(input, i, i + 4);
+			//any character out of the alphabet makes the whole group negative
+			int bits = DECODE[c0] << 18 | DECODE[c1] << 12 | DECODE[c2] << 6 | DECODE[c3];
+			if (bits < 0) return invalid(input, i, i + 4);
+			if (target != null) {
+				target.put(o, (byte) (bits >> 16));
+				target.put(o + 1, (byte) (bits >> 8));
+				target.put(o + 2, (byte) bits);
+			}
+		}
+		if (length % 4 != 0) return full;
+		if (padding == 0) return -1;
+
+		//last group, 2 or 3 characters followed by the padding
+		int i = full;
+		char c0 = input.charAt(i), c1 = input.charAt(i + 1), c2 = padding == 1 ? input.charAt(i + 2) : ALPHABET.charAt(0);
+		if ((c0 | c1 | c2) >= DECODE.length) return invalid(input, i, length - padding);
+		int bits = DECODE[c0] << 18 | DECODE[c1] << 12 | DECODE[c2] << 6;
+		if (bits < 0) return invalid(input, i, length - padding);
+		//bits past the last decoded byte must be zero
+		if (padding == 2 && (bits & 0xffff) != 0) return i + 1;
+		if (padding == 1 && (bits & 0xff) != 0) return i + 2;
+		if (target != null) {
+			target.put(o, (byte) (bits >> 16));
+			if (padding == 1) target.put(o + 1, (byte) (bits >> 8));
+		}
+		return -1;
+	}
+
+	/**
+	 * @return int - number of padding characters ending an input of valid length (0 to 2)
+	 */
+	private static int padding(CharSequence input){
+		int length = input.length();
+		if (length == 0 || length % 4 != 0 || input.charAt(length - 1) != PAD) return 0;
+		return input.charAt(length - 2) == PAD ? 2 : 1;
+	}
+
+	/**
+	 * @return int - offset of the first character of [from, to) out of the alphabet
+	 */
+	private static int invalid(CharSequence input, int from, int to){
+		for (int i = from; i < to; i++) {
+			char c = input.charAt(i);
+			if (c >= DECODE.length || DECODE[c] < 0) return i;
+		}
+		return to;
+	}
+}
@@ -0,0 +1,97 @@
+package services;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.typesafe.config.Config;
+
+import services.storage.PayloadStorage;
+import services.storage.StorageBlock;
+
+/**
+ *******************************************************************************
+ *Class responsible to keep the named baselines, inputs decoded once and 
+ *compared with many candidates. Baselines are kept by the same 
+ *PayloadStorage as the inputs of the ids and read from their shared 
+ *buffer, retained while a comparison reads them. They are kept in memory 
+ *only, the journal records inputs by id and side 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+@Singleton
+public class BaselineStore {
+
+	private final ConcurrentHashMap<String, Payload> baselines = new ConcurrentHashMap<String, Payload>();
+	private final AtomicLong versions = new AtomicLong();
+	private final PayloadStorage storage;
+	private final int blockSize;
+
+	@Inject
+	public BaselineStore(PayloadStorage storage, Config config){
+		this(storage, config.getBytes("diff.merkle.blockSize").intValue());
+	}
+
+	/**
+	 * @param storage - where the decoded baselines are kept
+	 * @param blockSize - size of the blocks hashed by the Merkle tree of each baseline 
+	 *                    (the same as the inputs of the ids, so their trees can be compared)
+	 */
+	public BaselineStore(PayloadStorage storage, int blockSize){
+		this.storage = storage;
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Method to store a baseline, replacing the previous one of the same name
+	 * @param name - name of the baseline
+	 * @param decoded - decoded input, owned by the store from now on
+	 * @return boolean - true if the baseline was created, false if it was replaced
+	 */
+	public boolean put(String name, byte[] decoded){
+		return put(name, storage.store(decoded));
+	}
+
+	/**
+	 * Method to store a baseline already decoded into a block of the storage
+	 * @param name - name of the baseline
+	 * @param block - block of the storage holding the decoded input, owned by the store from now on
+	 * @return boolean - true if the baseline was created, false if it was replaced
+	 */
+	public boolean put(String name, StorageBlock block){
+		Payload payload = new Payload(block, versions.incrementAndGet(), blockSize);
+		Payload previous = baselines.put(name, payload);
+		if (previous == null) return true;
+		previous.release();
+		return false;
+	}
+
+	/**
+	 * Method to get a baseline to be read, it must be released after the read
+	 * @param name - name of the baseline
+	 * @return Payload - retained baseline, null if there is none with the name
+	 */
+	public Payload acquire(String name){
+		while (true) {
+			Payload payload = baselines.get(name);
+			//retain only fails if the payload was replaced meanwhile
+			if (payload == null || payload.retain()) return payload;
+		}
+	}
+
+	/**
+	 * Method to drop a baseline, its bytes are freed once the comparisons reading it are done
+	 * @param name - name of the baseline
+	 * @return boolean - true if there was a baseline with the name
+	 */
+	public boolean remove(String name){
+		Payload previous = baselines.remove(name);
+		if (previous == null) return false;
+		previous.release();
+		return true;
+	}
+}
@@ -0,0 +1,172 @@
+package services;
+
+import java.util.Arrays;
+
+/**
+ *******************************************************************************
+ *Class responsible to hold a delta rebuilding the right input from blocks 
+ *of the left one: copies (bytes found on the left, possibly moved) and 
+ *inserts (bytes only found on the right), in right input order, kept in 
+ *primitive arrays 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public class BlockDelta {
+
+	public enum Op {
+		COPY, INSERT;
+
+		/**
+		 * @return String - operation name as written in the results
+		 */
+		public String label(){
+			return name().toLowerCase();
+		}
+	}
+
+	private static final Op[] OPS = Op.values();
+
+	private final int blockSize;
+	private byte[] ops = new byte[16];
+	private int[] leftOffsets = new int[16];
+	private int[] rightOffsets = new int[16];
+	private int[] lengths = new int[16];
+	private int size;
+
+	/**
+	 * @param blockSize - size of the blocks the left input was indexed with
+	 */
+	public BlockDelta(int blockSize){
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Method to append a copy, merged into the previous copy when both continue it
+	 * @param leftOffset - where the bytes are on the left input
+	 * @param rightOffset - where the bytes go on the right input
+	 * @param length - how many bytes
+	 */
+	public void copy(int leftOffset, int rightOffset, int length){
+		if (length <= 0) return;
+		int last = size - 1;
+		if (last >= 0 && ops[last] == Op.COPY.ordinal()
+				&& leftOffsets[last] + lengths[last] == leftOffset && rightOffsets[last] + lengths[last] == rightOffset) {
+			lengths[last] += length;
+			return;
+		}
+		add(Op.COPY, leftOffset, rightOffset, length);
+	}
+
+	/**
+	 * Method to append an insert, merged into the previous insert
+	 * @param rightOffset - where the bytes are on the right input
+	 * @param length - how many bytes
+	 */
+	public void insert(int rightOffset, int length){
+		if (length <= 0) return;
+		if (size > 0 && ops[size-1] == Op.INSERT.ordinal()) {
+			lengths[size-1] += length;
+			return;
+		}
+		add(Op.INSERT, -1, rightOffset, length);
+	}
+
+	/**
+	 * Method to grow the last operation, used when a copy matches beyond its last block
+	 * @param length - how many bytes to add
+	 */
+	void extendLast(int length){
+		lengths[size-1] += length;
+	}
+
+	private void add(Op op, int leftOffset, int rightOffset, int length){
+		if (size == ops.length) {
+			int capacity = size + (size >> 1) + 1;
+			ops = Arrays.copyOf(ops, capacity);
+			leftOffsets = Arrays.copyOf(leftOffsets, capacity);
+			rightOffsets = Arrays.copyOf(rightOffsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+		}
+		ops[size] = (byte) op.ordinal();
+		leftOffsets[size] = leftOffset;
+		rightOffsets[size] = rightOffset;
+		lengths[size] = length;
+		size++;
+	}
+
+	/**
+	 * @return int - size of the blocks the left input was indexed with
+	 */
+	public int blockSize(){
+		return blockSize;
+	}
+
+	/**
+	 * @return int - number of operations
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @param index - operation index
+	 * @return Op - type of the operation
+	 */
+	public Op op(int index){
+		return OPS[ops[index]];
+	}
+
+	/**
+	 * @param index - operation index
+	 * @return int - position of a copy on the left input, -1 for inserts
+	 */
+	public int leftOffset(int index){
+		return leftOffsets[index];
+	}
+
+	/**
+	 * @param index - operation index
+	 * @return int - position of the operation on the right input
+	 */
+	public int rightOffset(int index){
+		return rightOffsets[index];
+	}
+
+	/**
+	 * @param index - operation index
+	 * @return int - how many bytes the operation covers
+	 */
+	public int length(int index){
+		return lengths[index];
+	}
+
+	/**
+	 * @param op - type of the operations
+	 * @return long - number of bytes covered by the operations of the type
+	 */
+	public long total(Op op){
+		long total = 0;
+		for (int i = 0; i < size; i++) {
+			if (ops[i] == op.ordinal()) total += lengths[i];
+		}
+		return total;
+	}
+
+	/**
+	 * @return String - operations as "copy(leftOffset, rightOffset, length)" and "insert(rightOffset, length)"
+	 */
+	@Override
+	public String toString(){
+		StringBuilder sb = new StringBuilder(2 + size * 24);
+		sb.append('[');
+		for (int i = 0; i < size; i++) {
+			if (i > 0) sb.append(", ");
+			sb.append(op(i).label()).append('(');
+			if (ops[i] == Op.COPY.ordinal()) sb.append(leftOffsets[i]).append(", ");
+			sb.append(rightOffsets[i]).append(", ").append(lengths[i]).append(')');
+		}
+		return sb.append(']').toString();
+	}
+}
@@ -0,0 +1,179 @@
+package services;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.typesafe.config.Config;
+
+/**
+ *******************************************************************************
+ *Class responsible to compute a copy/insert delta between inputs of any 
+ *sizes, as rsync does: the left input is indexed in fixed size blocks by a 
+ *weak rolling checksum and a strong hash (Fingerprint), then a window slides 
+ *over the right input one byte at a time, rolling the checksum, and jumps a 
+ *whole block on every match. Runs in about linear time with memory 
+ *proportional to the number of left blocks (diff.blocks.blockSize) 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+@Singleton
+public class BlockDiff {
+
+	//blocks of a bucket compared to a window, bounds the time spent on a run of equal blocks
+	private static final int MAX_CHAIN = 64;
+
+	private final int blockSize;
+
+	@Inject
+	public BlockDiff(Config config){
+		this(config.getBytes("diff.blocks.blockSize").intValue());
+	}
+
+	/**
+	 * @param blockSize - size of the indexed blocks, smaller blocks find more matches but use more memory
+	 */
+	public BlockDiff(int blockSize){
+		this.blockSize = Math.max(1, blockSize);
+	}
+
+	/**
+	 * Method to compute the delta rebuilding the right input from the left one
+	 * @param left - left buffer, from zero to limit
+	 * @param right - right buffer, from zero to limit
+	 * @return BlockDelta - copies and inserts, in right input order
+	 */
+	public BlockDelta diff(ByteBuffer left, ByteBuffer right){
+		BlockIndex index = new BlockIndex(left);
+		BlockDelta delta = new BlockDelta(blockSize);
+		int length = right.limit();
+		int inserted = 0;
+		int position = 0;
+		int expected = -1;
+		int weak = length >= blockSize ? checksum(right, 0) : 0;
+		while (position + blockSize <= length) {
+			int block = index.find(weak, right, position, expected);
+			if (block >= 0) {
+				delta.insert(inserted, position - inserted);
+				delta.copy(block * blockSize, position, blockSize);
+				position += blockSize;
+				inserted = position;
+				expected = block + 1;
+				if (position + blockSize <= length) weak = checksum(right, position);
+				continue;
+			}
+			//slide the window one byte
+			if (position + blockSize < length) weak = roll(weak, right.get(position), right.get(position + blockSize));
+			position++;
+		}
+
+		//a copy reaching the last full block may go on over the unindexed tail of the left input
+		int last = delta.size() - 1;
+		if (last >= 0 && delta.op(last) == BlockDelta.Op.COPY && inserted < length) {
+			int from = delta.leftOffset(last) + delta.length(last);
+			int matched = 0;
+			while (inserted + matched < length && from + matched < left.limit()
+					&& left.get(from + matched) == right.get(inserted + matched)) {
+				matched++;
+			}
+			delta.extendLast(matched);
+			inserted += matched;
+		}
+		delta.insert(inserted, length - inserted);
+		return delta;
+	}
+
+	/**
+	 * Weak checksum of a window (the rsync one): the sum of the bytes and the 
+	 * sum weighted by the distance to the window end, 16 bits each
+	 */
+	private int checksum(ByteBuffer data, int from){
+		int a = 0, b = 0;
+		for (int i = 0; i < blockSize; i++) {
+			int value = data.get(from + i) & 0xff;
+			a += value;
+			b += (blockSize - i) * value;
+		}
+		return (a & 0xffff) | (b << 16);
+	}
+
+	/**
+	 * Checksum of the window moved one byte forward
+	 */
+	private int roll(int weak, byte out, byte in){
+		int a = weak & 0xffff;
+		int b = weak >>> 16;
+		a = (a - (out & 0xff) + (in & 0xff)) & 0xffff;
+		b = (b - blockSize * (out & 0xff) + a) & 0xffff;
+		return a | (b << 16);
+	}
+
+	/**
+	 * Blocks of the left input by weak checksum (open hash in primitive arrays)
+	 */
+	private final class BlockIndex {
+
+		private final ByteBuffer left;
+		private final int[] weaks;
+		private final long[] highs;
+		private final long[] lows;
+		//first block of each bucket and next block of the same bucket, -1 ends the chain
+		private final int[] heads;
+		private final int[] next;
+		private final int mask;
+
+		BlockIndex(ByteBuffer left){
+			this.left = left;
+			int blocks = left.limit() / blockSize;
+			this.weaks = new int[blocks];
+			this.highs = new long[blocks];
+			this.lows = new long[blocks];
+			this.next = new int[blocks];
+			int buckets = Integer.highestOneBit(Math.max(1, blocks) * 2 - 1) << 1;
+			this.heads = new int[buckets];
+			this.mask = buckets - 1;
+			Arrays.fill(heads, -1);
+			//indexed backwards so each chain lists the earliest block first
+			for (int block = blocks - 1; block >= 0; block--) {
+				int weak = checksum(left, block * blockSize);
+				Fingerprint strong = Fingerprint.of(left, block * blockSize, blockSize);
+				weaks[block] = weak;
+				highs[block] = strong.high();
+				lows[block] = strong.low();
+				int bucket = bucket(weak);
+				next[block] = heads[bucket];
+				heads[bucket] = block;
+			}
+		}
+
+		/**
+		 * Block equal to the window, the expected one if it matches so consecutive copies merge, 
+		 * otherwise the first match of at most MAX_CHAIN blocks of its bucket (repetitive inputs 
+		 * put most blocks in the same chain)
+		 * @return int - matching block, -1 if none
+		 */
+		int find(int weak, ByteBuffer right, int from, int expected){
+			Fingerprint strong = null;
+			if (expected >= 0 && expected < weaks.length && weaks[expected] == weak) {
+				strong = Fingerprint.of(right, from, blockSize);
+				if (highs[expected] == strong.high() && lows[expected] == strong.low()) return expected;
+			}
+			int block = heads[bucket(weak)];
+			for (int walked = 0; block >= 0 && walked < MAX_CHAIN; block = next[block], walked++) {
+				if (weaks[block] != weak) continue;
+				if (strong == null) strong = Fingerprint.of(right, from, blockSize);
+				if (highs[block] == strong.high() && lows[block] == strong.low()) return block;
+			}
+			return -1;
+		}
+
+		private int bucket(int weak){
+			int mixed = weak * 0x9E3779B1;
+			return (mixed ^ (mixed >>> 16)) & mask;
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package services;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.typesafe.config.Config;
+
+import akka.NotUsed;
+import akka.japi.Pair;
+import akka.stream.Materializer;
+import akka.stream.OverflowStrategy;
+import akka.stream.javadsl.BroadcastHub;
+import akka.stream.javadsl.Keep;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.SourceQueueWithComplete;
+import play.libs.Json;
+
+/**
+ *******************************************************************************
+ *Class responsible to push the diff summary of an id to its subscribers
+ *whenever one of its inputs changes. Summaries are only computed for ids
+ *with subscribers, at most one at a time per id (changes made meanwhile
+ *are coalesced and published after it, so the last summary of an id is
+ *never older than the one before it), on the diff executor, and published
+ *through a single BroadcastHub shared by all the subscribers. Each subscriber conflates the
+ *summaries it has not sent yet to the latest one per id, so a slow client
+ *holds at most one summary per id it follows and never slows the hub down.
+ *Publishing never blocks: when the hub buffer is full the oldest summary
+ *is dropped
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+@Singleton
+public class DiffEvents {
+
+	private final DiffStore diffStore;
+	private final DiffPrecompute precompute;
+	private final DiffExecutor diffExecutor;
+	private final SourceQueueWithComplete<ObjectNode> queue;
+	private final Source<ObjectNode, NotUsed> hub;
+	//number of subscribers of each id, and ids whose summary is waiting to be computed (true)
+	//or being published (false, until changed again)
+	private final ConcurrentHashMap<String, Integer> subscribers = new ConcurrentHashMap<String, Integer>();
+	private final ConcurrentHashMap<String, Boolean> scheduled = new ConcurrentHashMap<String, Boolean>();
+
+	@Inject
+	public DiffEvents(DiffStore diffStore, DiffPrecompute precompute, DiffExecutor diffExecutor,
+			Materializer materializer, Config config){
+		this(diffStore, precompute, diffExecutor, materializer, config.getInt("diff.events.bufferSize"));
+	}
+
+	/**
+	 * @param diffStore - where the inputs are kept
+	 * @param precompute - computation of the diff results
+	 * @param diffExecutor - where the summaries are computed
+	 * @param materializer - runs the hub
+	 * @param bufferSize - summaries buffered by the hub (rounded up to a power of two)
+	 */
+	public DiffEvents(DiffStore diffStore, DiffPrecompute precompute, DiffExecutor diffExecutor,
+			Materializer materializer, int bufferSize){
+		this.diffStore = diffStore;
+		this.precompute = precompute;
+		this.diffExecutor = diffExecutor;
+		int size = Integer.highestOneBit(Math.max(2, bufferSize) * 2 - 1);
+		Pair<SourceQueueWithComplete<ObjectNode>, Source<ObjectNode, NotUsed>> running =
+				Source.<ObjectNode>queue(size, OverflowStrategy.dropHead())
+						.toMat(BroadcastHub.of(ObjectNode.class, size), Keep.both())
+						.run(materializer);
+		this.queue = running.first();
+		this.hub = running.second();
+	}
+
+	/**
+	 * Method to follow the summaries of some ids
+	 * @param ids - ids to be followed
+	 * @return Source<ObjectNode, NotUsed> - summaries of the ids as they change,
+	 *         {"id", "leftVersion", "rightVersion", "result", "sizeDifference", "ranges", "bytes"}
+	 */
+	public Source<ObjectNode, NotUsed> subscribe(Set<String> ids){
+		Set<String> followed = new HashSet<String>(ids);
+		return Source.lazily(() -> {
+			for (String id : followed) subscribers.merge(id, 1, Integer::sum);
+			return hub.filter(event -> followed.contains(event.get("id").asText()))
+					//unsent summaries are replaced by newer ones of the same id
+					.conflateWithSeed(event -> {
+						LinkedHashMap<String, ObjectNode> latest = new LinkedHashMap<String, ObjectNode>();
+						latest.put(event.get("id").asText(), event);
+						return latest;
+					}, (latest, event) -> {
+						latest.put(event.get("id").asText(), event);
+						return latest;
+					})
+					.mapConcat(latest -> new ArrayList<ObjectNode>(latest.values()))
+					.watchTermination((notUsed, done) -> {
+						done.whenComplete((ignored, failure) -> {
+							for (String id : followed) subscribers.computeIfPresent(id, (key, count) -> count > 1 ? count - 1 : null);
+						});
+						return notUsed;
+					});
+		}).mapMaterializedValue(future -> NotUsed.getInstance());
+	}
+
+	/**
+	 * Method to publish the summary of an id after one of its inputs changed,
+	 * does nothing if the id has no subscribers or does not have both inputs
+	 * @param id - unique :id used to localized the input
+	 */
+	public void changed(String id){
+		if (!subscribers.containsKey(id)) return;
+		//a summary already waiting or being published is computed again when done
+		if (scheduled.put(id, Boolean.TRUE) != null) return;
+		schedule(id);
+	}
+
+	/**
+	 * @return int - number of ids with subscribers
+	 */
+	public int subscribed(){
+		return subscribers.size();
+	}
+
+	private void schedule(String id){
+		try {
+			diffExecutor.supply(() -> {
+				//changes from now on mark the id again, and are published by the next run
+				scheduled.put(id, Boolean.FALSE);
+				try {
+					publish(id);
+				} finally {
+					if (!scheduled.remove(id, Boolean.FALSE)) schedule(id);
+				}
+				return null;
+			});
+		} catch (RejectedExecutionException e) {
+			//the next change publishes the summary
+			scheduled.remove(id);
+		}
+	}
+
+	private void publish(String id){
+		Payload left = diffStore.acquire(id, Side.LEFT);
+		Payload right = diffStore.acquire(id, Side.RIGHT);
+		try {
+			if (left == null || right == null) return;
+			DiffResult result = precompute.result(id, left, right);
+			DiffRanges ranges = result.ranges();
+			ObjectNode event = Json.newObject();
+			event.put("id", id);
+			event.put("leftVersion", left.version());
+			event.put("rightVersion", right.version());
+			event.put("result", result.status().message());
+			event.put("sizeDifference", right.length() - left.length());
+			event.put("ranges", ranges == null ? 0 : ranges.size());
+			event.put("bytes", ranges == null ? 0 : ranges.totalLength());
+			queue.offer(event);
+		} finally {
+			if (left != null) left.release();
+			if (right != null) right.release();
+		}
+	}
+}
@@ -0,0 +1,126 @@
+package services;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.typesafe.config.Config;
+
+import play.inject.ApplicationLifecycle;
+import play.libs.concurrent.HttpExecution;
+
+/**
+ *******************************************************************************
+ *Class responsible to run the CPU heavy work of the requests (decoding and 
+ *diffing) off the Play dispatcher, on a fixed pool with a bounded queue 
+ *(settings under diff.executor). Work submitted while the queue is full is 
+ *rejected at once instead of waiting, so the caller can shed the load 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+@Singleton
+public class DiffExecutor {
+
+	private final ThreadPoolExecutor executor;
+	private final long retryAfterSeconds;
+	private final AtomicLong rejected = new AtomicLong();
+
+	@Inject
+	public DiffExecutor(Config config, ApplicationLifecycle lifecycle){
+		this(config.getInt("diff.executor.threads"),
+				config.getInt("diff.executor.queueSize"),
+				config.getDuration("diff.executor.retryAfter", TimeUnit.SECONDS));
+		lifecycle.addStopHook(() -> {
+			shutdown();
+			return CompletableFuture.completedFuture(null);
+		});
+	}
+
+	/**
+	 * @param threads - number of worker threads, zero or less to use one per available processor
+	 * @param queueSize - maximum number of tasks waiting for a worker
+	 * @param retryAfterSeconds - delay suggested to rejected clients
+	 */
+	public DiffExecutor(int threads, int queueSize, long retryAfterSeconds){
+		this("diff-worker-", threads, queueSize, retryAfterSeconds);
+	}
+
+	/**
+	 * @param name - prefix of the names of the worker threads
+	 * @param threads - number of worker threads, zero or less to use one per available processor
+	 * @param queueSize - maximum number of tasks waiting for a worker
+	 * @param retryAfterSeconds - delay suggested to rejected clients
+	 */
+	protected DiffExecutor(String name, int threads, int queueSize, long retryAfterSeconds){
+		int size = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		AtomicInteger count = new AtomicInteger();
+		this.executor = new ThreadPoolExecutor(size, size, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+				runnable -> {
+					Thread thread = new Thread(runnable, name + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				},
+				new ThreadPoolExecutor.AbortPolicy());
+		this.retryAfterSeconds = retryAfterSeconds;
+	}
+
+	/**
+	 * Method to run a task on the pool, keeping the HTTP context of the calling thread
+	 * @param task - work to be done
+	 * @return CompletionStage<T> - result of the task
+	 * @throws RejectedExecutionException - if the queue is full
+	 */
+	public <T> CompletionStage<T> supply(Supplier<T> task){
+		try {
+			return CompletableFuture.supplyAsync(task, HttpExecution.fromThread(executor));
+		} catch (RejectedExecutionException e) {
+			rejected.incrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return long - delay (in seconds) suggested to rejected clients
+	 */
+	public long retryAfterSeconds(){
+		return retryAfterSeconds;
+	}
+
+	/**
+	 * @return long - tasks rejected because the queue was full
+	 */
+	public long rejected(){
+		return rejected.get();
+	}
+
+	/**
+	 * @return int - tasks waiting for a worker
+	 */
+	public int queued(){
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Method to stop the worker threads
+	 */
+	public void shutdown(){
+		executor.shutdown();
+		try {
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package services;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+
+/**
+ *******************************************************************************
+ *Window of the ranges of a diff result: the ranges overlapping the bytes 
+ *[byteStart, byteEnd) (cut to the window), from the range index from and 
+ *at most limit of them. Ranges are looked up with binary searches on the 
+ *sorted arrays of the result, and the next page is given as a cursor 
+ *token holding the window and the versions of the inputs, so a stale 
+ *cursor is detected without computing the diff again 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public final class DiffPage {
+
+	private static final int CURSOR_BYTES = 4 * 8 + 2 * 4;
+
+	private final long leftVersion;
+	private final long rightVersion;
+	private final long byteStart;
+	private final long byteEnd;
+	private final int from;
+	private final int limit;
+
+	/**
+	 * @param leftVersion - version of the left input the page is taken from
+	 * @param rightVersion - version of the right input the page is taken from
+	 * @param byteStart - first byte of the window
+	 * @param byteEnd - end of the window (exclusive)
+	 * @param from - index of the first range of the page, counted inside the window
+	 * @param limit - maximum number of ranges in the page
+	 */
+	public DiffPage(long leftVersion, long rightVersion, long byteStart, long byteEnd, int from, int limit){
+		if (byteStart < 0 || byteEnd < byteStart || from < 0 || limit <= 0) {
+			throw new IllegalArgumentException("Invalid diff page");
+		}
+		this.leftVersion = leftVersion;
+		this.rightVersion = rightVersion;
+		this.byteStart = byteStart;
+		this.byteEnd = byteEnd;
+		this.from = from;
+		this.limit = limit;
+	}
+
+	/**
+	 * @param cursor - token returned by cursor()
+	 * @return DiffPage - the page of the token, null if the token is malformed
+	 */
+	public static DiffPage fromCursor(String cursor){
+		try {
+			byte[] decoded = Base64.getUrlDecoder().decode(cursor);
+			if (decoded.length != CURSOR_BYTES) return null;
+			ByteBuffer buffer = ByteBuffer.wrap(decoded);
+			return new DiffPage(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getInt());
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return String - url safe token of the page
+	 */
+	public String cursor(){
+		ByteBuffer buffer = ByteBuffer.allocate(CURSOR_BYTES);
+		buffer.putLong(leftVersion).putLong(rightVersion).putLong(byteStart).putLong(byteEnd).putInt(from).putInt(limit);
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(buffer.array());
+	}
+
+	/**
+	 * @param leftVersion - version of the current left input
+	 * @param rightVersion - version of the current right input
+	 * @return boolean - true if the page was taken from these versions
+	 */
+	public boolean matches(long leftVersion, long rightVersion){
+		return this.leftVersion == leftVersion && this.rightVersion == rightVersion;
+	}
+
+	/**
+	 * @param ranges - all ranges of the result
+	 * @return int - number of ranges overlapping the window
+	 */
+	public int total(DiffRanges ranges){
+		return end(ranges) - start(ranges);
+	}
+
+	/**
+	 * @param ranges - all ranges of the result
+	 * @return DiffRanges - ranges of the page, cut to the window
+	 */
+	public DiffRanges select(DiffRanges ranges){
+		int start = start(ranges);
+		int first = (int) Math.min(end(ranges), (long) start + from);
+		int last = (int) Math.min(end(ranges), (long) first + limit);
+		return ranges.slice(first, last, byteStart, byteEnd);
+	}
+
+	/**
+	 * @param ranges - all ranges of the result
+	 * @return DiffPage - the following page, null if this is the last one
+	 */
+	public DiffPage next(DiffRanges ranges){
+		if ((long) from + limit >= total(ranges)) return null;
+		return new DiffPage(leftVersion, rightVersion, byteStart, byteEnd, from + limit, limit);
+	}
+
+	private int start(DiffRanges ranges){
+		return ranges.firstEndingAfter(byteStart);
+	}
+
+	private int end(DiffRanges ranges){
+		return ranges.firstStartingAt(byteEnd);
+	}
+}
@@ -0,0 +1,227 @@
+package services;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.typesafe.config.Config;
+
+import play.inject.ApplicationLifecycle;
+
+/**
+ *******************************************************************************
+ *Class responsible to compute the diff result of an id once per versions
+ *of its inputs. A request finding the result being computed for the same
+ *versions waits for it instead of computing it again. In eager mode
+ *(diff.eager.enabled) every change leaving an id with both inputs
+ *schedules its result on a background pool, so the next GET finds it
+ *cached. Changes arriving while the id is still waiting to be computed
+ *are coalesced into that computation, which reads the latest inputs
+ *when it starts
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+@Singleton
+public class DiffPrecompute {
+
+	private final DiffStore diffStore;
+	private final DiffResultCache diffCache;
+	private final ParallelDiff parallelDiff;
+	private final ThreadPoolExecutor executor;
+	//ids waiting for a background computation, and results being computed
+	private final ConcurrentHashMap<String, Boolean> scheduled = new ConcurrentHashMap<String, Boolean>();
+	private final ConcurrentHashMap<String, Computation> running = new ConcurrentHashMap<String, Computation>();
+
+	private final AtomicLong computed = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong joined = new AtomicLong();
+
+	/**
+	 * Result being computed for the versions of the inputs of an id
+	 */
+	private static final class Computation {
+
+		private final long leftVersion;
+		private final long rightVersion;
+		private final CompletableFuture<DiffResult> result = new CompletableFuture<DiffResult>();
+
+		Computation(long leftVersion, long rightVersion){
+			this.leftVersion = leftVersion;
+			this.rightVersion = rightVersion;
+		}
+	}
+
+	@Inject
+	public DiffPrecompute(DiffStore diffStore, DiffResultCache diffCache, ParallelDiff parallelDiff,
+			Config config, ApplicationLifecycle lifecycle){
+		this(diffStore, diffCache, parallelDiff, config.getBoolean("diff.eager.enabled") ? config.getInt("diff.eager.threads") : 0);
+		lifecycle.addStopHook(() -> {
+			shutdown();
+			return CompletableFuture.completedFuture(null);
+		});
+	}
+
+	/**
+	 * @param diffStore - where the inputs are kept
+	 * @param diffCache - where the results are kept
+	 * @param parallelDiff - comparison of same size inputs
+	 * @param threads - number of background threads, zero or less to compute only on demand
+	 */
+	public DiffPrecompute(DiffStore diffStore, DiffResultCache diffCache, ParallelDiff parallelDiff, int threads){
+		this.diffStore = diffStore;
+		this.diffCache = diffCache;
+		this.parallelDiff = parallelDiff;
+		if (threads > 0) {
+			AtomicInteger count = new AtomicInteger();
+			//at most one waiting task per id, so the queue is bounded by the number of ids
+			this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					runnable -> {
+						Thread thread = new Thread(runnable, "diff-eager-" + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					});
+		} else {
+			this.executor = null;
+		}
+	}
+
+	/**
+	 * @return boolean - true if results are computed in the background when the inputs change
+	 */
+	public boolean eager(){
+		return executor != null;
+	}
+
+	/**
+	 * Method to get the result of the inputs of an id, from the cache, from the computation
+	 * in progress for the same versions, or computed on the calling thread
+	 * @param id - unique :id used to localized the input
+	 * @param left - retained left input
+	 * @param right - retained right input
+	 * @return DiffResult - result of the inputs
+	 */
+	public DiffResult result(String id, Payload left, Payload right){
+		DiffResult result = diffCache.get(id, left.version(), right.version());
+		if (result != null) return result;
+		Computation current = running.get(id);
+		if (current != null && current.leftVersion == left.version() && current.rightVersion == right.version()) {
+			joined.incrementAndGet();
+			return current.result.join();
+		}
+		return compute(id, left, right);
+	}
+
+	/**
+	 * Method to schedule the result of an id after one of its inputs changed,
+	 * does nothing unless eager or if the id does not have both inputs
+	 * @param id - unique :id used to localized the input
+	 */
+	public void schedule(String id){
+		if (executor == null) return;
+		DiffStore.Slot slot = diffStore.get(id);
+		if (slot == null || slot.get(Side.LEFT) == null || slot.get(Side.RIGHT) == null) return;
+		if (scheduled.putIfAbsent(id, Boolean.TRUE) != null) {
+			//the waiting computation will read this change
+			coalesced.incrementAndGet();
+			return;
+		}
+		executor.execute(() -> {
+			//changes from now on schedule the id again
+			scheduled.remove(id);
+			Payload left = diffStore.acquire(id, Side.LEFT);
+			Payload right = diffStore.acquire(id, Side.RIGHT);
+			try {
+				if (left != null && right != null && diffCache.peek(id, left.version(), right.version()) == null) {
+					compute(id, left, right);
+				}
+			} finally {
+				if (left != null) left.release();
+				if (right != null) right.release();
+			}
+		});
+	}
+
+	private DiffResult compute(String id, Payload left, Payload right){
+		Computation computation = new Computation(left.version(), right.version());
+		//only one computation per id is published, others for different versions are not waited for
+		boolean published = running.putIfAbsent(id, computation) == null;
+		try {
+			DiffResult result;
+			//sizes and fingerprints are known since the inputs were stored,
+			//bytes are only compared to confirm equal fingerprints
+			if (left.length() != right.length()) {
+				result = new DiffResult(DiffResult.Status.DIFFERENT_SIZES, null);
+			} else if (left.contentEquals(right)) {
+				result = new DiffResult(DiffResult.Status.EQUAL, null);
+			} else {
+				//identify offset and length of the differences, reading only the blocks with different hashes
+				try {
+					result = new DiffResult(DiffResult.Status.SAME_SIZE, parallelDiff.diff(left, right));
+				} catch (ParallelDiff.TooManyRangesException e) {
+					//cached as well, the comparison is not run again for the same versions
+					result = new DiffResult(DiffResult.Status.TOO_MANY_RANGES, null);
+				}
+			}
+			diffCache.put(id, left.version(), right.version(), result);
+			computed.incrementAndGet();
+			computation.result.complete(result);
+			return result;
+		} catch (RuntimeException | Error e) {
+			computation.result.completeExceptionally(e);
+			throw e;
+		} finally {
+			if (published) running.remove(id, computation);
+		}
+	}
+
+	/**
+	 * @return long - results computed (on demand or in the background)
+	 */
+	public long computed(){
+		return computed.get();
+	}
+
+	/**
+	 * @return long - changes merged into a computation already scheduled
+	 */
+	public long coalesced(){
+		return coalesced.get();
+	}
+
+	/**
+	 * @return long - requests that waited for a computation in progress
+	 */
+	public long joined(){
+		return joined.get();
+	}
+
+	/**
+	 * @return int - ids waiting for a background computation
+	 */
+	public int pending(){
+		return scheduled.size();
+	}
+
+	/**
+	 * Method to stop the background threads, waiting computations are dropped
+	 */
+	public void shutdown(){
+		if (executor == null) return;
+		executor.shutdownNow();
+		try {
+			executor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,238 @@
+package services;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ *******************************************************************************
+ *Class responsible to hold the differences found by the diff engine
+ *(offset and length of each run of different bytes) in primitive arrays
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public class DiffRanges {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private int[] offsets;
+	private int[] lengths;
+	private int size;
+
+	public DiffRanges(){
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * @param capacity - initial number of ranges that can be stored without growing
+	 */
+	public DiffRanges(int capacity){
+		this.offsets = new int[Math.max(capacity, 1)];
+		this.lengths = new int[Math.max(capacity, 1)];
+	}
+
+	/**
+	 * Method to append a range, ranges must be added in ascending offset order.
+	 * A range starting exactly where the previous one ends is merged into it
+	 * @param offset - offset of the first different byte
+	 * @param length - how many different bytes in sequence
+	 */
+	public void add(int offset, int length){
+		if (length <= 0) return;
+		if (size > 0 && offsets[size-1] + lengths[size-1] == offset) {
+			lengths[size-1] += length;
+			return;
+		}
+		if (size == offsets.length) {
+			int capacity = size + (size >> 1) + 1;
+			offsets = Arrays.copyOf(offsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+		}
+		offsets[size] = offset;
+		lengths[size] = length;
+		size++;
+	}
+
+	/**
+	 * Method to append all ranges of other (which must start after the last range of this one)
+	 * @param other - ranges to be appended
+	 */
+	public void addAll(DiffRanges other){
+		for (int i = 0; i < other.size; i++) {
+			add(other.offsets[i], other.lengths[i]);
+		}
+	}
+
+	/**
+	 * @return int - number of ranges
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @param index - range index
+	 * @return int - offset of the range
+	 */
+	public int offset(int index){
+		return offsets[index];
+	}
+
+	/**
+	 * @param index - range index
+	 * @return int - length of the range
+	 */
+	public int length(int index){
+		return lengths[index];
+	}
+
+	/**
+	 * Method to find the first range ending after a byte, with a binary search
+	 * @param position - byte offset
+	 * @return int - index of the first range whose last byte is at or after position, size if none
+	 */
+	public int firstEndingAfter(long position){
+		int low = 0, high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if ((long) offsets[mid] + lengths[mid] <= position) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Method to find the first range starting at or after a byte, with a binary search
+	 * @param position - byte offset
+	 * @return int - index of the first range whose offset is at or after position, size if none
+	 */
+	public int firstStartingAt(long position){
+		int low = 0, high = size;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (offsets[mid] < position) low = mid + 1;
+			else high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Method to copy the ranges from index to index, cut to a byte window
+	 * @param from - first range index (inclusive)
+	 * @param to - last range index (exclusive)
+	 * @param byteStart - first byte of the window, ranges starting before it are cut
+	 * @param byteEnd - end of the window (exclusive), ranges ending after it are cut
+	 * @return DiffRanges - the selected ranges
+	 */
+	public DiffRanges slice(int from, int to, long byteStart, long byteEnd){
+		DiffRanges slice = new DiffRanges(to - from);
+		for (int i = from; i < to; i++) {
+			long start = Math.max(offsets[i], byteStart);
+			long end = Math.min((long) offsets[i] + lengths[i], byteEnd);
+			slice.add((int) start, (int) (end - start));
+		}
+		return slice;
+	}
+
+	/**
+	 * Method to copy the ranges replacing the ones inside a byte window, ranges 
+	 * crossing the window keep their parts outside of it and are merged with the 
+	 * replacement ranges they touch
+	 * @param start - first byte of the window
+	 * @param end - end of the window (exclusive)
+	 * @param replacement - ranges of the window, all inside [start, end)
+	 * @return DiffRanges - the updated ranges
+	 */
+	public DiffRanges replace(long start, long end, DiffRanges replacement){
+		int first = firstEndingAfter(start);
+		int last = firstStartingAt(end);
+		DiffRanges replaced = new DiffRanges(first + replacement.size + (size - last) + 2);
+
+		//untouched ranges are copied at once, the ones at the window edges go through add to be merged
+		System.arraycopy(offsets, 0, replaced.offsets, 0, first);
+		System.arraycopy(lengths, 0, replaced.lengths, 0, first);
+		replaced.size = first;
+		if (first < last && offsets[first] < start) {
+			replaced.add(offsets[first], (int) (start - offsets[first]));
+		}
+		replaced.addAll(replacement);
+		if (first < last && (long) offsets[last-1] + lengths[last-1] > end) {
+			replaced.add((int) end, (int) ((long) offsets[last-1] + lengths[last-1] - end));
+		}
+		if (last < size) {
+			replaced.add(offsets[last], lengths[last]);
+			int rest = size - last - 1;
+			System.arraycopy(offsets, last + 1, replaced.offsets, replaced.size, rest);
+			System.arraycopy(lengths, last + 1, replaced.lengths, replaced.size, rest);
+			replaced.size += rest;
+		}
+		return replaced;
+	}
+
+	/**
+	 * @return long - sum of the length of all ranges (how many bytes are different)
+	 */
+	public long totalLength(){
+		long total = 0;
+		for (int i = 0; i < size; i++) {
+			total += lengths[i];
+		}
+		return total;
+	}
+
+	/**
+	 * Method to format a range the same way the original string diff did
+	 * @param index - range index
+	 * @return String - "Offset: x & Lenght: y"
+	 */
+	public String format(int index){
+		return "Offset: "+offsets[index]+" & Lenght: "+lengths[index];
+	}
+
+	/**
+	 * @return LinkedList<String> - list containing offset and length, formatted as the original string diff
+	 */
+	public LinkedList<String> toStringList(){
+		LinkedList<String> strList = new LinkedList<String>();
+		for (int i = 0; i < size; i++) {
+			strList.add(format(i));
+		}
+		return strList;
+	}
+
+	/**
+	 * @return String - same text as toStringList().toString(), without building the list
+	 */
+	@Override
+	public String toString(){
+		StringBuilder sb = new StringBuilder(2 + size * 28);
+		sb.append('[');
+		for (int i = 0; i < size; i++) {
+			if (i > 0) sb.append(", ");
+			sb.append("Offset: ").append(offsets[i]).append(" & Lenght: ").append(lengths[i]);
+		}
+		return sb.append(']').toString();
+	}
+
+	@Override
+	public boolean equals(Object obj){
+		if (this == obj) return true;
+		if (!(obj instanceof DiffRanges)) return false;
+		DiffRanges other = (DiffRanges) obj;
+		if (size != other.size) return false;
+		for (int i = 0; i < size; i++) {
+			if (offsets[i] != other.offsets[i] || lengths[i] != other.lengths[i]) return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int hashCode(){
+		int hash = 1;
+		for (int i = 0; i < size; i++) {
+			hash = 31 * (31 * hash + offsets[i]) + lengths[i];
+		}
+		return hash;
+	}
+}
@@ -0,0 +1,72 @@
+package services;
+
+/**
+ *******************************************************************************
+ *Outcome of comparing the left and right inputs of an id: the status and, 
+ *for same size inputs, the ranges of different bytes 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public final class DiffResult {
+
+	//rough heap cost of a result besides its ranges
+	private static final int OVERHEAD = 64;
+
+	public enum Status {
+		EQUAL("inputs are equal"),
+		SAME_SIZE("inputs have the same size"),
+		DIFFERENT_SIZES("inputs have different sizes"),
+		//same size inputs with more than diff.stream.maxRanges ranges, not kept
+		TOO_MANY_RANGES("inputs have too many differences");
+
+		private final String message;
+
+		Status(String message){
+			this.message = message;
+		}
+
+		/**
+		 * @return String - text returned in the result field
+		 */
+		public String message(){
+			return message;
+		}
+	}
+
+	private static final DiffRanges NO_RANGES = new DiffRanges(1);
+
+	private final Status status;
+	private final DiffRanges ranges;
+
+	/**
+	 * @param status - outcome of the comparison
+	 * @param ranges - differences (only for SAME_SIZE, null otherwise)
+	 */
+	public DiffResult(Status status, DiffRanges ranges){
+		this.status = status;
+		this.ranges = ranges == null ? NO_RANGES : ranges;
+	}
+
+	/**
+	 * @return Status - outcome of the comparison
+	 */
+	public Status status(){
+		return status;
+	}
+
+	/**
+	 * @return DiffRanges - differences, empty unless the status is SAME_SIZE
+	 */
+	public DiffRanges ranges(){
+		return ranges;
+	}
+
+	/**
+	 * @return long - rough heap size of the result, used to bound the cache
+	 */
+	public long weight(){
+		return OVERHEAD + 8L * ranges.size();
+	}
+}
@@ -0,0 +1,168 @@
+package services;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.typesafe.config.Config;
+
+/**
+ *******************************************************************************
+ *Class responsible to keep the diff result of each id, valid while the
+ *left and right versions it was computed from are unchanged. Least
+ *recently used results are evicted above diff.cache.maxEntries entries
+ *or diff.cache.maxBytes bytes (estimated from the number of ranges)
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+@Singleton
+public class DiffResultCache {
+
+	//rough heap cost of an entry besides the result
+	private static final int ENTRY_OVERHEAD = 96;
+
+	private final int maxEntries;
+	private final long maxBytes;
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	private long weight;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	private static final class Entry {
+
+		private final long leftVersion;
+		private final long rightVersion;
+		private final DiffResult result;
+
+		Entry(long leftVersion, long rightVersion, DiffResult result){
+			this.leftVersion = leftVersion;
+			this.rightVersion = rightVersion;
+			this.result = result;
+		}
+
+		long weight(){
+			return result.weight() + ENTRY_OVERHEAD;
+		}
+	}
+
+	@Inject
+	public DiffResultCache(Config config){
+		this(config.getInt("diff.cache.maxEntries"), config.getBytes("diff.cache.maxBytes"));
+	}
+
+	/**
+	 * @param maxEntries - maximum number of cached results
+	 * @param maxBytes - maximum total size of the cached results
+	 */
+	public DiffResultCache(int maxEntries, long maxBytes){
+		this.maxEntries = maxEntries;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Method to get the cached result of an id
+	 * @param id - unique :id used to localized the input
+	 * @param leftVersion - version of the current left input
+	 * @param rightVersion - version of the current right input
+	 * @return DiffResult - cached result, null if not cached for these versions
+	 */
+	public synchronized DiffResult get(String id, long leftVersion, long rightVersion){
+		Entry entry = entries.get(id);
+		if (entry == null || entry.leftVersion != leftVersion || entry.rightVersion != rightVersion) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.result;
+	}
+
+	/**
+	 * Method to get the cached result of an id without counting a lookup (used to update it)
+	 * @param id - unique :id used to localized the input
+	 * @param leftVersion - version of the left input
+	 * @param rightVersion - version of the right input
+	 * @return DiffResult - cached result, null if not cached for these versions
+	 */
+	public synchronized DiffResult peek(String id, long leftVersion, long rightVersion){
+		Entry entry = entries.get(id);
+		if (entry == null || entry.leftVersion != leftVersion || entry.rightVersion != rightVersion) return null;
+		return entry.result;
+	}
+
+	/**
+	 * Method to cache the result of an id, replacing the result of older versions
+	 * @param id - unique :id used to localized the input
+	 * @param leftVersion - version of the left input used to compute the result
+	 * @param rightVersion - version of the right input used to compute the result
+	 * @param result - computed result
+	 */
+	public synchronized void put(String id, long leftVersion, long rightVersion, DiffResult result){
+		Entry entry = new Entry(leftVersion, rightVersion, result);
+		if (maxEntries <= 0 || entry.weight() > maxBytes) {
+			invalidate(id);
+			return;
+		}
+		Entry previous = entries.put(id, entry);
+		if (previous != null) weight -= previous.weight();
+		weight += entry.weight();
+
+		Iterator<Map.Entry<String, Entry>> itr = entries.entrySet().iterator();
+		while ((entries.size() > maxEntries || weight > maxBytes) && itr.hasNext()) {
+			weight -= itr.next().getValue().weight();
+			itr.remove();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Method to drop the cached result of an id (called when one of its inputs changes)
+	 * @param id - unique :id used to localized the input
+	 */
+	public synchronized void invalidate(String id){
+		Entry previous = entries.remove(id);
+		if (previous != null) weight -= previous.weight();
+	}
+
+	/**
+	 * @return long - lookups answered from the cache
+	 */
+	public long hits(){
+		return hits.get();
+	}
+
+	/**
+	 * @return long - lookups that had to compute the result
+	 */
+	public long misses(){
+		return misses.get();
+	}
+
+	/**
+	 * @return long - results dropped to respect the bounds
+	 */
+	public long evictions(){
+		return evictions.get();
+	}
+
+	/**
+	 * @return int - number of cached results
+	 */
+	public synchronized int size(){
+		return entries.size();
+	}
+
+	/**
+	 * @return long - total weight (bytes) of the cached results
+	 */
+	public synchronized long weight(){
+		return weight;
+	}
+}
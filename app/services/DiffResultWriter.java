@@ -0,0 +1,337 @@
+package services;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.typesafe.config.Config;
+
+import akka.NotUsed;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import play.libs.Json;
+
+/**
+ *******************************************************************************
+ *Class responsible to serialize a DiffResult in one of the formats below. 
+ *Results above diff.stream.threshold ranges are streamed in chunks of 
+ *diff.stream.rangesPerChunk ranges, each written only when the previous 
+ *one was consumed, so the response is never fully held in memory 
+ * - LEGACY: {"result": "...", "diff": "[Offset: x & Lenght: y, ...]"} 
+ * - ARRAYS: {"result": "...", "offsets": [x, ...], "lengths": [y, ...]} 
+ * - BINARY: status byte, varint number of ranges, then for each range the 
+ *   varint gap from the end of the previous range and the varint length 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+@Singleton
+public class DiffResultWriter {
+
+	public enum Format {
+		LEGACY("application/json"),
+		ARRAYS("application/vnd.diff+json"),
+		BINARY("application/vnd.diff+binary");
+
+		private final String mimeType;
+
+		Format(String mimeType){
+			this.mimeType = mimeType;
+		}
+
+		/**
+		 * @return String - content type of the format
+		 */
+		public String mimeType(){
+			return mimeType;
+		}
+
+		/**
+		 * @param mimeType - media type asked by the client
+		 * @return Format - format of the media type, null if it has none
+		 */
+		public static Format of(String mimeType){
+			for (Format format : values()) {
+				if (format.mimeType.equalsIgnoreCase(mimeType)) return format;
+			}
+			return null;
+		}
+	}
+
+	private final JsonFactory factory = Json.mapper().getFactory();
+	private final int threshold;
+	private final int rangesPerChunk;
+
+	@Inject
+	public DiffResultWriter(Config config){
+		this(config.getInt("diff.stream.threshold"), config.getInt("diff.stream.rangesPerChunk"));
+	}
+
+	/**
+	 * @param threshold - results with more ranges than this are streamed
+	 * @param rangesPerChunk - ranges written in each chunk of a stream
+	 */
+	public DiffResultWriter(int threshold, int rangesPerChunk){
+		this.threshold = threshold;
+		this.rangesPerChunk = Math.max(1, rangesPerChunk);
+	}
+
+	/**
+	 * @param result - result to be serialized
+	 * @return boolean - true if the result is large enough to be streamed
+	 */
+	public boolean streams(DiffResult result){
+		return result.ranges().size() > threshold;
+	}
+
+	/**
+	 * @param result - result to be serialized
+	 * @return byte[] - the whole result in the legacy format
+	 */
+	public byte[] toBytes(DiffResult result){
+		return toBytes(result, Format.LEGACY);
+	}
+
+	/**
+	 * @param result - result to be serialized
+	 * @param format - format of the serialized result
+	 * @return byte[] - the whole serialized result
+	 */
+	public byte[] toBytes(DiffResult result, Format format){
+		ByteArrayOutputStream out = new ByteArrayOutputStream(64 + 32 * result.ranges().size());
+		Chunks chunks = chunks(result, format, out, Integer.MAX_VALUE);
+		while (chunks.hasNext()) chunks.writeNext();
+		return out.toByteArray();
+	}
+
+	/**
+	 * @param result - result to be serialized
+	 * @return Source<ByteString, NotUsed> - result in the legacy format, written chunk by chunk as it is consumed
+	 */
+	public Source<ByteString, NotUsed> stream(DiffResult result){
+		return stream(result, Format.LEGACY);
+	}
+
+	/**
+	 * @param result - result to be serialized
+	 * @param format - format of the serialized result
+	 * @return Source<ByteString, NotUsed> - serialized result, written chunk by chunk as it is consumed
+	 */
+	public Source<ByteString, NotUsed> stream(DiffResult result, Format format){
+		return Source.fromIterator(() -> chunks(result, format, new ByteArrayOutputStream(32 * rangesPerChunk), rangesPerChunk));
+	}
+
+	private Chunks chunks(DiffResult result, Format format, ByteArrayOutputStream out, int limit){
+		switch (format) {
+		case ARRAYS:
+			return new ArrayChunks(result, out, limit);
+		case BINARY:
+			return new BinaryChunks(result, out, limit);
+		default:
+			return new LegacyChunks(result, out, limit);
+		}
+	}
+
+	/**
+	 * Iterator writing the next chunk of the result on demand, reusing the same output buffer. 
+	 * A result is written as a header, a number of items (at most limit per chunk) and a footer
+	 */
+	private abstract static class Chunks implements Iterator<ByteString> {
+
+		protected final DiffResult result;
+		protected final ByteArrayOutputStream out;
+		private final int items;
+		private final int limit;
+		//next item to be written, -1 before the header
+		private int next = -1;
+		private boolean done;
+
+		Chunks(DiffResult result, ByteArrayOutputStream out, int items, int limit){
+			this.result = result;
+			this.out = out;
+			this.items = items;
+			this.limit = limit;
+		}
+
+		protected abstract void writeHeader() throws IOException;
+
+		protected abstract void writeItem(int index) throws IOException;
+
+		protected abstract void writeFooter() throws IOException;
+
+		protected abstract void flush() throws IOException;
+
+		@Override
+		public boolean hasNext(){
+			return !done;
+		}
+
+		@Override
+		public ByteString next(){
+			if (done) throw new NoSuchElementException();
+			out.reset();
+			writeNext();
+			return ByteString.fromArray(out.toByteArray());
+		}
+
+		void writeNext(){
+			try {
+				if (next < 0) {
+					writeHeader();
+					next = 0;
+				}
+				int end = (int) Math.min(items, (long) next + limit);
+				for (; next < end; next++) {
+					writeItem(next);
+				}
+				if (next == items) {
+					writeFooter();
+					done = true;
+				}
+				flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+
+	private final class LegacyChunks extends Chunks {
+
+		private final JsonGenerator generator;
+
+		LegacyChunks(DiffResult result, ByteArrayOutputStream out, int limit){
+			super(result, out, result.ranges().size(), limit);
+			try {
+				this.generator = factory.createGenerator(out);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		protected void writeHeader() throws IOException {
+			generator.writeStartObject();
+			generator.writeStringField("result", result.status().message());
+			if (result.status() == DiffResult.Status.SAME_SIZE) {
+				generator.writeFieldName("diff");
+				generator.writeRawValue("\"[");
+			}
+		}
+
+		@Override
+		protected void writeItem(int index) throws IOException {
+			if (index > 0) generator.writeRaw(", ");
+			generator.writeRaw(result.ranges().format(index));
+		}
+
+		@Override
+		protected void writeFooter() throws IOException {
+			if (result.status() == DiffResult.Status.SAME_SIZE) generator.writeRaw("]\"");
+			generator.writeEndObject();
+		}
+
+		@Override
+		protected void flush() throws IOException {
+			generator.flush();
+		}
+	}
+
+	private final class ArrayChunks extends Chunks {
+
+		private final JsonGenerator generator;
+
+		//offsets first, then lengths
+		ArrayChunks(DiffResult result, ByteArrayOutputStream out, int limit){
+			super(result, out, 2 * result.ranges().size(), limit);
+			try {
+				this.generator = factory.createGenerator(out);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		@Override
+		protected void writeHeader() throws IOException {
+			generator.writeStartObject();
+			generator.writeStringField("result", result.status().message());
+			generator.writeArrayFieldStart("offsets");
+		}
+
+		@Override
+		protected void writeItem(int index) throws IOException {
+			DiffRanges ranges = result.ranges();
+			if (index < ranges.size()) {
+				generator.writeNumber(ranges.offset(index));
+				return;
+			}
+			if (index == ranges.size()) {
+				generator.writeEndArray();
+				generator.writeArrayFieldStart("lengths");
+			}
+			generator.writeNumber(ranges.length(index - ranges.size()));
+		}
+
+		@Override
+		protected void writeFooter() throws IOException {
+			if (result.ranges().size() == 0) {
+				generator.writeEndArray();
+				generator.writeArrayFieldStart("lengths");
+			}
+			generator.writeEndArray();
+			generator.writeEndObject();
+		}
+
+		@Override
+		protected void flush() throws IOException {
+			generator.flush();
+		}
+	}
+
+	private static final class BinaryChunks extends Chunks {
+
+		BinaryChunks(DiffResult result, ByteArrayOutputStream out, int limit){
+			super(result, out, result.ranges().size(), limit);
+		}
+
+		@Override
+		protected void writeHeader(){
+			out.write(result.status().ordinal());
+			writeVarint(result.ranges().size());
+		}
+
+		@Override
+		protected void writeItem(int index){
+			DiffRanges ranges = result.ranges();
+			int previousEnd = index == 0 ? 0 : ranges.offset(index - 1) + ranges.length(index - 1);
+			writeVarint(ranges.offset(index) - previousEnd);
+			writeVarint(ranges.length(index));
+		}
+
+		@Override
+		protected void writeFooter(){
+			//the number of ranges is in the header
+		}
+
+		@Override
+		protected void flush(){
+			//written straight to the buffer
+		}
+
+		//unsigned LEB128, 7 bits per byte with the high bit set on all but the last
+		private void writeVarint(int value){
+			while ((value & ~0x7f) != 0) {
+				out.write((value & 0x7f) | 0x80);
+				value >>>= 7;
+			}
+			out.write(value);
+		}
+	}
+}
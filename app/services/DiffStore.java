@@ -0,0 +1,505 @@
+package services;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.typesafe.config.Config;
+
+import services.persistence.NoJournal;
+import services.persistence.PayloadJournal;
+import services.storage.PayloadStorage;
+import services.storage.StorageBlock;
+
+/**
+ *******************************************************************************
+ *Class responsible to keep the decoded left and right inputs of each id. 
+ *Inputs are decoded once when created/updated and shared by all the reads, 
+ *along with a Merkle tree of their block hashes (diff.merkle.blockSize), 
+ *the bytes are kept by the configured PayloadStorage and, when persistence 
+ *is enabled, every change is durable in the PayloadJournal before it is 
+ *acknowledged. The inputs of an id are an immutable record swapped by 
+ *compare-and-set: reads never lock, inputs are hashed before the swap and 
+ *a create only succeeds if the side is still missing, an update only if 
+ *the side still has the version expected (when given). Only handing the 
+ *changes of an id to the journal, in the order they were swapped, takes 
+ *the lock of the id 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+@Singleton
+public class DiffStore {
+
+	private static final CompletionStage<Void> DURABLE = CompletableFuture.completedFuture(null);
+	//conditions on the current input of a side checked by a swap (besides a version)
+	private static final long ANY = -1;
+	private static final long MISSING = -2;
+	private static final long EXISTING = -3;
+
+	private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+	private final AtomicLong versions = new AtomicLong();
+	private final PayloadStorage storage;
+	private final PayloadJournal journal;
+	private final int blockSize;
+
+	@Inject
+	public DiffStore(PayloadStorage storage, PayloadJournal journal, Config config){
+		this(storage, journal, config.getBytes("diff.merkle.blockSize").intValue());
+	}
+
+	/**
+	 * @param storage - where the decoded inputs are kept
+	 * @param journal - where the changes are persisted
+	 * @param blockSize - size of the blocks hashed by the Merkle tree of each input
+	 */
+	public DiffStore(PayloadStorage storage, PayloadJournal journal, int blockSize){
+		this.storage = storage;
+		this.journal = journal;
+		this.blockSize = blockSize;
+		journal.recover(new PayloadJournal.Replay() {
+
+			@Override
+			public void put(String id, Side side, byte[] data){
+				Slot slot = slots.computeIfAbsent(id, key -> new Slot());
+				replayed(slot, side, new Payload(storage.store(data), versions.incrementAndGet(), blockSize));
+			}
+
+			@Override
+			public void patch(String id, Side side, int offset, byte[] data){
+				Slot slot = slots.get(id);
+				Payload previous = slot == null ? null : slot.get(side);
+				//a patch is only logged after its input, ignore it if the input was lost
+				if (previous == null || offset < 0 || offset > previous.length() - data.length) return;
+				replayed(slot, side, previous.patch(offset, data, versions.incrementAndGet(), storage));
+			}
+		});
+		journal.start(this::forEach);
+	}
+
+	/**
+	 * Store kept only in memory
+	 * @param storage - where the decoded inputs are kept
+	 */
+	public DiffStore(PayloadStorage storage){
+		this(storage, new NoJournal());
+	}
+
+	/**
+	 * Store with the default Merkle block size
+	 * @param storage - where the decoded inputs are kept
+	 * @param journal - where the changes are persisted
+	 */
+	public DiffStore(PayloadStorage storage, PayloadJournal journal){
+		this(storage, journal, MerkleTree.DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Update refused because the input is no longer the version the caller expected
+	 */
+	public static final class VersionMismatchException extends IllegalStateException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final long current;
+
+		VersionMismatchException(long current){
+			super("Version mismatch, the current version is " + current);
+			this.current = current;
+		}
+
+		/**
+		 * @return long - version of the current input
+		 */
+		public long current(){
+			return current;
+		}
+	}
+
+	/**
+	 * Immutable inputs of one id, a change swaps the whole record
+	 */
+	public static final class Record {
+
+		private static final Record EMPTY = new Record(null, null);
+
+		private final Payload left;
+		private final Payload right;
+
+		private Record(Payload left, Payload right){
+			this.left = left;
+			this.right = right;
+		}
+
+		/**
+		 * @param side - side to be returned
+		 * @return Payload - input of the side, null if not created yet
+		 */
+		public Payload get(Side side){
+			return side == Side.LEFT ? left : right;
+		}
+
+		private Record with(Side side, Payload payload){
+			return side == Side.LEFT ? new Record(payload, right) : new Record(left, payload);
+		}
+	}
+
+	/**
+	 * Inputs stored for one id
+	 */
+	public static final class Slot {
+
+		private final AtomicReference<Record> record = new AtomicReference<Record>(Record.EMPTY);
+		//version of each side last handed to the journal, and when it is durable (guarded by the slot)
+		private final long[] journaled = {-1, -1};
+		private final CompletionStage<?>[] durable = new CompletionStage<?>[2];
+
+		/**
+		 * @param side - side to be returned
+		 * @return Payload - input of the side, null if not created yet
+		 */
+		public Payload get(Side side){
+			return record.get().get(side);
+		}
+
+		/**
+		 * @return Record - both inputs, as they were at the same moment
+		 */
+		public Record record(){
+			return record.get();
+		}
+	}
+
+	/**
+	 * @return PayloadStorage - where the decoded inputs are kept, inputs can be decoded straight into its blocks
+	 */
+	public PayloadStorage storage(){
+		return storage;
+	}
+
+	/**
+	 * @return int - size of the blocks hashed by the Merkle tree of each input
+	 */
+	public int blockSize(){
+		return blockSize;
+	}
+
+	/**
+	 * @param id - unique :id used to localized the input
+	 * @return Slot - inputs of the id, null if nothing was created for it
+	 */
+	public Slot get(String id){
+		return slots.get(id);
+	}
+
+	/**
+	 * @param id - unique :id used to localized the input
+	 * @param side - side to be returned
+	 * @return Payload - input of the side, null if not created yet
+	 */
+	public Payload get(String id, Side side){
+		Slot slot = slots.get(id);
+		return slot == null ? null : slot.get(side);
+	}
+
+	/**
+	 * Method to get an input to be read, it must be released after the read
+	 * @param id - unique :id used to localized the input
+	 * @param side - side to be returned
+	 * @return Payload - retained input of the side, null if not created yet
+	 */
+	public Payload acquire(String id, Side side){
+		Slot slot = slots.get(id);
+		return slot == null ? null : acquire(slot, side);
+	}
+
+	/**
+	 * Method to retain the current input of a side, waiting while a patch writes it in place
+	 * @return Payload - retained input of the side, null if not created yet
+	 */
+	private static Payload acquire(Slot slot, Side side){
+		while (true) {
+			Payload payload = slot.get(side);
+			//retain only fails if the payload was replaced, or is being patched in place, meanwhile
+			if (payload == null || payload.retain()) return payload;
+			await(slot, side, payload);
+		}
+	}
+
+	/**
+	 * Method to wait until a side no longer holds an input left without references. Only a patch 
+	 * writing it in place does that, until the patched input is swapped in: every change journals 
+	 * (taking the slot lock) right after its swap, which wakes the waiters up
+	 * @param payload - input whose retain failed
+	 */
+	private static void await(Slot slot, Side side, Payload payload){
+		boolean interrupted = false;
+		synchronized (slot) {
+			while (slot.get(side) == payload) {
+				try {
+					slot.wait();
+				} catch (InterruptedException e) {
+					//the patch completes anyway, the interrupt is kept for the caller
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	/**
+	 * Method to store a new input
+	 * @param id - unique :id used to localized the input
+	 * @param side - side of the input
+	 * @param decoded - decoded input, owned by the store from now on
+	 * @return Payload - the stored input, null if the side was already created
+	 */
+	public Payload create(String id, Side side, byte[] decoded){
+		if (get(id, side) != null) return null;
+		return create(id, side, storage.store(decoded));
+	}
+
+	/**
+	 * Method to store a new input already decoded into a block of the storage, 
+	 * only if the side is still missing when it is swapped in
+	 * @param id - unique :id used to localized the input
+	 * @param side - side of the input
+	 * @param block - block of the storage holding the decoded input, owned by the store from now on 
+	 *                (released if the side was already created)
+	 * @return Payload - the stored input, null if the side was already created
+	 */
+	public Payload create(String id, Side side, StorageBlock block){
+		Slot slot = slots.computeIfAbsent(id, key -> new Slot());
+		//not hashed if the side is already known to exist
+		if (slot.get(side) != null) {
+			block.release();
+			return null;
+		}
+		return store(id, side, slot, new Payload(block, versions.incrementAndGet(), blockSize), MISSING);
+	}
+
+	/**
+	 * Method to replace an existing input
+	 * @param id - unique :id used to localized the input
+	 * @param side - side of the input
+	 * @param decoded - decoded input, owned by the store from now on
+	 * @return Payload - the stored input, null if the side was not created yet
+	 */
+	public Payload update(String id, Side side, byte[] decoded){
+		if (get(id, side) == null) return null;
+		return update(id, side, storage.store(decoded));
+	}
+
+	/**
+	 * Method to replace an existing input with one already decoded into a block of the storage
+	 * @param id - unique :id used to localized the input
+	 * @param side - side of the input
+	 * @param block - block of the storage holding the decoded input, owned by the store from now on 
+	 *                (released if the side was not created yet)
+	 * @return Payload - the stored input, null if the side was not created yet
+	 */
+	public Payload update(String id, Side side, StorageBlock block){
+		return update(id, side, block, ANY);
+	}
+
+	/**
+	 * Method to replace an existing input only if it is still the version expected (optimistic concurrency)
+	 * @param id - unique :id used to localized the input
+	 * @param side - side of the input
+	 * @param block - block of the storage holding the decoded input, owned by the store from now on 
+	 *                (released if it is not stored)
+	 * @param expectedVersion - version the input must have when it is replaced, -1 to replace any version
+	 * @return Payload - the stored input, null if the side was not created yet
+	 * @throws VersionMismatchException - if the input is not the version expected
+	 */
+	public Payload update(String id, Side side, StorageBlock block, long expectedVersion){
+		Slot slot = slots.get(id);
+		Payload current = slot == null ? null : slot.get(side);
+		//not hashed if the update is already known to fail
+		if (current == null) {
+			block.release();
+			return null;
+		}
+		if (expectedVersion >= 0 && current.version() != expectedVersion) {
+			block.release();
+			throw new VersionMismatchException(current.version());
+		}
+		return store(id, side, slot, new Payload(block, versions.incrementAndGet(), blockSize),
+				expectedVersion >= 0 ? expectedVersion : EXISTING);
+	}
+
+	/**
+	 * Method to store an input already decoded into a block of the storage, 
+	 * creating the side or replacing its input
+	 * @param id - unique :id used to localized the input
+	 * @param side - side of the input
+	 * @param block - block of the storage holding the decoded input, owned by the store from now on
+	 * @return Payload - the stored input
+	 */
+	public Payload put(String id, Side side, StorageBlock block){
+		return put(id, side, block, null);
+	}
+
+	/**
+	 * Method to store an input whose Merkle tree was built while it was written (see blockSize), 
+	 * creating the side or replacing its input
+	 * @param id - unique :id used to localized the input
+	 * @param side - side of the input
+	 * @param block - block of the storage holding the decoded input, owned by the store from now on
+	 * @param tree - tree of the input, null to build it
+	 * @return Payload - the stored input
+	 */
+	public Payload put(String id, Side side, StorageBlock block, MerkleTree tree){
+		Slot slot = slots.computeIfAbsent(id, key -> new Slot());
+		Payload payload = tree == null
+				? new Payload(block, versions.incrementAndGet(), blockSize)
+				: new Payload(block, versions.incrementAndGet(), tree);
+		return store(id, side, slot, payload, ANY);
+	}
+
+	/**
+	 * Method to replace bytes of an existing input, in place when it is not being read
+	 * @param id - unique :id used to localized the input
+	 * @param side - side of the input
+	 * @param offset - first byte to be replaced
+	 * @param data - replacement bytes
+	 * @return Payload - the patched input, null if the side was not created yet
+	 * @throws IllegalArgumentException - if the patch does not fit in the input
+	 */
+	public Payload patch(String id, Side side, int offset, byte[] data){
+		Slot slot = slots.get(id);
+		if (slot == null) return null;
+		while (true) {
+			Record current = slot.record.get();
+			Payload previous = current.get(side);
+			if (previous == null) return null;
+			Payload payload = previous.patch(offset, data, versions.incrementAndGet(), storage);
+			//null while another patch writes the input in place, it is read again once swapped
+			if (payload == null) {
+				await(slot, side, previous);
+				continue;
+			}
+			//a change of the other side does not touch this input, the patch is swapped in again. 
+			//The patched payload may own the block of previous (written in place, previous has no 
+			//reference left), so it is only dropped once previous is no longer the input of the side
+			while (current.get(side) == previous) {
+				if (slot.record.compareAndSet(current, current.with(side, payload))) {
+					previous.release();
+					journal(id, side, slot, payload, offset, data.length).toCompletableFuture().join();
+					return payload;
+				}
+				current = slot.record.get();
+			}
+			//replaced meanwhile (the replacing change dropped the store reference), patch the new input
+			payload.release();
+		}
+	}
+
+	/**
+	 * Method to swap a stored input in, if the current input of the side meets the condition, 
+	 * and wait until it is durable
+	 * @param expected - MISSING, EXISTING, ANY or the version the current input must have
+	 * @return Payload - the stored input, null if the condition was not met (the payload is released)
+	 */
+	private Payload store(String id, Side side, Slot slot, Payload payload, long expected){
+		while (true) {
+			Record current = slot.record.get();
+			Payload previous = current.get(side);
+			if ((expected == MISSING && previous != null) || (expected != MISSING && expected != ANY && previous == null)) {
+				payload.release();
+				return null;
+			}
+			if (expected >= 0 && previous.version() != expected) {
+				payload.release();
+				throw new VersionMismatchException(previous.version());
+			}
+			if (slot.record.compareAndSet(current, current.with(side, payload))) {
+				//the store reference of the replaced input is dropped by the change that swapped it out
+				if (previous != null) previous.release();
+				break;
+			}
+		}
+		journal(id, side, slot, payload, -1, 0).toCompletableFuture().join();
+		return payload;
+	}
+
+	/**
+	 * Method to hand the current input of a side to the journal, under the slot lock so the 
+	 * journal receives the inputs of an id in the same order they were swapped in. An input 
+	 * already replaced is not journaled, the change waits for the input that replaced it
+	 * @param payload - input swapped in by the caller
+	 * @param offset - first byte replaced if the input is a patch, -1 otherwise
+	 * @param length - number of bytes replaced
+	 * @return CompletionStage<Void> - completed when the input (or a newer one) is durable
+	 */
+	@SuppressWarnings("unchecked")
+	private CompletionStage<Void> journal(String id, Side side, Slot slot, Payload payload, int offset, int length){
+		int i = side.ordinal();
+		synchronized (slot) {
+			//readers waiting for an input patched in place (see await) read the swapped one
+			slot.notifyAll();
+			while (true) {
+				Payload current = slot.get(side);
+				if (current.version() == slot.journaled[i]) {
+					return slot.durable[i] == null ? DURABLE : (CompletionStage<Void>) slot.durable[i];
+				}
+				//retain only fails if it was replaced meanwhile (the newer input is journaled instead), 
+				//or while a patch writes it in place
+				if (!current.retain()) {
+					await(slot, side, current);
+					continue;
+				}
+				//a patch is logged with only its bytes if the journal has the input it was applied to
+				CompletionStage<Void> durable = current == payload && offset >= 0 && payload.baseVersion() == slot.journaled[i]
+						? journal.patch(id, side, current, offset, length)
+						: journal.append(id, side, current);
+				slot.journaled[i] = current.version();
+				slot.durable[i] = release(durable, current);
+				return durable;
+			}
+		}
+	}
+
+	//the journal reads the buffer later, keep it from being recycled (or patched in place) meanwhile
+	private static CompletionStage<Void> release(CompletionStage<Void> durable, Payload payload){
+		durable.whenComplete((done, failure) -> payload.release());
+		return durable;
+	}
+
+	/**
+	 * Method to install an input read from the journal (recovery is single threaded)
+	 */
+	private static void replayed(Slot slot, Side side, Payload payload){
+		Payload previous = slot.get(side);
+		slot.record.set(slot.record.get().with(side, payload));
+		if (previous != null) previous.release();
+		slot.journaled[side.ordinal()] = payload.version();
+	}
+
+	/**
+	 * Method to visit every current input (used by the journal snapshots). An input being 
+	 * patched in place is waited for, not skipped: its patch may be journaled after the 
+	 * snapshot as a patch record, which needs the input in the snapshot to be replayed
+	 * @param visitor - receiver of the inputs, the buffers are only valid during the call
+	 */
+	public void forEach(PayloadJournal.StateVisitor visitor){
+		for (Map.Entry<String, Slot> entry : slots.entrySet()) {
+			for (Side side : Side.values()) {
+				Payload payload = acquire(entry.getValue(), side);
+				if (payload == null) continue;
+				try {
+					visitor.visit(entry.getKey(), side, payload.buffer());
+				} finally {
+					payload.release();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package services;
+
+import java.nio.ByteBuffer;
+
+/**
+ *******************************************************************************
+ *Counts of the differences between a baseline and a candidate input: the 
+ *size difference, the number of ranges of different bytes in the bytes both 
+ *inputs have and the total of bytes differing (those ranges plus the bytes 
+ *only one of the inputs has) 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public final class DiffSummary {
+
+	private final int sizeDifference;
+	private final int ranges;
+	private final long bytes;
+
+	/**
+	 * @param sizeDifference - candidate length minus the baseline length
+	 * @param ranges - number of ranges of different bytes in the common length
+	 * @param bytes - total of bytes differing
+	 */
+	public DiffSummary(int sizeDifference, int ranges, long bytes){
+		this.sizeDifference = sizeDifference;
+		this.ranges = ranges;
+		this.bytes = bytes;
+	}
+
+	/**
+	 * Method to summarize a stored candidate, reading only the blocks the Merkle 
+	 * trees tell apart when both inputs have the same size
+	 * @param diff - comparison of the bytes
+	 * @param baseline - baseline input, retained by the caller
+	 * @param candidate - candidate input, retained by the caller
+	 * @return DiffSummary - differences of the candidate
+	 */
+	public static DiffSummary of(ParallelDiff diff, Payload baseline, Payload candidate){
+		if (baseline.length() != candidate.length()) {
+			return of(diff, baseline, candidate.buffer());
+		}
+		if (baseline.contentEquals(candidate)) {
+			return new DiffSummary(0, 0, 0);
+		}
+		DiffRanges differences = diff.diff(baseline, candidate);
+		return new DiffSummary(0, differences.size(), differences.totalLength());
+	}
+
+	/**
+	 * Method to summarize a candidate that is not stored, comparing its bytes 
+	 * with the shared baseline buffer
+	 * @param diff - comparison of the bytes
+	 * @param baseline - baseline input, retained by the caller
+	 * @param candidate - decoded candidate, from zero to its limit
+	 * @return DiffSummary - differences of the candidate
+	 */
+	public static DiffSummary of(ParallelDiff diff, Payload baseline, ByteBuffer candidate){
+		int sizeDifference = candidate.limit() - baseline.length();
+		DiffRanges differences = diff.diff(baseline.buffer(), candidate, Math.min(baseline.length(), candidate.limit()));
+		return new DiffSummary(sizeDifference, differences.size(), differences.totalLength() + Math.abs((long) sizeDifference));
+	}
+
+	/**
+	 * @return Status - EQUAL, SAME_SIZE or DIFFERENT_SIZES as GET /v1/diff/:id reports it
+	 */
+	public DiffResult.Status status(){
+		if (sizeDifference != 0) return DiffResult.Status.DIFFERENT_SIZES;
+		return ranges == 0 ? DiffResult.Status.EQUAL : DiffResult.Status.SAME_SIZE;
+	}
+
+	/**
+	 * @return boolean - true if the inputs are equal
+	 */
+	public boolean equal(){
+		return sizeDifference == 0 && ranges == 0;
+	}
+
+	/**
+	 * @return int - candidate length minus the baseline length
+	 */
+	public int sizeDifference(){
+		return sizeDifference;
+	}
+
+	/**
+	 * @return int - number of ranges of different bytes in the common length
+	 */
+	public int ranges(){
+		return ranges;
+	}
+
+	/**
+	 * @return long - total of bytes differing, including the bytes only one input has
+	 */
+	public long bytes(){
+		return bytes;
+	}
+}
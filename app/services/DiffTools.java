@@ -1,12 +1,8 @@
 package services;
 
-import java.util.Iterator;
-import java.util.LinkedHashMap;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.LinkedList;
-import java.util.Map;
-import java.util.Set;
-
-import org.apache.commons.codec.binary.Base64;
 
 /**
  *******************************************************************************
@@ -18,6 +14,11 @@ import org.apache.commons.codec.binary.Base64;
 
 public class DiffTools {
 
+	//bytes compared at once by the word scanner
+	private static final int WORD = 8;
+	private static final long LOW_BITS = 0x0101010101010101L;
+	private static final long HIGH_BITS = 0x8080808080808080L;
+
 	public DiffTools(){}
 
 	/**
@@ -28,43 +29,95 @@ public class DiffTools {
 	 */
 	public LinkedList<String> diffString(String left, String right){
 
-		LinkedList<String> strList = new LinkedList<String>();
-		Map<Integer, Integer> difference = new LinkedHashMap<Integer, Integer>();
-		int lenght = 0, offset = 0;
+		DiffRanges difference = new DiffRanges();
 
 		if (left.length() == right.length()) {
-			for (int i = 0; i < left.length(); i++) {
-				lenght=0;
+			int i = 0;
+			while (i < left.length()) {
 				if (left.charAt(i) != right.charAt(i)) {
-					for (int j = i; j < left.length(); j++) {
-						if ((left.charAt(j) != right.charAt(j)) & (j+1 != left.length())) {
-							lenght++;
-						} else {
-							if(j+1 == left.length()) lenght++;
-							difference.put(i,lenght);
-							i=j;
-							break;
-						}
-					}
+					int j = i + 1;
+					while (j < left.length() && left.charAt(j) != right.charAt(j)) j++;
+					difference.add(i, j - i);
+					i = j;
+				} else {
+					i++;
 				}
-			}	
+			}
 		}
+		return difference.toStringList();
+	}
 
-		Set<Integer> keys = difference.keySet();
-		Iterator<Integer> itr = keys.iterator();
-		while (itr.hasNext()) { 
-			offset = itr.next();
-			strList.add("Offset: "+offset+" & Lenght: "+difference.get(offset));
+	/**
+	 * Method to compare the left and right decoded inputs, 8 bytes at a time
+	 * @param left - left bytes that will be compared with the right
+	 * @param right - right bytes that will be compared with the left
+	 * @return DiffRanges - offset and length (how many different bytes in sequence) of each difference,
+	 *  empty if the inputs have different sizes
+	 */
+	public DiffRanges diffBytes(byte[] left, byte[] right){
+		DiffRanges difference = new DiffRanges();
+		if (left.length == right.length) {
+			diffRange(ByteBuffer.wrap(left), ByteBuffer.wrap(right), 0, left.length, difference);
 		}
-		return strList;
+		return difference;
 	}
-	
+
+	/**
+	 * Method to compare the window [from, to) of two buffers, appending the differences found.
+	 * The buffers positions are not modified.
+	 * @param left - left buffer
+	 * @param right - right buffer
+	 * @param from - first index (inclusive)
+	 * @param to - last index (exclusive)
+	 * @param difference - ranges where the differences will be appended
+	 */
+	public void diffRange(ByteBuffer left, ByteBuffer right, int from, int to, DiffRanges difference){
+		ByteBuffer l = left.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		ByteBuffer r = right.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int i = from;
+		while (i < to) {
+			i = nextMismatch(l, r, i, to);
+			if (i == to) break;
+			int end = nextMatch(l, r, i + 1, to);
+			difference.add(i, end - i);
+			i = end;
+		}
+	}
+
+	/**
+	 * @return int - index of the first different byte at or after i, or to if there is none
+	 */
+	private static int nextMismatch(ByteBuffer l, ByteBuffer r, int i, int to){
+		while (i + WORD <= to) {
+			long x = l.getLong(i) ^ r.getLong(i);
+			if (x != 0) return i + (Long.numberOfTrailingZeros(x) >>> 3);
+			i += WORD;
+		}
+		while (i < to && l.get(i) == r.get(i)) i++;
+		return i;
+	}
+
+	/**
+	 * @return int - index of the first equal byte at or after i, or to if there is none
+	 */
+	private static int nextMatch(ByteBuffer l, ByteBuffer r, int i, int to){
+		while (i + WORD <= to) {
+			long x = l.getLong(i) ^ r.getLong(i);
+			//lowest zero byte of x (little endian, so the first equal byte)
+			long zero = (x - LOW_BITS) & ~x & HIGH_BITS;
+			if (zero != 0) return i + (Long.numberOfTrailingZeros(zero) >>> 3);
+			i += WORD;
+		}
+		while (i < to && l.get(i) != r.get(i)) i++;
+		return i;
+	}
+
 	/**
-	 * Method to check if a string is base64
+	 * Method to check if a string is strict base64 (see Base64Codec), reading its chars without a copy
 	 * @param stringToBeChecked - string to be checked
 	 * @return boolean - true is is base64 
 	 */
 	public boolean checkBase64(String stringToBeChecked){
-		return Base64.isBase64(stringToBeChecked.getBytes());
+		return Base64Codec.invalidOffset(stringToBeChecked) < 0;
 	}
 }
@@ -0,0 +1,128 @@
+package services;
+
+import java.util.Arrays;
+
+/**
+ *******************************************************************************
+ *Class responsible to hold an edit script turning the left input into the 
+ *right one: runs of equal, deleted (only on the left) and inserted (only on 
+ *the right) bytes, with their offsets on both sides, in primitive arrays 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public class EditScript {
+
+	public enum Op {
+		EQUAL, DELETE, INSERT;
+
+		/**
+		 * @return String - operation name as written in the results
+		 */
+		public String label(){
+			return name().toLowerCase();
+		}
+	}
+
+	private static final Op[] OPS = Op.values();
+
+	private byte[] ops = new byte[16];
+	private int[] leftOffsets = new int[16];
+	private int[] rightOffsets = new int[16];
+	private int[] lengths = new int[16];
+	private int size;
+
+	/**
+	 * Method to append an operation, operations must be added in order.
+	 * An operation following one of the same type is merged into it
+	 * @param op - type of the operation
+	 * @param leftOffset - position on the left input
+	 * @param rightOffset - position on the right input
+	 * @param length - how many bytes
+	 */
+	public void add(Op op, int leftOffset, int rightOffset, int length){
+		if (length <= 0) return;
+		if (size > 0 && ops[size-1] == op.ordinal()) {
+			lengths[size-1] += length;
+			return;
+		}
+		if (size == ops.length) {
+			int capacity = size + (size >> 1) + 1;
+			ops = Arrays.copyOf(ops, capacity);
+			leftOffsets = Arrays.copyOf(leftOffsets, capacity);
+			rightOffsets = Arrays.copyOf(rightOffsets, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+		}
+		ops[size] = (byte) op.ordinal();
+		leftOffsets[size] = leftOffset;
+		rightOffsets[size] = rightOffset;
+		lengths[size] = length;
+		size++;
+	}
+
+	/**
+	 * @return int - number of operations
+	 */
+	public int size(){
+		return size;
+	}
+
+	/**
+	 * @param index - operation index
+	 * @return Op - type of the operation
+	 */
+	public Op op(int index){
+		return OPS[ops[index]];
+	}
+
+	/**
+	 * @param index - operation index
+	 * @return int - position of the operation on the left input
+	 */
+	public int leftOffset(int index){
+		return leftOffsets[index];
+	}
+
+	/**
+	 * @param index - operation index
+	 * @return int - position of the operation on the right input
+	 */
+	public int rightOffset(int index){
+		return rightOffsets[index];
+	}
+
+	/**
+	 * @param index - operation index
+	 * @return int - how many bytes the operation covers
+	 */
+	public int length(int index){
+		return lengths[index];
+	}
+
+	/**
+	 * @return long - number of deleted plus inserted bytes
+	 */
+	public long distance(){
+		long distance = 0;
+		for (int i = 0; i < size; i++) {
+			if (ops[i] != Op.EQUAL.ordinal()) distance += lengths[i];
+		}
+		return distance;
+	}
+
+	/**
+	 * @return String - operations as "op(leftOffset, rightOffset, length)"
+	 */
+	@Override
+	public String toString(){
+		StringBuilder sb = new StringBuilder(2 + size * 24);
+		sb.append('[');
+		for (int i = 0; i < size; i++) {
+			if (i > 0) sb.append(", ");
+			sb.append(op(i).label()).append('(').append(leftOffsets[i]).append(", ")
+					.append(rightOffsets[i]).append(", ").append(lengths[i]).append(')');
+		}
+		return sb.append(']').toString();
+	}
+}
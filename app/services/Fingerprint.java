@@ -0,0 +1,168 @@
+package services;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ *******************************************************************************
+ *128 bits content hash (MurmurHash3 x64 128) used to tell if two inputs
+ *are different without comparing their bytes
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public final class Fingerprint {
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private final long high;
+	private final long low;
+
+	public Fingerprint(long high, long low){
+		this.high = high;
+		this.low = low;
+	}
+
+	/**
+	 * @param data - bytes to be hashed
+	 * @return Fingerprint - hash of all the bytes
+	 */
+	public static Fingerprint of(byte[] data){
+		return of(ByteBuffer.wrap(data), 0, data.length);
+	}
+
+	/**
+	 * Method to hash a window of a buffer, the buffer position is not modified
+	 * @param data - buffer to be hashed
+	 * @param from - first index (absolute)
+	 * @param length - how many bytes to hash
+	 * @return Fingerprint - hash of the window
+	 */
+	public static Fingerprint of(ByteBuffer data, int from, int length){
+		ByteBuffer buf = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		long h1 = 0, h2 = 0;
+		int i = from;
+		int end = from + (length & ~15);
+		for (; i < end; i += 16) {
+			long k1 = buf.getLong(i);
+			long k2 = buf.getLong(i + 8);
+
+			h1 ^= mixK1(k1);
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			h2 ^= mixK2(k2);
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+
+		//remaining 0 to 15 bytes, little endian
+		long k1 = 0, k2 = 0;
+		int tail = length & 15;
+		for (int j = tail - 1; j >= 8; j--) {
+			k2 = (k2 << 8) | (buf.get(i + j) & 0xff);
+		}
+		for (int j = Math.min(tail, 8) - 1; j >= 0; j--) {
+			k1 = (k1 << 8) | (buf.get(i + j) & 0xff);
+		}
+		if (tail > 8) h2 ^= mixK2(k2);
+		if (tail > 0) h1 ^= mixK1(k1);
+		return finish(h1, h2, length);
+	}
+
+	/**
+	 * Method to hash two fingerprints (the nodes of a Merkle tree), same as hashing 
+	 * the 32 bytes of their values in little endian order
+	 * @param first - first hash
+	 * @param second - second hash
+	 * @return Fingerprint - hash of both
+	 */
+	public static Fingerprint combine(Fingerprint first, Fingerprint second){
+		long h1 = 0, h2 = 0;
+		long[] values = {first.high, first.low, second.high, second.low};
+		for (int i = 0; i < values.length; i += 2) {
+			h1 ^= mixK1(values[i]);
+			h1 = Long.rotateLeft(h1, 27);
+			h1 += h2;
+			h1 = h1 * 5 + 0x52dce729;
+
+			h2 ^= mixK2(values[i + 1]);
+			h2 = Long.rotateLeft(h2, 31);
+			h2 += h1;
+			h2 = h2 * 5 + 0x38495ab5;
+		}
+		return finish(h1, h2, 32);
+	}
+
+	private static Fingerprint finish(long h1, long h2, int length){
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+		return new Fingerprint(h1, h2);
+	}
+
+	private static long mixK1(long k1){
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		return k1 * C2;
+	}
+
+	private static long mixK2(long k2){
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		return k2 * C1;
+	}
+
+	private static long fmix(long k){
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	/**
+	 * @return long - first 64 bits of the hash
+	 */
+	public long high(){
+		return high;
+	}
+
+	/**
+	 * @return long - last 64 bits of the hash
+	 */
+	public long low(){
+		return low;
+	}
+
+	@Override
+	public boolean equals(Object obj){
+		if (this == obj) return true;
+		if (!(obj instanceof Fingerprint)) return false;
+		Fingerprint other = (Fingerprint) obj;
+		return high == other.high && low == other.low;
+	}
+
+	@Override
+	public int hashCode(){
+		return (int) (high ^ (high >>> 32));
+	}
+
+	/**
+	 * @return String - 32 hexadecimal digits
+	 */
+	@Override
+	public String toString(){
+		return String.format("%016x%016x", high, low);
+	}
+}
@@ -0,0 +1,47 @@
+package services;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.typesafe.config.Config;
+
+import play.inject.ApplicationLifecycle;
+
+/**
+ *******************************************************************************
+ *Pool reading the Json bodies of the create/update actions (settings under 
+ *diff.input). Jackson's parser blocks on the body stream, so each request 
+ *holds a worker for its whole transfer: a slow client would hold a diff 
+ *executor worker (one per processor) for as long, so they get their own, 
+ *larger pool with a bounded queue, rejecting at once like the diff executor 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+@Singleton
+public class InputExecutor extends DiffExecutor {
+
+	@Inject
+	public InputExecutor(Config config, ApplicationLifecycle lifecycle){
+		this(config.getInt("diff.input.threads"),
+				config.getInt("diff.input.queueSize"),
+				config.getDuration("diff.executor.retryAfter", TimeUnit.SECONDS));
+		lifecycle.addStopHook(() -> {
+			shutdown();
+			return CompletableFuture.completedFuture(null);
+		});
+	}
+
+	/**
+	 * @param threads - number of worker threads, zero or less to use one per available processor
+	 * @param queueSize - maximum number of tasks waiting for a worker
+	 * @param retryAfterSeconds - delay suggested to rejected clients
+	 */
+	public InputExecutor(int threads, int queueSize, long retryAfterSeconds){
+		super("input-reader-", threads, queueSize, retryAfterSeconds);
+	}
+}
@@ -0,0 +1,204 @@
+package services;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ *******************************************************************************
+ *Merkle tree of the block hashes of an input: each leaf is the Fingerprint 
+ *of one block of blockSize bytes, each node combines its two children and 
+ *the root stands for the whole input. Two inputs of the same length are 
+ *compared descending only into the subtrees whose hashes differ, so only 
+ *the differing blocks have to be read. Hashes are kept per level in 
+ *primitive arrays (high and low 64 bits side by side) 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public final class MerkleTree {
+
+	public static final int DEFAULT_BLOCK_SIZE = 4 * 1024;
+
+	private final int blockSize;
+	private final int length;
+	//levels[0] holds the leaves, the last level the root
+	private final long[][] levels;
+
+	private MerkleTree(int blockSize, int length, long[][] levels){
+		this.blockSize = blockSize;
+		this.length = length;
+		this.levels = levels;
+	}
+
+	/**
+	 * Method to hash every block of an input and build the tree
+	 * @param data - input, from zero to limit
+	 * @param blockSize - size of the blocks hashed by the leaves
+	 * @return MerkleTree - tree of the input
+	 */
+	public static MerkleTree build(ByteBuffer data, int blockSize){
+		MerkleTree tree = allocate(data.limit(), blockSize);
+		tree.rehash(data, 0, tree.leaves());
+		return tree;
+	}
+
+	/**
+	 * Method to create the tree of an input written in parts, hashed with hashLeaves 
+	 * as each part is written and completed with hashNodes once all of them are
+	 * @param length - length of the input
+	 * @param blockSize - size of the blocks hashed by the leaves
+	 * @return MerkleTree - tree without any hash yet
+	 */
+	public static MerkleTree allocate(int length, int blockSize){
+		int leaves = Math.max(1, (int) ((length + (long) blockSize - 1) / blockSize));
+		int depth = 1;
+		for (int count = leaves; count > 1; count = (count + 1) / 2) depth++;
+		long[][] levels = new long[depth][];
+		for (int level = 0, count = leaves; level < depth; level++, count = (count + 1) / 2) {
+			levels[level] = new long[2 * count];
+		}
+		return new MerkleTree(blockSize, length, levels);
+	}
+
+	/**
+	 * @return MerkleTree - copy that can be updated without changing this tree
+	 */
+	public MerkleTree copy(){
+		long[][] copied = new long[levels.length][];
+		for (int level = 0; level < levels.length; level++) {
+			copied[level] = levels[level].clone();
+		}
+		return new MerkleTree(blockSize, length, copied);
+	}
+
+	/**
+	 * Method to hash again the blocks of a changed window and their ancestors
+	 * @param data - the changed input, from zero to limit
+	 * @param from - first changed byte
+	 * @param to - end of the changed bytes (exclusive)
+	 */
+	public void update(ByteBuffer data, int from, int to){
+		if (to <= from) return;
+		rehash(data, from / blockSize, (to - 1) / blockSize + 1);
+	}
+
+	/**
+	 * Method to hash the blocks of a written part of the input, parts of whole blocks 
+	 * can be hashed concurrently (their ancestors are only hashed by hashNodes)
+	 * @param data - the input, from zero to limit
+	 * @param from - first byte of the part, a multiple of the block size
+	 * @param to - end of the part (exclusive), a multiple of the block size or the input length
+	 */
+	public void hashLeaves(ByteBuffer data, int from, int to){
+		if (to <= from) return;
+		leafHashes(data, from / blockSize, (to - 1) / blockSize + 1);
+	}
+
+	/**
+	 * Method to hash every node above the leaves, once all the blocks are hashed
+	 */
+	public void hashNodes(){
+		nodeHashes(0, leaves());
+	}
+
+	private void rehash(ByteBuffer data, int firstLeaf, int endLeaf){
+		leafHashes(data, firstLeaf, endLeaf);
+		nodeHashes(firstLeaf, endLeaf);
+	}
+
+	private void leafHashes(ByteBuffer data, int firstLeaf, int endLeaf){
+		long[] leaves = levels[0];
+		for (int leaf = firstLeaf; leaf < endLeaf; leaf++) {
+			int offset = leaf * blockSize;
+			Fingerprint hash = Fingerprint.of(data, offset, Math.min(blockSize, length - offset));
+			leaves[2 * leaf] = hash.high();
+			leaves[2 * leaf + 1] = hash.low();
+		}
+	}
+
+	private void nodeHashes(int firstLeaf, int endLeaf){
+		for (int level = 1; level < levels.length; level++) {
+			firstLeaf /= 2;
+			endLeaf = (endLeaf + 1) / 2;
+			long[] children = levels[level - 1];
+			long[] nodes = levels[level];
+			for (int node = firstLeaf; node < endLeaf; node++) {
+				int child = 2 * node;
+				Fingerprint hash = new Fingerprint(children[2 * child], children[2 * child + 1]);
+				//a node without a second child keeps the hash of the first one
+				if (2 * (child + 1) < children.length) {
+					hash = Fingerprint.combine(hash, new Fingerprint(children[2 * child + 2], children[2 * child + 3]));
+				}
+				nodes[2 * node] = hash.high();
+				nodes[2 * node + 1] = hash.low();
+			}
+		}
+	}
+
+	/**
+	 * @return Fingerprint - hash of the whole input
+	 */
+	public Fingerprint root(){
+		long[] root = levels[levels.length - 1];
+		return new Fingerprint(root[0], root[1]);
+	}
+
+	/**
+	 * @return int - size of the blocks hashed by the leaves
+	 */
+	public int blockSize(){
+		return blockSize;
+	}
+
+	/**
+	 * @return int - number of blocks
+	 */
+	public int leaves(){
+		return levels[0].length / 2;
+	}
+
+	/**
+	 * @param other - tree to be compared
+	 * @return boolean - true if both trees hash blocks of the same size over the same length
+	 */
+	public boolean comparable(MerkleTree other){
+		return blockSize == other.blockSize && length == other.length;
+	}
+
+	/**
+	 * Method to find the blocks whose hashes differ, visiting only the differing subtrees
+	 * @param other - comparable tree
+	 * @return int[] - indexes of the differing blocks, in ascending order
+	 */
+	public int[] differingLeaves(MerkleTree other){
+		if (!comparable(other)) throw new IllegalArgumentException("Trees are not comparable");
+		int[] found = new int[16];
+		int count = 0;
+		//explicit stack of (level, node), the second child is pushed first so leaves come out in order
+		int[] stack = new int[2 * 2 * levels.length];
+		int top = 0;
+		stack[top++] = levels.length - 1;
+		stack[top++] = 0;
+		while (top > 0) {
+			int node = stack[--top];
+			int level = stack[--top];
+			long[] mine = levels[level];
+			long[] theirs = other.levels[level];
+			if (mine[2 * node] == theirs[2 * node] && mine[2 * node + 1] == theirs[2 * node + 1]) continue;
+			if (level == 0) {
+				if (count == found.length) found = Arrays.copyOf(found, count + (count >> 1) + 1);
+				found[count++] = node;
+				continue;
+			}
+			int child = 2 * node;
+			if (2 * (child + 1) < levels[level - 1].length) {
+				stack[top++] = level - 1;
+				stack[top++] = child + 1;
+			}
+			stack[top++] = level - 1;
+			stack[top++] = child;
+		}
+		return Arrays.copyOf(found, count);
+	}
+}
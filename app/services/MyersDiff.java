@@ -0,0 +1,202 @@
+package services;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.typesafe.config.Config;
+
+/**
+ *******************************************************************************
+ *Class responsible to compute the shortest edit script between two inputs 
+ *of any sizes with Myers' O(ND) algorithm, in its linear space form: the 
+ *middle snake of the edit graph is found searching forward and backward at 
+ *once, then both halves are solved recursively. Common prefixes and 
+ *suffixes are skipped before each search. The edit distance and the time 
+ *spent are capped (settings under diff.edits) 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+@Singleton
+public class MyersDiff {
+
+	private final int maxDistance;
+	private final long maxNanos;
+
+	/**
+	 * Raised to unwind the recursion once a cap is reached
+	 */
+	private static final class LimitExceeded extends RuntimeException {
+
+		private static final long serialVersionUID = 1L;
+
+		LimitExceeded(){
+			super(null, null, false, false);
+		}
+	}
+
+	@Inject
+	public MyersDiff(Config config){
+		this(config.getInt("diff.edits.maxDistance"),
+				config.getDuration("diff.edits.maxTime", TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * @param maxDistance - maximum number of deleted plus inserted bytes
+	 * @param maxMillis - maximum time spent on one edit script
+	 */
+	public MyersDiff(int maxDistance, long maxMillis){
+		this.maxDistance = Math.max(0, maxDistance);
+		this.maxNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+	}
+
+	/**
+	 * Method to compute the edit script turning the left input into the right one
+	 * @param left - left buffer, from zero to limit
+	 * @param right - right buffer, from zero to limit
+	 * @return EditScript - the operations, null if the distance or time cap was exceeded
+	 */
+	public EditScript diff(ByteBuffer left, ByteBuffer right){
+		Search search = new Search(left, right, System.nanoTime() + maxNanos);
+		try {
+			search.diff(0, left.limit(), 0, right.limit());
+		} catch (LimitExceeded e) {
+			return null;
+		}
+		//the searches are bounded by half the distance, the total is checked here
+		return search.script.distance() > maxDistance ? null : search.script;
+	}
+
+	/**
+	 * State of one edit script computation
+	 */
+	private final class Search {
+
+		private final ByteBuffer a;
+		private final ByteBuffer b;
+		private final long deadline;
+		private final EditScript script = new EditScript();
+
+		Search(ByteBuffer a, ByteBuffer b, long deadline){
+			this.a = a;
+			this.b = b;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Edit script of a[a0, a1) into b[b0, b1), appended in order
+		 */
+		void diff(int a0, int a1, int b0, int b1){
+			int prefix = 0;
+			while (a0 + prefix < a1 && b0 + prefix < b1 && a.get(a0 + prefix) == b.get(b0 + prefix)) prefix++;
+			script.add(EditScript.Op.EQUAL, a0, b0, prefix);
+			a0 += prefix;
+			b0 += prefix;
+			int suffix = 0;
+			while (a1 - suffix > a0 && b1 - suffix > b0 && a.get(a1 - suffix - 1) == b.get(b1 - suffix - 1)) suffix++;
+			a1 -= suffix;
+			b1 -= suffix;
+
+			if (a0 == a1) {
+				script.add(EditScript.Op.INSERT, a0, b0, b1 - b0);
+			} else if (b0 == b1) {
+				script.add(EditScript.Op.DELETE, a0, b0, a1 - a0);
+			} else {
+				bisect(a0, a1, b0, b1);
+			}
+			script.add(EditScript.Op.EQUAL, a1, b1, suffix);
+		}
+
+		/**
+		 * Finds the middle snake of a[a0, a1) and b[b0, b1) and solves both halves
+		 */
+		private void bisect(int a0, int a1, int b0, int b1){
+			int n = a1 - a0;
+			int m = b1 - b0;
+			//the middle snake of a script of distance D is found at d = ceil(D / 2)
+			int fullD = (int) ((n + m + 1L) / 2);
+			int maxD = Math.min(fullD, maxDistance / 2 + 1);
+			int offset = maxD;
+			int length = 2 * maxD + 2;
+			int[] forward = new int[length];
+			int[] backward = new int[length];
+			Arrays.fill(forward, -1);
+			Arrays.fill(backward, -1);
+			forward[offset + 1] = 0;
+			backward[offset + 1] = 0;
+			int delta = n - m;
+			//with an odd delta the paths meet on a forward step, otherwise on a backward one
+			boolean front = (delta & 1) != 0;
+			int forwardStart = 0, forwardEnd = 0, backwardStart = 0, backwardEnd = 0;
+
+			for (int d = 0; d < maxD; d++) {
+				if (System.nanoTime() > deadline) throw new LimitExceeded();
+
+				for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+					int index = offset + k;
+					int x = (k == -d || (k != d && forward[index - 1] < forward[index + 1]))
+							? forward[index + 1] : forward[index - 1] + 1;
+					int y = x - k;
+					while (x < n && y < m && a.get(a0 + x) == b.get(b0 + y)) {
+						x++;
+						y++;
+					}
+					forward[index] = x;
+					if (x > n) {
+						forwardEnd += 2;
+					} else if (y > m) {
+						forwardStart += 2;
+					} else if (front) {
+						int other = offset + delta - k;
+						if (other >= 0 && other < length && backward[other] != -1 && x >= n - backward[other]) {
+							split(a0, a1, b0, b1, x, y);
+							return;
+						}
+					}
+				}
+
+				for (int k = -d + backwardStart; k <= d - backwardEnd; k += 2) {
+					int index = offset + k;
+					int x = (k == -d || (k != d && backward[index - 1] < backward[index + 1]))
+							? backward[index + 1] : backward[index - 1] + 1;
+					int y = x - k;
+					while (x < n && y < m && a.get(a1 - x - 1) == b.get(b1 - y - 1)) {
+						x++;
+						y++;
+					}
+					backward[index] = x;
+					if (x > n) {
+						backwardEnd += 2;
+					} else if (y > m) {
+						backwardStart += 2;
+					} else if (!front) {
+						int other = offset + delta - k;
+						if (other >= 0 && other < length && forward[other] != -1) {
+							int forwardX = forward[other];
+							int forwardY = offset + forwardX - other;
+							if (forwardX >= n - x) {
+								split(a0, a1, b0, b1, forwardX, forwardY);
+								return;
+							}
+						}
+					}
+				}
+			}
+			//no middle snake within the capped distance
+			if (maxD < fullD) throw new LimitExceeded();
+			//nothing in common that could be kept
+			script.add(EditScript.Op.DELETE, a0, b0, n);
+			script.add(EditScript.Op.INSERT, a1, b0, m);
+		}
+
+		private void split(int a0, int a1, int b0, int b1, int x, int y){
+			diff(a0, a0 + x, b0, b0 + y);
+			diff(a0 + x, a1, b0 + y, b1);
+		}
+	}
+}
@@ -0,0 +1,264 @@
+package services;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.typesafe.config.Config;
+
+import play.inject.ApplicationLifecycle;
+
+/**
+ *******************************************************************************
+ *Class responsible to split large same size inputs in chunks and compare
+ *them concurrently on a fork/join pool (settings under diff.parallel).
+ *Stored inputs are first compared by their Merkle trees, so only the 
+ *blocks whose hashes differ are read. The ranges found are counted as each 
+ *chunk is compared and the comparison stops once there are more than 
+ *diff.stream.maxRanges, bounding the memory a pathological pair of inputs 
+ *(e.g. every other byte different) takes
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+@Singleton
+public class ParallelDiff {
+
+	private final DiffTools diffTools = new DiffTools();
+	private final ForkJoinPool pool;
+	private final long threshold;
+	private final int chunkSize;
+	private final int maxRanges;
+
+	/**
+	 * Comparison stopped because the inputs have more ranges of different bytes than allowed
+	 */
+	public static final class TooManyRangesException extends IllegalStateException {
+
+		private static final long serialVersionUID = 1L;
+
+		TooManyRangesException(int maxRanges){
+			super("Too many differences, more than " + maxRanges + " ranges");
+		}
+	}
+
+	@Inject
+	public ParallelDiff(Config config, ApplicationLifecycle lifecycle){
+		this(config.getInt("diff.parallel.parallelism"),
+				config.getBytes("diff.parallel.threshold"),
+				config.getBytes("diff.parallel.chunkSize").intValue(),
+				config.getInt("diff.stream.maxRanges"));
+		lifecycle.addStopHook(() -> {
+			shutdown();
+			return CompletableFuture.completedFuture(null);
+		});
+	}
+
+	/**
+	 * @param parallelism - number of worker threads, zero or less to use one per available processor
+	 * @param threshold - inputs smaller than this (in bytes) are compared sequentially on the caller thread
+	 * @param chunkSize - size (in bytes) of the chunks compared by each task
+	 */
+	public ParallelDiff(int parallelism, long threshold, int chunkSize){
+		this(parallelism, threshold, chunkSize, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param parallelism - number of worker threads, zero or less to use one per available processor
+	 * @param threshold - inputs smaller than this (in bytes) are compared sequentially on the caller thread
+	 * @param chunkSize - size (in bytes) of the chunks compared by each task
+	 * @param maxRanges - ranges found before the comparison is stopped
+	 */
+	public ParallelDiff(int parallelism, long threshold, int chunkSize, int maxRanges){
+		this.maxRanges = maxRanges;
+		this.pool = new ForkJoinPool(parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+		this.threshold = threshold;
+		//keep the chunk borders aligned with the 8 bytes words of the scanner
+		this.chunkSize = Math.max(8, chunkSize & ~7);
+	}
+
+	/**
+	 * Method to compare the left and right decoded inputs
+	 * @param left - left bytes that will be compared with the right
+	 * @param right - right bytes that will be compared with the left
+	 * @return DiffRanges - same ranges as DiffTools.diffBytes, empty if the inputs have different sizes
+	 */
+	public DiffRanges diffBytes(byte[] left, byte[] right){
+		if (left.length != right.length) return new DiffRanges();
+		return diff(ByteBuffer.wrap(left), ByteBuffer.wrap(right), left.length);
+	}
+
+	/**
+	 * Method to compare the first length bytes of two buffers (absolute indexes from zero)
+	 * @param left - left buffer
+	 * @param right - right buffer
+	 * @param length - how many bytes to compare
+	 * @return DiffRanges - offset and length of each difference
+	 * @throws TooManyRangesException - if there are more than maxRanges differences
+	 */
+	public DiffRanges diff(ByteBuffer left, ByteBuffer right, int length){
+		if (length < threshold) {
+			DiffRanges difference = new DiffRanges();
+			diffTools.diffRange(left, right, 0, length, difference);
+			return count(difference, new AtomicLong());
+		}
+		return pool.invoke(new DiffTask(left, right, 0, length, new AtomicLong()));
+	}
+
+	/**
+	 * Method to compare two stored inputs of the same size, reading only the blocks 
+	 * their Merkle trees tell apart
+	 * @param left - left input
+	 * @param right - right input
+	 * @return DiffRanges - offset and length of each difference
+	 * @throws TooManyRangesException - if there are more than maxRanges differences
+	 */
+	public DiffRanges diff(Payload left, Payload right){
+		if (!left.tree().comparable(right.tree())) {
+			return diff(left.buffer(), right.buffer(), left.length());
+		}
+		int[] blocks = left.tree().differingLeaves(right.tree());
+		return diffBlocks(left.buffer(), right.buffer(), left.length(), blocks, left.tree().blockSize());
+	}
+
+	/**
+	 * Method to compare some blocks of two buffers
+	 * @param left - left buffer
+	 * @param right - right buffer
+	 * @param length - size of the buffers, the last block may be shorter
+	 * @param blocks - indexes of the blocks to be compared, in ascending order
+	 * @param blockSize - size of the blocks
+	 * @return DiffRanges - offset and length of each difference inside the blocks
+	 * @throws TooManyRangesException - if there are more than maxRanges differences
+	 */
+	public DiffRanges diffBlocks(ByteBuffer left, ByteBuffer right, int length, int[] blocks, int blockSize){
+		if ((long) blocks.length * blockSize < threshold) {
+			DiffRanges difference = new DiffRanges();
+			for (int block : blocks) {
+				int from = block * blockSize;
+				diffTools.diffRange(left, right, from, Math.min(length, from + blockSize), difference);
+			}
+			return count(difference, new AtomicLong());
+		}
+		return pool.invoke(new BlocksTask(left, right, length, blocks, blockSize, 0, blocks.length, new AtomicLong()));
+	}
+
+	/**
+	 * Method to add the ranges of a compared chunk to those found by the whole comparison
+	 * @param difference - ranges of the chunk
+	 * @param found - ranges found so far, shared by the tasks of one comparison
+	 * @return DiffRanges - the ranges of the chunk
+	 * @throws TooManyRangesException - if there are more than maxRanges of them
+	 */
+	private DiffRanges count(DiffRanges difference, AtomicLong found){
+		if (found.addAndGet(difference.size()) > maxRanges) throw new TooManyRangesException(maxRanges);
+		return difference;
+	}
+
+	/**
+	 * Method to stop the worker threads
+	 */
+	public void shutdown(){
+		pool.shutdown();
+		try {
+			pool.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Task comparing the window [from, to), split in halves until it fits in one chunk
+	 */
+	private final class DiffTask extends RecursiveTask<DiffRanges> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ByteBuffer left;
+		private final ByteBuffer right;
+		private final int from;
+		private final int to;
+		private final AtomicLong found;
+
+		DiffTask(ByteBuffer left, ByteBuffer right, int from, int to, AtomicLong found){
+			this.left = left;
+			this.right = right;
+			this.from = from;
+			this.to = to;
+			this.found = found;
+		}
+
+		@Override
+		protected DiffRanges compute(){
+			if (to - from <= chunkSize) {
+				DiffRanges difference = new DiffRanges();
+				diffTools.diffRange(left, right, from, to, difference);
+				return count(difference, found);
+			}
+			int chunks = (to - from + chunkSize - 1) / chunkSize;
+			int middle = from + (chunks / 2) * chunkSize;
+			DiffTask first = new DiffTask(left, right, from, middle, found);
+			first.fork();
+			DiffRanges second = new DiffTask(left, right, middle, to, found).compute();
+			DiffRanges difference = first.join();
+			//a range ending on the border is merged with the one starting there
+			difference.addAll(second);
+			return difference;
+		}
+	}
+
+	/**
+	 * Task comparing the blocks [from, to) of a list, split in halves until they fit in one chunk
+	 */
+	private final class BlocksTask extends RecursiveTask<DiffRanges> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ByteBuffer left;
+		private final ByteBuffer right;
+		private final int length;
+		private final int[] blocks;
+		private final int blockSize;
+		private final int from;
+		private final int to;
+		private final AtomicLong found;
+
+		BlocksTask(ByteBuffer left, ByteBuffer right, int length, int[] blocks, int blockSize, int from, int to, AtomicLong found){
+			this.left = left;
+			this.right = right;
+			this.length = length;
+			this.blocks = blocks;
+			this.blockSize = blockSize;
+			this.from = from;
+			this.to = to;
+			this.found = found;
+		}
+
+		@Override
+		protected DiffRanges compute(){
+			if (to - from <= 1 || (long) (to - from) * blockSize <= chunkSize) {
+				DiffRanges difference = new DiffRanges();
+				for (int i = from; i < to; i++) {
+					int offset = blocks[i] * blockSize;
+					diffTools.diffRange(left, right, offset, Math.min(length, offset + blockSize), difference);
+				}
+				return count(difference, found);
+			}
+			int middle = (from + to) >>> 1;
+			BlocksTask first = new BlocksTask(left, right, length, blocks, blockSize, from, middle, found);
+			first.fork();
+			DiffRanges second = new BlocksTask(left, right, length, blocks, blockSize, middle, to, found).compute();
+			DiffRanges difference = first.join();
+			//a range ending on a block border is merged with the one starting there
+			difference.addAll(second);
+			return difference;
+		}
+	}
+}
@@ -0,0 +1,203 @@
+package services;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import services.storage.HeapStorage;
+import services.storage.PayloadStorage;
+import services.storage.StorageBlock;
+
+/**
+ *******************************************************************************
+ *Class responsible to hold one decoded input with its length, Merkle tree 
+ *of block hashes (whose root is the content fingerprint) and version 
+ *(replaced on every update or patch). The bytes 
+ *live in a block of the configured storage, readers retain the payload 
+ *while using its buffer so the block is only recycled after the last one. 
+ *A patch is applied in place when no reader holds the payload, the block 
+ *is then handed over to the patched version and only the hashes of the 
+ *patched blocks are computed again 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public final class Payload {
+
+	private final StorageBlock block;
+	private final int length;
+	private final MerkleTree tree;
+	private final long version;
+	private final long baseVersion;
+	//one reference is held by the store while the payload is current
+	private final AtomicInteger references = new AtomicInteger(1);
+
+	/**
+	 * @param block - storage block holding the decoded input, owned by the payload from now on
+	 * @param version - store wide unique version of this content
+	 */
+	public Payload(StorageBlock block, long version){
+		this(block, version, MerkleTree.DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @param block - storage block holding the decoded input, owned by the payload from now on
+	 * @param version - store wide unique version of this content
+	 * @param blockSize - size of the blocks hashed by the Merkle tree
+	 */
+	public Payload(StorageBlock block, long version, int blockSize){
+		this(block, version, -1, MerkleTree.build(block.buffer(), blockSize));
+	}
+
+	/**
+	 * @param block - storage block holding the decoded input, owned by the payload from now on
+	 * @param version - store wide unique version of this content
+	 * @param tree - Merkle tree already built over the content of the block
+	 */
+	public Payload(StorageBlock block, long version, MerkleTree tree){
+		this(block, version, -1, tree);
+	}
+
+	private Payload(StorageBlock block, long version, long baseVersion, MerkleTree tree){
+		this.block = block;
+		this.length = block.buffer().limit();
+		this.version = version;
+		this.baseVersion = baseVersion;
+		this.tree = tree;
+	}
+
+	/**
+	 * @param bytes - decoded input kept on the heap, owned by the payload from now on
+	 * @param version - store wide unique version of this content
+	 */
+	public Payload(byte[] bytes, long version){
+		this(new HeapStorage().store(bytes), version);
+	}
+
+	/**
+	 * @return ByteBuffer - read only view of the decoded input, from zero to length
+	 */
+	public ByteBuffer buffer(){
+		return block.buffer().asReadOnlyBuffer();
+	}
+
+	/**
+	 * @return byte[] - heap copy of the decoded input
+	 */
+	public byte[] copyBytes(){
+		byte[] bytes = new byte[length];
+		block.buffer().duplicate().get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * @return int - decoded length in bytes
+	 */
+	public int length(){
+		return length;
+	}
+
+	/**
+	 * @return Fingerprint - hash of the decoded input (root of the Merkle tree)
+	 */
+	public Fingerprint fingerprint(){
+		return tree.root();
+	}
+
+	/**
+	 * @return MerkleTree - block hashes of the decoded input
+	 */
+	public MerkleTree tree(){
+		return tree;
+	}
+
+	/**
+	 * Method to check if two inputs have the same content, comparing the bytes 
+	 * only when the lengths and fingerprints are equal
+	 * @param other - input to be compared
+	 * @return boolean - true if the contents are equal
+	 */
+	public boolean contentEquals(Payload other){
+		return length == other.length
+				&& fingerprint().equals(other.fingerprint())
+				&& block.buffer().duplicate().equals(other.block.buffer().duplicate());
+	}
+
+	/**
+	 * @return long - version of this content, changes on every create/update/patch
+	 */
+	public long version(){
+		return version;
+	}
+
+	/**
+	 * @return long - version this content was patched from, -1 if it was stored whole
+	 */
+	public long baseVersion(){
+		return baseVersion;
+	}
+
+	/**
+	 * Method to replace bytes of the input. When nobody else reads it the store reference 
+	 * of this payload is handed to the returned one and the bytes are written in place 
+	 * (readers acquiring meanwhile wait until the patched version is published), 
+	 * otherwise a copy is patched and this payload keeps its reference, the caller 
+	 * releases it once the patched version replaced it
+	 * @param offset - first byte to be replaced
+	 * @param data - replacement bytes
+	 * @param version - store wide unique version of the patched content
+	 * @param storage - where a copy is allocated if the payload is being read
+	 * @return Payload - patched input, null if this payload was released or is being patched in place
+	 * @throws IllegalArgumentException - if the patch does not fit in the input
+	 */
+	public Payload patch(int offset, byte[] data, long version, PayloadStorage storage){
+		if (offset < 0 || offset > length - data.length) {
+			throw new IllegalArgumentException("Patch is outside the input");
+		}
+		StorageBlock target;
+		MerkleTree targetTree;
+		if (references.compareAndSet(1, 0)) {
+			target = block;
+			targetTree = tree;
+		} else if (retain()) {
+			//the copy is read under its own reference, the block can not be patched in place meanwhile
+			try {
+				target = storage.allocate(length);
+				target.buffer().duplicate().put(block.buffer().duplicate());
+				targetTree = tree.copy();
+			} finally {
+				release();
+			}
+		} else {
+			return null;
+		}
+		ByteBuffer buffer = target.buffer().duplicate();
+		buffer.position(offset);
+		buffer.put(data);
+		targetTree.update(target.buffer(), offset, offset + data.length);
+		return new Payload(target, version, this.version, targetTree);
+	}
+
+	/**
+	 * Method to keep the buffer valid while it is read
+	 * @return boolean - false if the payload was already released (replaced and no longer read)
+	 */
+	public boolean retain(){
+		int count;
+		do {
+			count = references.get();
+			//negative once a payload patched in place is released by the change replacing it
+			if (count <= 0) return false;
+		} while (!references.compareAndSet(count, count + 1));
+		return true;
+	}
+
+	/**
+	 * Method to drop one reference, the storage block is released with the last one
+	 */
+	public void release(){
+		if (references.decrementAndGet() == 0) {
+			block.release();
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package services;
+
+/**
+ *******************************************************************************
+ *Sides of a diff, each id holds one input per side 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public enum Side {
+	LEFT, RIGHT;
+
+	/**
+	 * @return String - side name as used in the routes (left/right)
+	 */
+	public String path(){
+		return name().toLowerCase();
+	}
+
+	/**
+	 * @return Side - the opposite side
+	 */
+	public Side other(){
+		return this == LEFT ? RIGHT : LEFT;
+	}
+}
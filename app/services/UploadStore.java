@@ -0,0 +1,321 @@
+package services;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.typesafe.config.Config;
+
+import services.storage.StorageBlock;
+
+/**
+ *******************************************************************************
+ *Class responsible to keep the resumable uploads of large inputs. An
+ *upload is opened for an id, side and length, the whole block is allocated
+ *from the storage at once (a file region with the mapped backend) and its
+ *chunks are written at their own offsets, in any order and concurrently.
+ *The chunk size is a multiple of the Merkle block size, so the block hashes
+ *of each chunk are computed when it arrives and committing only hashes the
+ *upper nodes. A chunk can be sent again until the upload is committed;
+ *uploads idle for longer than diff.upload.timeout are dropped (checked by
+ *every call, so no timer thread is needed). The lengths of the open uploads
+ *are bounded by diff.upload.maxReserved, so a few clients announcing large
+ *inputs cannot allocate maxUploads blocks of maxLength each
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+@Singleton
+public class UploadStore {
+
+	private final ConcurrentHashMap<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+	private final DiffStore diffStore;
+	private final int chunkSize;
+	private final long maxLength;
+	private final int maxUploads;
+	private final long maxReserved;
+	private final long timeoutNanos;
+	//sum of the lengths of the open uploads
+	private final AtomicLong reserved = new AtomicLong();
+
+	/**
+	 * Upload of one input, its block is only written while the read lock is held
+	 * and only committed or released while the write lock is held
+	 */
+	public static final class Upload {
+
+		private final String key;
+		private final String id;
+		private final Side side;
+		private final int length;
+		private final int chunkSize;
+		private final StorageBlock block;
+		private final MerkleTree tree;
+		private final BitSet received = new BitSet();
+		private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+		private volatile long lastAccess = System.nanoTime();
+		private boolean closed;
+
+		Upload(String key, String id, Side side, int length, int chunkSize, StorageBlock block, int blockSize){
+			this.key = key;
+			this.id = id;
+			this.side = side;
+			this.length = length;
+			this.chunkSize = chunkSize;
+			this.block = block;
+			this.tree = MerkleTree.allocate(length, blockSize);
+		}
+
+		/**
+		 * @return String - key of the upload, used in its routes
+		 */
+		public String key(){
+			return key;
+		}
+
+		/**
+		 * @return String - id the input is stored for
+		 */
+		public String id(){
+			return id;
+		}
+
+		/**
+		 * @return Side - side the input is stored for
+		 */
+		public Side side(){
+			return side;
+		}
+
+		/**
+		 * @return int - length of the input in bytes
+		 */
+		public int length(){
+			return length;
+		}
+
+		/**
+		 * @return int - size of every chunk but the last one
+		 */
+		public int chunkSize(){
+			return chunkSize;
+		}
+
+		/**
+		 * @return int - number of chunks
+		 */
+		public int chunks(){
+			return Math.max(1, (int) ((length + (long) chunkSize - 1) / chunkSize));
+		}
+
+		/**
+		 * @param chunk - index of a chunk
+		 * @return int - its expected size in bytes
+		 */
+		public int chunkLength(int chunk){
+			return (int) Math.min(chunkSize, length - (long) chunk * chunkSize);
+		}
+
+		/**
+		 * @return int[] - indexes of the chunks not received yet, in ascending order
+		 */
+		public int[] missing(){
+			synchronized (received) {
+				int[] missing = new int[chunks() - received.cardinality()];
+				for (int chunk = received.nextClearBit(0), i = 0; i < missing.length; chunk = received.nextClearBit(chunk + 1)) {
+					missing[i++] = chunk;
+				}
+				return missing;
+			}
+		}
+
+		/**
+		 * Method to write a chunk at its offset and hash its blocks
+		 * @param chunk - index of the chunk
+		 * @param data - bytes of the chunk, exactly chunkLength(chunk) of them
+		 * @return boolean - false if the upload was committed or dropped meanwhile
+		 * @throws IllegalArgumentException - if the index is out of range or the size is not the expected one
+		 */
+		public boolean write(int chunk, ByteBuffer data){
+			if (chunk < 0 || chunk >= chunks()) throw new IllegalArgumentException("Invalid chunk, expected 0 to " + (chunks() - 1));
+			if (data.remaining() != chunkLength(chunk)) {
+				throw new IllegalArgumentException("Invalid chunk size, expected " + chunkLength(chunk) + " bytes");
+			}
+			lock.readLock().lock();
+			try {
+				if (closed) return false;
+				lastAccess = System.nanoTime();
+				int offset = chunk * chunkSize;
+				ByteBuffer target = block.buffer().duplicate();
+				target.position(offset);
+				target.put(data.duplicate());
+				tree.hashLeaves(block.buffer(), offset, offset + chunkLength(chunk));
+				synchronized (received) {
+					received.set(chunk);
+				}
+				return true;
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+
+		/**
+		 * Method to stop accepting chunks once the writes in progress are done
+		 * @param complete - true to close only if every chunk was received
+		 * @return boolean - false if it was already closed, or is incomplete
+		 */
+		private boolean close(boolean complete){
+			lock.writeLock().lock();
+			try {
+				if (closed || (complete && missing().length > 0)) return false;
+				closed = true;
+				return true;
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+	}
+
+	@Inject
+	public UploadStore(DiffStore diffStore, Config config){
+		this(diffStore, config.getBytes("diff.upload.chunkSize"), config.getBytes("diff.upload.maxLength"),
+				config.getInt("diff.upload.maxUploads"), config.getBytes("diff.upload.maxReserved"),
+				config.getDuration("diff.upload.timeout", TimeUnit.MILLISECONDS));
+	}
+
+	/**
+	 * @param diffStore - where the committed inputs are stored
+	 * @param chunkSize - size of the chunks (rounded up to a multiple of the Merkle block size)
+	 * @param maxLength - maximum length of an input (at most what a storage block can hold)
+	 * @param maxUploads - maximum number of uploads open at once
+	 * @param maxReserved - maximum sum of the lengths of the uploads open at once
+	 * @param timeoutMillis - how long an upload is kept without receiving chunks
+	 */
+	public UploadStore(DiffStore diffStore, long chunkSize, long maxLength, int maxUploads, long maxReserved, long timeoutMillis){
+		int blockSize = diffStore.blockSize();
+		this.diffStore = diffStore;
+		this.chunkSize = (int) Math.min((Integer.MAX_VALUE - 8) / blockSize * blockSize,
+				Math.max(1, (chunkSize + blockSize - 1) / blockSize) * blockSize);
+		this.maxLength = Math.min(maxLength, Integer.MAX_VALUE - 8);
+		this.maxUploads = maxUploads;
+		this.maxReserved = maxReserved;
+		this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	}
+
+	/**
+	 * Method to open an upload, allocating its block
+	 * @param id - unique :id used to localized the input
+	 * @param side - side of the input
+	 * @param length - length of the input in bytes
+	 * @return Upload - the new upload, null if maxUploads are already open or
+	 *         their lengths and this one would be above maxReserved
+	 * @throws IllegalArgumentException - if the length is negative or above the maximum
+	 */
+	public Upload open(String id, Side side, long length){
+		if (length < 0 || length > maxLength) throw new IllegalArgumentException("Invalid length, at most " + maxLength);
+		expire();
+		if (uploads.size() >= maxUploads) return null;
+		if (reserved.addAndGet(length) > maxReserved) {
+			reserved.addAndGet(-length);
+			return null;
+		}
+		StorageBlock block;
+		try {
+			block = diffStore.storage().allocate((int) length);
+		} catch (RuntimeException | OutOfMemoryError e) {
+			reserved.addAndGet(-length);
+			throw e;
+		}
+		String key = UUID.randomUUID().toString();
+		Upload upload = new Upload(key, id, side, (int) length, chunkSize, block, diffStore.blockSize());
+		uploads.put(key, upload);
+		return upload;
+	}
+
+	/**
+	 * @param key - key of the upload
+	 * @return Upload - the open upload, null if unknown, committed, dropped or expired
+	 */
+	public Upload get(String key){
+		expire();
+		return uploads.get(key);
+	}
+
+	/**
+	 * Method to store the uploaded input, once every chunk was received
+	 * @param upload - upload to be committed
+	 * @return Payload - the stored input, null if chunks are missing or the upload was closed meanwhile
+	 */
+	public Payload commit(Upload upload){
+		if (!upload.close(true)) return null;
+		uploads.remove(upload.key);
+		reserved.addAndGet(-upload.length);
+		upload.tree.hashNodes();
+		return diffStore.put(upload.id, upload.side, upload.block, upload.tree);
+	}
+
+	/**
+	 * Method to drop an upload, its block is freed once the chunks being written are done
+	 * @param key - key of the upload
+	 * @return boolean - true if the upload was open
+	 */
+	public boolean remove(String key){
+		expire();
+		Upload upload = uploads.remove(key);
+		if (upload == null || !upload.close(false)) return false;
+		release(upload);
+		return true;
+	}
+
+	/**
+	 * @return int - size of the chunks, a multiple of the Merkle block size
+	 */
+	public int chunkSize(){
+		return chunkSize;
+	}
+
+	/**
+	 * @return int - number of uploads open
+	 */
+	public int size(){
+		return uploads.size();
+	}
+
+	/**
+	 * @return long - sum of the lengths of the uploads open
+	 */
+	public long reserved(){
+		return reserved.get();
+	}
+
+	//dropped by the next call to the store, so no timer thread is needed
+	private void expire(){
+		long now = System.nanoTime();
+		Iterator<Upload> itr = uploads.values().iterator();
+		while (itr.hasNext()) {
+			Upload upload = itr.next();
+			if (expired(upload, now) && upload.close(false)) {
+				itr.remove();
+				release(upload);
+			}
+		}
+	}
+
+	private void release(Upload upload){
+		reserved.addAndGet(-upload.length);
+		upload.block.release();
+	}
+
+	private boolean expired(Upload upload, long now){
+		return now - upload.lastAccess > timeoutNanos;
+	}
+}
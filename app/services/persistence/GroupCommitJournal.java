@@ -0,0 +1,209 @@
+package services.persistence;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import play.Logger;
+import services.Payload;
+import services.Side;
+
+/**
+ *******************************************************************************
+ *Base of the journals writing on a single thread. Concurrent appends are
+ *queued, the writer collects up to maxBatch of them (waiting at most
+ *maxDelay for more) and makes the whole batch durable at once
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public abstract class GroupCommitJournal implements PayloadJournal {
+
+	private static final Logger.ALogger logger = Logger.of(GroupCommitJournal.class);
+
+	private final String threadName;
+	private final int maxBatch;
+	private final long maxDelayNanos;
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+	private Thread writer;
+
+	/**
+	 * Input waiting to be written, whole or only the patched bytes
+	 */
+	protected static final class Append {
+
+		public final String id;
+		public final Side side;
+		public final Payload payload;
+		//patched window, -1 when the whole input is written
+		public final int offset;
+		public final int length;
+
+		Append(String id, Side side, Payload payload, int offset, int length){
+			this.id = id;
+			this.side = side;
+			this.payload = payload;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		/**
+		 * @return boolean - true if only the bytes from offset to offset + length changed
+		 */
+		public boolean isPatch(){
+			return offset >= 0;
+		}
+	}
+
+	/**
+	 * Queued append, or a task to be run by the writer between two batches
+	 */
+	private static final class Pending {
+
+		private final Append append;
+		private final Callable<?> task;
+		private final CompletableFuture<Object> done = new CompletableFuture<Object>();
+
+		Pending(Append append, Callable<?> task){
+			this.append = append;
+			this.task = task;
+		}
+	}
+
+	//asks the writer thread to finish
+	private static final Callable<Object> STOP = () -> null;
+
+	/**
+	 * @param threadName - name of the writer thread
+	 * @param maxBatch - maximum number of appends made durable at once
+	 * @param maxDelayMillis - how long the writer waits for more appends before writing a batch
+	 */
+	protected GroupCommitJournal(String threadName, int maxBatch, long maxDelayMillis){
+		this.threadName = threadName;
+		this.maxBatch = Math.max(1, maxBatch);
+		this.maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+	}
+
+	/**
+	 * Method to write a batch of appends, it must only return once all of them are durable
+	 * @param appends - appends in the order they were made
+	 * @throws Exception - if the batch could not be made durable (every append of the batch fails)
+	 */
+	protected abstract void writeBatch(List<Append> appends) throws Exception;
+
+	/**
+	 * Method to start the writer thread, called once recovery is done
+	 */
+	protected void startWriter(){
+		writer = new Thread(this::runWriter, threadName);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * @return boolean - true if the writer thread was started and not stopped
+	 */
+	protected boolean writerStarted(){
+		return writer != null;
+	}
+
+	@Override
+	public CompletionStage<Void> append(String id, Side side, Payload payload){
+		return enqueue(new Append(id, side, payload, -1, -1));
+	}
+
+	@Override
+	public CompletionStage<Void> patch(String id, Side side, Payload payload, int offset, int length){
+		return enqueue(new Append(id, side, payload, offset, length));
+	}
+
+	private CompletionStage<Void> enqueue(Append append){
+		if (writer == null) throw new IllegalStateException("Journal was not recovered");
+		Pending pending = new Pending(append, null);
+		queue.add(pending);
+		return pending.done.thenApply(done -> null);
+	}
+
+	/**
+	 * Method to run a task on the writer thread, after every append queued before it is durable
+	 * @param task - task to be run
+	 * @return T - result of the task
+	 */
+	@SuppressWarnings("unchecked")
+	protected <T> T onWriter(Callable<T> task){
+		Pending pending = new Pending(null, task);
+		queue.add(pending);
+		return (T) pending.done.join();
+	}
+
+	/**
+	 * Method to write what is still queued and stop the writer thread
+	 */
+	protected void stopWriter(){
+		if (writer == null) return;
+		onWriter(STOP);
+		writer = null;
+	}
+
+	private void runWriter(){
+		List<Pending> batch = new ArrayList<Pending>(maxBatch);
+		List<Pending> appends = new ArrayList<Pending>(maxBatch);
+		while (true) {
+			try {
+				batch.add(queue.take());
+				long deadline = System.nanoTime() + maxDelayNanos;
+				while (batch.size() < maxBatch) {
+					long remaining = deadline - System.nanoTime();
+					Pending next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+					if (next == null) break;
+					batch.add(next);
+				}
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			for (Pending pending : batch) {
+				if (pending.append != null) {
+					appends.add(pending);
+					continue;
+				}
+				//tasks split the batch, the appends queued before them are written first
+				commit(appends);
+				try {
+					pending.done.complete(pending.task.call());
+				} catch (Exception e) {
+					pending.done.completeExceptionally(e);
+				}
+				if (pending.task == STOP) return;
+			}
+			commit(appends);
+			batch.clear();
+		}
+	}
+
+	private void commit(List<Pending> pendings){
+		if (pendings.isEmpty()) return;
+		List<Append> appends = new ArrayList<Append>(pendings.size());
+		for (Pending pending : pendings) {
+			appends.add(pending.append);
+		}
+		Exception failure = null;
+		try {
+			writeBatch(appends);
+		} catch (Exception e) {
+			failure = e;
+			logger.error("Journal batch of " + appends.size() + " appends failed", e);
+		}
+		for (Pending pending : pendings) {
+			if (failure == null) pending.done.complete(null);
+			else pending.done.completeExceptionally(failure);
+		}
+		pendings.clear();
+	}
+}
@@ -0,0 +1,145 @@
+package services.persistence;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import org.h2.jdbcx.JdbcConnectionPool;
+
+import services.Side;
+
+/**
+ *******************************************************************************
+ *Journal keeping the inputs in an embedded H2 database (file mode), one row
+ *per id and side with the input as a BLOB plus its length, fingerprint and
+ *version. Concurrent appends are merged by the writer thread in a single
+ *transaction per batch, using one connection and prepared statement for
+ *the lifetime of the journal
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public class H2Journal extends GroupCommitJournal {
+
+	private static final String CREATE = "CREATE TABLE IF NOT EXISTS payload ("
+			+ "id VARCHAR NOT NULL, side TINYINT NOT NULL, length INT NOT NULL, "
+			+ "fingerprint CHAR(32) NOT NULL, version BIGINT NOT NULL, data BLOB NOT NULL, "
+			+ "PRIMARY KEY (id, side))";
+	private static final String MERGE = "MERGE INTO payload (id, side, length, fingerprint, version, data) "
+			+ "KEY (id, side) VALUES (?, ?, ?, ?, ?, ?)";
+	private static final String SELECT = "SELECT id, side, length, data FROM payload";
+
+	private final JdbcConnectionPool pool;
+	//owned by the writer thread
+	private Connection connection;
+	private PreparedStatement merge;
+
+	/**
+	 * @param directory - where the database file is kept (created if missing)
+	 * @param maxConnections - size of the connection pool
+	 * @param maxBatch - maximum number of appends written in one transaction
+	 * @param maxDelayMillis - how long the writer waits for more appends before a commit
+	 */
+	public H2Journal(File directory, int maxConnections, int maxBatch, long maxDelayMillis){
+		super("diff-h2-writer", maxBatch, maxDelayMillis);
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new UncheckedIOException(new IOException("Cannot create directory " + directory));
+		}
+		this.pool = JdbcConnectionPool.create("jdbc:h2:file:" + new File(directory, "diff").getAbsolutePath(), "sa", "");
+		pool.setMaxConnections(maxConnections);
+	}
+
+	@Override
+	public void recover(Replay replay){
+		try (Connection reader = pool.getConnection()) {
+			try (Statement statement = reader.createStatement()) {
+				statement.execute(CREATE);
+			}
+			try (Statement statement = reader.createStatement();
+					ResultSet rows = statement.executeQuery(SELECT)) {
+				while (rows.next()) {
+					byte[] data = new byte[rows.getInt(3)];
+					try (InputStream in = rows.getBinaryStream(4)) {
+						new DataInputStream(in).readFully(data);
+					}
+					replay.put(rows.getString(1), Side.values()[rows.getByte(2)], data);
+				}
+			}
+			connection = pool.getConnection();
+			connection.setAutoCommit(false);
+			merge = connection.prepareStatement(MERGE);
+		} catch (SQLException e) {
+			throw new IllegalStateException("Cannot open the H2 journal", e);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		startWriter();
+	}
+
+	@Override
+	protected void writeBatch(List<Append> appends) throws SQLException {
+		try {
+			//patches are written as the whole patched input, the row is replaced anyway
+			for (Append append : appends) {
+				merge.setString(1, append.id);
+				merge.setByte(2, (byte) append.side.ordinal());
+				merge.setInt(3, append.payload.length());
+				merge.setString(4, append.payload.fingerprint().toString());
+				merge.setLong(5, append.payload.version());
+				merge.setBinaryStream(6, new BufferInputStream(append.payload.buffer()), append.payload.length());
+				merge.addBatch();
+			}
+			merge.executeBatch();
+			connection.commit();
+		} catch (SQLException e) {
+			connection.rollback();
+			throw e;
+		}
+	}
+
+	@Override
+	public void close(){
+		stopWriter();
+		try {
+			if (connection != null) connection.close();
+		} catch (SQLException e) {
+			//closing anyway
+		}
+		pool.dispose();
+	}
+
+	/**
+	 * Stream over a buffer, so the BLOB is written without a full heap copy of the input
+	 */
+	private static final class BufferInputStream extends InputStream {
+
+		private final ByteBuffer buffer;
+
+		BufferInputStream(ByteBuffer buffer){
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read(){
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len){
+			if (!buffer.hasRemaining()) return -1;
+			int count = Math.min(len, buffer.remaining());
+			buffer.get(b, off, count);
+			return count;
+		}
+	}
+}
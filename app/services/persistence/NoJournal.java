@@ -0,0 +1,28 @@
+package services.persistence;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+import services.Payload;
+import services.Side;
+
+/**
+ *******************************************************************************
+ *Journal used when persistence is disabled, inputs only live in memory 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public class NoJournal implements PayloadJournal {
+
+	private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+	@Override
+	public void recover(Replay replay){}
+
+	@Override
+	public CompletionStage<Void> append(String id, Side side, Payload payload){
+		return DONE;
+	}
+}
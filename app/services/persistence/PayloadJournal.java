@@ -0,0 +1,105 @@
+package services.persistence;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletionStage;
+
+import services.Payload;
+import services.Side;
+
+/**
+ *******************************************************************************
+ *Persistence SPI used by the DiffStore to keep the inputs across restarts. 
+ *The backend is selected by diff.persistence.backend 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public interface PayloadJournal {
+
+	/**
+	 * Receiver of the inputs found in the journal
+	 */
+	interface Replay {
+
+		/**
+		 * @param id - unique :id used to localized the input
+		 * @param side - side of the input
+		 * @param data - decoded input, owned by the receiver
+		 */
+		void put(String id, Side side, byte[] data);
+
+		/**
+		 * @param id - unique :id used to localized the input
+		 * @param side - side of the input
+		 * @param offset - first byte replaced
+		 * @param data - replacement bytes, owned by the receiver
+		 */
+		void patch(String id, Side side, int offset, byte[] data);
+	}
+
+	/**
+	 * Source of the current inputs, used to write snapshots
+	 */
+	interface State {
+
+		/**
+		 * @param replay - receiver of every current input (data is only valid during the call)
+		 */
+		void forEach(StateVisitor replay);
+	}
+
+	/**
+	 * Receiver of the current inputs
+	 */
+	interface StateVisitor {
+
+		/**
+		 * @param id - unique :id used to localized the input
+		 * @param side - side of the input
+		 * @param data - decoded input, from zero to limit
+		 */
+		void visit(String id, Side side, ByteBuffer data);
+	}
+
+	/**
+	 * Method to load the persisted inputs at startup, before anything is appended
+	 * @param replay - receiver of the inputs, called in the order they were written
+	 */
+	void recover(Replay replay);
+
+	/**
+	 * Method to start the background work that needs the current inputs (snapshots)
+	 * @param state - source of the current inputs
+	 */
+	default void start(State state){}
+
+	/**
+	 * Method to persist a created/updated input. Appends must be called in the 
+	 * same order the inputs were changed in memory
+	 * @param id - unique :id used to localized the input
+	 * @param side - side of the input
+	 * @param payload - stored input, retained by the caller until the returned stage completes
+	 * @return CompletionStage<Void> - completed when the input is durable
+	 */
+	CompletionStage<Void> append(String id, Side side, Payload payload);
+
+	/**
+	 * Method to persist a patched input, by default the whole input is appended. 
+	 * Patches follow the same ordering as appends
+	 * @param id - unique :id used to localized the input
+	 * @param side - side of the input
+	 * @param payload - patched input, retained by the caller until the returned stage completes
+	 * @param offset - first byte replaced
+	 * @param length - number of bytes replaced
+	 * @return CompletionStage<Void> - completed when the patch is durable
+	 */
+	default CompletionStage<Void> patch(String id, Side side, Payload payload, int offset, int length){
+		return append(id, side, payload);
+	}
+
+	/**
+	 * Method to flush pending work and free the resources when the application stops
+	 */
+	default void close(){}
+}
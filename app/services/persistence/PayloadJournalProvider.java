@@ -0,0 +1,62 @@
+package services.persistence;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+import com.typesafe.config.Config;
+
+import play.inject.ApplicationLifecycle;
+
+/**
+ *******************************************************************************
+ *Class responsible to create the journal chosen by diff.persistence.backend 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public class PayloadJournalProvider implements Provider<PayloadJournal> {
+
+	private final Config config;
+	private final ApplicationLifecycle lifecycle;
+
+	@Inject
+	public PayloadJournalProvider(Config config, ApplicationLifecycle lifecycle){
+		this.config = config;
+		this.lifecycle = lifecycle;
+	}
+
+	@Override
+	public PayloadJournal get(){
+		PayloadJournal journal;
+		String backend = config.getString("diff.persistence.backend");
+		File directory = new File(config.getString("diff.persistence.directory"));
+		switch (backend) {
+			case "none":
+				return new NoJournal();
+			case "wal":
+				journal = new WriteAheadLog(directory,
+						config.getInt("diff.persistence.wal.maxBatch"),
+						config.getDuration("diff.persistence.wal.maxDelay", TimeUnit.MILLISECONDS),
+						config.getDuration("diff.persistence.wal.snapshotInterval", TimeUnit.MILLISECONDS));
+				break;
+			case "h2":
+				journal = new H2Journal(directory,
+						config.getInt("diff.persistence.h2.maxConnections"),
+						config.getInt("diff.persistence.h2.maxBatch"),
+						config.getDuration("diff.persistence.h2.maxDelay", TimeUnit.MILLISECONDS));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown diff.persistence.backend: " + backend);
+		}
+		lifecycle.addStopHook(() -> {
+			journal.close();
+			return CompletableFuture.completedFuture(null);
+		});
+		return journal;
+	}
+}
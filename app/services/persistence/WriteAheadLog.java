@@ -0,0 +1,315 @@
+package services.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import play.Logger;
+import services.Side;
+
+/**
+ *******************************************************************************
+ *Journal appending every created/updated input to a write ahead log.
+ *Concurrent appends are written by a single thread and made durable with
+ *one fsync per batch (group commit). Periodically the log is rotated and a
+ *compacted snapshot of the current inputs is written, so a restart only
+ *loads the latest snapshot and replays the log segments written after it. 
+ *Patches are logged with only their replaced bytes
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public class WriteAheadLog extends GroupCommitJournal {
+
+	private static final Logger.ALogger logger = Logger.of(WriteAheadLog.class);
+
+	private static final int RECORD_MAGIC = 0xD1FF0001;
+	private static final byte PUT = 1;
+	private static final byte PATCH = 2;
+	private static final int COPY_CHUNK = 64 * 1024;
+
+	private final File directory;
+	private final long snapshotIntervalMillis;
+
+	private final byte[] chunk = new byte[COPY_CHUNK];
+	private ScheduledExecutorService snapshots;
+	private State state;
+
+	//current log segment, only used by the writer thread after recovery
+	private long segment;
+	private FileOutputStream segmentFile;
+	private CheckedOutputStream checked;
+	private DataOutputStream out;
+
+	/**
+	 * @param directory - where the log segments and snapshots are kept (created if missing)
+	 * @param maxBatch - maximum number of appends made durable by one fsync
+	 * @param maxDelayMillis - how long the writer waits for more appends before an fsync
+	 * @param snapshotIntervalMillis - time between snapshots, zero or less to only snapshot on close
+	 */
+	public WriteAheadLog(File directory, int maxBatch, long maxDelayMillis, long snapshotIntervalMillis){
+		super("diff-wal-writer", maxBatch, maxDelayMillis);
+		this.directory = directory;
+		this.snapshotIntervalMillis = snapshotIntervalMillis;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new UncheckedIOException(new IOException("Cannot create directory " + directory));
+		}
+	}
+
+	@Override
+	public void recover(Replay replay){
+		TreeMap<Long, File> segments = new TreeMap<Long, File>();
+		TreeMap<Long, File> snapshotFiles = new TreeMap<Long, File>();
+		File[] files = directory.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			String name = file.getName();
+			if (name.startsWith("wal-") && name.endsWith(".log")) {
+				segments.put(sequence(name), file);
+			} else if (name.startsWith("snapshot-") && name.endsWith(".bin")) {
+				snapshotFiles.put(sequence(name), file);
+			} else if (name.endsWith(".tmp")) {
+				//snapshot interrupted before it was complete
+				file.delete();
+			}
+		}
+
+		long start = System.nanoTime();
+		long snapshot = snapshotFiles.isEmpty() ? 0 : snapshotFiles.lastKey();
+		int records = 0;
+		if (!snapshotFiles.isEmpty()) {
+			records += read(snapshotFiles.lastEntry().getValue(), replay);
+		}
+		for (File file : segments.tailMap(snapshot, true).values()) {
+			records += read(file, replay);
+		}
+		logger.info("Recovered {} records from {} in {} ms", records, directory,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+
+		deleteBefore(snapshot);
+		long last = Math.max(snapshot, segments.isEmpty() ? 0 : segments.lastKey());
+		try {
+			open(last + 1);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		startWriter();
+	}
+
+	@Override
+	public void start(State state){
+		this.state = state;
+		if (snapshotIntervalMillis > 0) {
+			snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "diff-wal-snapshot");
+				thread.setDaemon(true);
+				return thread;
+			});
+			snapshots.scheduleWithFixedDelay(this::snapshotQuietly,
+					snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Takes a last snapshot (so the next start does not replay the log) and stops the writer
+	 */
+	@Override
+	public void close(){
+		if (!writerStarted()) return;
+		if (snapshots != null) snapshots.shutdownNow();
+		snapshotQuietly();
+		onWriter(() -> {
+			closeSegment();
+			return null;
+		});
+		stopWriter();
+	}
+
+	/**
+	 * Method to write a compacted snapshot of the current inputs and drop the
+	 * log segments it makes obsolete
+	 * @throws IOException - if the snapshot could not be written
+	 */
+	public synchronized void snapshot() throws IOException {
+		if (state == null || !writerStarted()) return;
+
+		//everything appended before the rotation is already in memory, so it is in the snapshot
+		long sequence = onWriter(() -> {
+			closeSegment();
+			open(segment + 1);
+			return segment;
+		});
+
+		File tmp = new File(directory, String.format("snapshot-%016d.tmp", sequence));
+		try (FileOutputStream file = new FileOutputStream(tmp)) {
+			CheckedOutputStream snapshotChecked = new CheckedOutputStream(new BufferedOutputStream(file, COPY_CHUNK), new CRC32());
+			DataOutputStream snapshotOut = new DataOutputStream(snapshotChecked);
+			byte[] snapshotChunk = new byte[COPY_CHUNK];
+			IOException[] failure = new IOException[1];
+			state.forEach((id, side, data) -> {
+				if (failure[0] != null) return;
+				try {
+					write(snapshotOut, snapshotChecked, snapshotChunk, id, side, data);
+				} catch (IOException e) {
+					failure[0] = e;
+				}
+			});
+			if (failure[0] != null) throw failure[0];
+			snapshotOut.flush();
+			file.getChannel().force(true);
+		}
+		Files.move(tmp.toPath(), new File(directory, String.format("snapshot-%016d.bin", sequence)).toPath(),
+				StandardCopyOption.ATOMIC_MOVE);
+		deleteBefore(sequence);
+	}
+
+	private void snapshotQuietly(){
+		try {
+			snapshot();
+		} catch (IOException | RuntimeException e) {
+			logger.error("Snapshot failed", e);
+		}
+	}
+
+	@Override
+	protected void writeBatch(List<Append> appends) throws IOException {
+		for (Append append : appends) {
+			if (append.isPatch()) {
+				writePatch(out, checked, chunk, append.id, append.side, append.payload.buffer(), append.offset, append.length);
+			} else {
+				write(out, checked, chunk, append.id, append.side, append.payload.buffer());
+			}
+		}
+		out.flush();
+		segmentFile.getChannel().force(false);
+	}
+
+	private void open(long sequence) throws IOException {
+		segment = sequence;
+		segmentFile = new FileOutputStream(new File(directory, String.format("wal-%016d.log", sequence)), true);
+		checked = new CheckedOutputStream(new BufferedOutputStream(segmentFile, COPY_CHUNK), new CRC32());
+		out = new DataOutputStream(checked);
+	}
+
+	private void closeSegment() throws IOException {
+		out.flush();
+		segmentFile.getChannel().force(false);
+		out.close();
+	}
+
+	/**
+	 * Record: magic, type, id, side, length, data and the CRC32 of everything after the magic
+	 */
+	private static void write(DataOutputStream out, CheckedOutputStream checked, byte[] chunk,
+			String id, Side side, ByteBuffer data) throws IOException {
+		out.writeInt(RECORD_MAGIC);
+		checked.getChecksum().reset();
+		out.writeByte(PUT);
+		out.writeUTF(id);
+		out.writeByte(side.ordinal());
+		ByteBuffer source = data.duplicate();
+		source.position(0);
+		writeData(out, checked, chunk, source);
+	}
+
+	/**
+	 * Record: magic, type, id, side, offset, length, replaced bytes and the CRC32 of everything after the magic
+	 */
+	private static void writePatch(DataOutputStream out, CheckedOutputStream checked, byte[] chunk,
+			String id, Side side, ByteBuffer data, int offset, int length) throws IOException {
+		out.writeInt(RECORD_MAGIC);
+		checked.getChecksum().reset();
+		out.writeByte(PATCH);
+		out.writeUTF(id);
+		out.writeByte(side.ordinal());
+		out.writeInt(offset);
+		ByteBuffer source = data.duplicate();
+		source.limit(offset + length);
+		source.position(offset);
+		writeData(out, checked, chunk, source);
+	}
+
+	private static void writeData(DataOutputStream out, CheckedOutputStream checked, byte[] chunk,
+			ByteBuffer source) throws IOException {
+		out.writeInt(source.remaining());
+		while (source.hasRemaining()) {
+			int length = Math.min(chunk.length, source.remaining());
+			source.get(chunk, 0, length);
+			out.write(chunk, 0, length);
+		}
+		out.writeLong(checked.getChecksum().getValue());
+	}
+
+	/**
+	 * Method to replay the records of a file, stopping at the first incomplete or corrupted one
+	 * @return int - number of records replayed
+	 */
+	private static int read(File file, Replay replay){
+		int records = 0;
+		try (CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(file), COPY_CHUNK), new CRC32())) {
+			DataInputStream in = new DataInputStream(checked);
+			while (true) {
+				int magic;
+				try {
+					magic = in.readInt();
+				} catch (EOFException e) {
+					return records;
+				}
+				checked.getChecksum().reset();
+				if (magic != RECORD_MAGIC) break;
+				byte type = in.readByte();
+				if (type != PUT && type != PATCH) break;
+				String id = in.readUTF();
+				Side side = Side.values()[in.readByte()];
+				int offset = type == PATCH ? in.readInt() : 0;
+				byte[] data = new byte[in.readInt()];
+				in.readFully(data);
+				long crc = checked.getChecksum().getValue();
+				if (in.readLong() != crc) break;
+				if (type == PATCH) replay.patch(id, side, offset, data);
+				else replay.put(id, side, data);
+				records++;
+			}
+		} catch (EOFException | ArrayIndexOutOfBoundsException | NegativeArraySizeException e) {
+			//torn write at the end of the file
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		logger.warn("Ignoring incomplete record at the end of {}", file);
+		return records;
+	}
+
+	private void deleteBefore(long sequence){
+		File[] files = directory.listFiles();
+		for (File file : files == null ? new File[0] : files) {
+			String name = file.getName();
+			boolean log = name.startsWith("wal-") && name.endsWith(".log");
+			boolean snapshot = name.startsWith("snapshot-") && name.endsWith(".bin");
+			if ((log || snapshot) && sequence(name) < sequence) {
+				file.delete();
+			}
+		}
+	}
+
+	private static long sequence(String name){
+		return Long.parseLong(name.substring(name.indexOf('-') + 1, name.indexOf('.')));
+	}
+}
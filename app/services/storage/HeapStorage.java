@@ -0,0 +1,44 @@
+package services.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ *******************************************************************************
+ *Storage keeping the inputs in byte arrays on the java heap 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public class HeapStorage implements PayloadStorage {
+
+	@Override
+	public StorageBlock allocate(int length){
+		return new HeapBlock(new byte[length]);
+	}
+
+	/**
+	 * The decoded array is adopted instead of copied
+	 */
+	@Override
+	public StorageBlock store(byte[] data){
+		return new HeapBlock(data);
+	}
+
+	private static final class HeapBlock implements StorageBlock {
+
+		private final ByteBuffer buffer;
+
+		HeapBlock(byte[] data){
+			this.buffer = ByteBuffer.wrap(data);
+		}
+
+		@Override
+		public ByteBuffer buffer(){
+			return buffer;
+		}
+
+		@Override
+		public void release(){}
+	}
+}
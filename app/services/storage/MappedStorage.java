@@ -0,0 +1,87 @@
+package services.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ *******************************************************************************
+ *Storage keeping each input in its own file under diff.storage.mapped.directory, 
+ *memory mapped so the inputs live in the page cache instead of the java heap 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public class MappedStorage implements PayloadStorage {
+
+	private final File directory;
+	private final Set<File> files = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param directory - where the files are created (created if missing)
+	 */
+	public MappedStorage(File directory){
+		this.directory = directory;
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new UncheckedIOException(new IOException("Cannot create directory " + directory));
+		}
+	}
+
+	@Override
+	public StorageBlock allocate(int length){
+		try {
+			File file = File.createTempFile("payload", ".bin", directory);
+			files.add(file);
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(length);
+				MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+				return new MappedBlock(file, mapped);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Method to delete the files still held by the storage
+	 */
+	@Override
+	public void close(){
+		for (File file : files) {
+			file.delete();
+		}
+		files.clear();
+	}
+
+	private final class MappedBlock implements StorageBlock {
+
+		private final File file;
+		private final ByteBuffer buffer;
+
+		MappedBlock(File file, ByteBuffer buffer){
+			this.file = file;
+			this.buffer = buffer;
+		}
+
+		@Override
+		public ByteBuffer buffer(){
+			return buffer;
+		}
+
+		/**
+		 * The mapping stays valid until collected, only the file name is removed
+		 */
+		@Override
+		public void release(){
+			files.remove(file);
+			file.delete();
+		}
+	}
+}
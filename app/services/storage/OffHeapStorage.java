@@ -0,0 +1,104 @@
+package services.storage;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ *******************************************************************************
+ *Storage keeping the inputs in direct (off heap) memory. Inputs up to the 
+ *slab size are carved from shared slabs in power of two size classes and 
+ *recycled through one free list per class, bigger inputs get their own 
+ *direct buffer 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public class OffHeapStorage implements PayloadStorage {
+
+	//smallest size class, 2^MIN_SHIFT bytes
+	private static final int MIN_SHIFT = 6;
+
+	private final int slabSize;
+	private final ArrayDeque<ByteBuffer>[] freeLists;
+	private ByteBuffer slab;
+
+	/**
+	 * @param slabSize - size of each direct slab, rounded up to a power of two
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public OffHeapStorage(int slabSize){
+		this.slabSize = Integer.highestOneBit(Math.max(slabSize - 1, 1 << MIN_SHIFT)) << 1;
+		int classes = Integer.numberOfTrailingZeros(this.slabSize) - MIN_SHIFT + 1;
+		this.freeLists = new ArrayDeque[classes];
+		for (int i = 0; i < classes; i++) {
+			freeLists[i] = new ArrayDeque<ByteBuffer>();
+		}
+	}
+
+	@Override
+	public StorageBlock allocate(int length){
+		if (length > slabSize) {
+			return new OffHeapBlock(ByteBuffer.allocateDirect(length), -1, length);
+		}
+		int sizeClass = sizeClass(length);
+		return new OffHeapBlock(take(sizeClass), sizeClass, length);
+	}
+
+	private static int sizeClass(int length){
+		int shift = 32 - Integer.numberOfLeadingZeros(Math.max(length, 1) - 1);
+		return Math.max(shift, MIN_SHIFT) - MIN_SHIFT;
+	}
+
+	private synchronized ByteBuffer take(int sizeClass){
+		ByteBuffer chunk = freeLists[sizeClass].poll();
+		if (chunk != null) return chunk;
+		int chunkSize = 1 << (sizeClass + MIN_SHIFT);
+		if (slab == null || slab.remaining() < chunkSize) {
+			//the rest of the current slab is split in smaller chunks
+			while (slab != null && slab.remaining() >= 1 << MIN_SHIFT) {
+				int rest = sizeClass(Integer.highestOneBit(slab.remaining()));
+				freeLists[rest].push(cut(1 << (rest + MIN_SHIFT)));
+			}
+			slab = ByteBuffer.allocateDirect(slabSize);
+		}
+		return cut(chunkSize);
+	}
+
+	private ByteBuffer cut(int chunkSize){
+		ByteBuffer chunk = slab.slice();
+		chunk.limit(chunkSize);
+		slab.position(slab.position() + chunkSize);
+		return chunk.slice();
+	}
+
+	private synchronized void free(ByteBuffer chunk, int sizeClass){
+		chunk.clear();
+		freeLists[sizeClass].push(chunk);
+	}
+
+	private final class OffHeapBlock implements StorageBlock {
+
+		private final ByteBuffer chunk;
+		private final ByteBuffer buffer;
+		private final int sizeClass;
+
+		OffHeapBlock(ByteBuffer chunk, int sizeClass, int length){
+			this.chunk = chunk;
+			this.sizeClass = sizeClass;
+			ByteBuffer view = chunk.duplicate();
+			view.limit(length);
+			this.buffer = view.slice();
+		}
+
+		@Override
+		public ByteBuffer buffer(){
+			return buffer;
+		}
+
+		@Override
+		public void release(){
+			if (sizeClass >= 0) free(chunk, sizeClass);
+		}
+	}
+}
@@ -0,0 +1,36 @@
+package services.storage;
+
+/**
+ *******************************************************************************
+ *Storage SPI used by the DiffStore to hold the decoded inputs. The backend 
+ *is selected by diff.storage.backend (heap, offheap or mapped) 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public interface PayloadStorage {
+
+	/**
+	 * Method to allocate a block for an input
+	 * @param length - size of the input in bytes
+	 * @return StorageBlock - block of exactly length bytes (content is undefined until written)
+	 */
+	StorageBlock allocate(int length);
+
+	/**
+	 * Method to store a copy of a decoded input
+	 * @param data - decoded input
+	 * @return StorageBlock - block holding the input
+	 */
+	default StorageBlock store(byte[] data){
+		StorageBlock block = allocate(data.length);
+		block.buffer().duplicate().put(data);
+		return block;
+	}
+
+	/**
+	 * Method to free everything held by the storage when the application stops
+	 */
+	default void close(){}
+}
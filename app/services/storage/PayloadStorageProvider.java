@@ -0,0 +1,55 @@
+package services.storage;
+
+import java.io.File;
+import java.util.concurrent.CompletableFuture;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+
+import com.typesafe.config.Config;
+
+import play.inject.ApplicationLifecycle;
+
+/**
+ *******************************************************************************
+ *Class responsible to create the storage backend chosen by diff.storage.backend 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public class PayloadStorageProvider implements Provider<PayloadStorage> {
+
+	private final Config config;
+	private final ApplicationLifecycle lifecycle;
+
+	@Inject
+	public PayloadStorageProvider(Config config, ApplicationLifecycle lifecycle){
+		this.config = config;
+		this.lifecycle = lifecycle;
+	}
+
+	@Override
+	public PayloadStorage get(){
+		PayloadStorage storage;
+		String backend = config.getString("diff.storage.backend");
+		switch (backend) {
+			case "heap":
+				storage = new HeapStorage();
+				break;
+			case "offheap":
+				storage = new OffHeapStorage(config.getBytes("diff.storage.offheap.slabSize").intValue());
+				break;
+			case "mapped":
+				storage = new MappedStorage(new File(config.getString("diff.storage.mapped.directory")));
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown diff.storage.backend: " + backend);
+		}
+		lifecycle.addStopHook(() -> {
+			storage.close();
+			return CompletableFuture.completedFuture(null);
+		});
+		return storage;
+	}
+}
@@ -0,0 +1,50 @@
+package services.storage;
+
+import java.nio.ByteBuffer;
+
+/**
+ *******************************************************************************
+ *Memory allocated by a PayloadStorage to hold one decoded input 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public interface StorageBlock {
+
+	/**
+	 * @return ByteBuffer - the block memory, position zero and limit equal to the allocated length
+	 */
+	ByteBuffer buffer();
+
+	/**
+	 * Method to give the memory back to the storage, the buffer must not be used afterwards
+	 */
+	void release();
+
+	/**
+	 * Method to use only the beginning of the block, for inputs whose exact length was 
+	 * not known when the block was allocated
+	 * @param length - number of bytes kept, at most the allocated length
+	 * @return StorageBlock - view of the first length bytes, releasing it releases this block
+	 */
+	default StorageBlock truncate(int length){
+		if (length == buffer().limit()) return this;
+		StorageBlock whole = this;
+		ByteBuffer view = buffer().duplicate();
+		view.limit(length);
+		ByteBuffer truncated = view.slice();
+		return new StorageBlock() {
+
+			@Override
+			public ByteBuffer buffer(){
+				return truncated;
+			}
+
+			@Override
+			public void release(){
+				whole.release();
+			}
+		};
+	}
+}
@@ -0,0 +1,68 @@
+import java.util.Random;
+
+import services.Base64Codec;
+import services.storage.OffHeapStorage;
+import services.storage.PayloadStorage;
+import services.storage.StorageBlock;
+
+/**
+ *******************************************************************************
+ *Benchmark of validating and decoding Base64 inputs: commons-codec (isBase64 
+ *plus decodeBase64, as the controller did), java.util.Base64 and the strict 
+ *Base64Codec into pooled offheap blocks (run with: sbt "test:runMain Base64Benchmark") 
+ *Arguments: input size in KB (default 1024), number of inputs (default 64) 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public class Base64Benchmark {
+
+	private static final int WARMUP = 5;
+	private static final int RUNS = 10;
+
+	public static void main(String[] args) {
+		int size = (args.length > 0 ? Integer.parseInt(args[0]) : 1024) * 1024;
+		int count = args.length > 1 ? Integer.parseInt(args[1]) : 64;
+		Random random = new Random(1);
+		String[] inputs = new String[count];
+		for (int i = 0; i < count; i++) {
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			inputs[i] = java.util.Base64.getEncoder().encodeToString(data);
+		}
+		PayloadStorage storage = new OffHeapStorage(4 * size);
+
+		long commons = Long.MAX_VALUE, jdk = Long.MAX_VALUE, codec = Long.MAX_VALUE;
+		long check = 0;
+		for (int run = 0; run < WARMUP + RUNS; run++) {
+			long start = System.nanoTime();
+			for (String input : inputs) {
+				if (!org.apache.commons.codec.binary.Base64.isBase64(input.getBytes())) throw new IllegalStateException();
+				check += org.apache.commons.codec.binary.Base64.decodeBase64(input).length;
+			}
+			long first = System.nanoTime();
+			for (String input : inputs) {
+				check += java.util.Base64.getDecoder().decode(input).length;
+			}
+			long second = System.nanoTime();
+			for (String input : inputs) {
+				StorageBlock block = Base64Codec.decode(input, storage);
+				check += block.buffer().limit();
+				block.release();
+			}
+			long end = System.nanoTime();
+			if (run >= WARMUP) {
+				commons = Math.min(commons, first - start);
+				jdk = Math.min(jdk, second - first);
+				codec = Math.min(codec, end - second);
+			}
+		}
+		double megabytes = (double) inputs[0].length() * count / (1024 * 1024);
+		System.out.println(String.format("%,d inputs of %,d encoded chars (%d)", count, inputs[0].length(), check));
+		System.out.println(String.format("%-28s %10s %10s", "decoder", "ms", "MB/s"));
+		System.out.println(String.format("%-28s %10.2f %10.1f", "commons isBase64 + decode", commons / 1e6, megabytes / (commons / 1e9)));
+		System.out.println(String.format("%-28s %10.2f %10.1f", "java.util.Base64", jdk / 1e6, megabytes / (jdk / 1e9)));
+		System.out.println(String.format("%-28s %10.2f %10.1f", "Base64Codec (pooled)", codec / 1e6, megabytes / (codec / 1e9)));
+	}
+}
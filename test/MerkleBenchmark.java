@@ -0,0 +1,59 @@
+import java.util.Random;
+
+import services.DiffRanges;
+import services.ParallelDiff;
+import services.Payload;
+import services.storage.HeapStorage;
+
+/**
+ *******************************************************************************
+ *Benchmark comparing the full scan with the Merkle guided diff, for inputs 
+ *with different mismatch densities (run with: sbt "test:runMain MerkleBenchmark") 
+ *Arguments: input size in MB (default 64), block size in bytes (default 4096) 
+ *@author      Alessandro Hunhoff 
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public class MerkleBenchmark {
+
+	private static final double[] DENSITIES = {0, 0.000001, 0.00001, 0.0001, 0.001, 0.01};
+	private static final int WARMUP = 3;
+	private static final int RUNS = 5;
+
+	public static void main(String[] args) {
+		int size = (args.length > 0 ? Integer.parseInt(args[0]) : 64) * 1024 * 1024;
+		int blockSize = args.length > 1 ? Integer.parseInt(args[1]) : 4096;
+		Random random = new Random(1);
+		byte[] left = new byte[size];
+		random.nextBytes(left);
+		Payload leftPayload = new Payload(new HeapStorage().store(left), 1, blockSize);
+		ParallelDiff parallelDiff = new ParallelDiff(0, 4L * 1024 * 1024, 1024 * 1024);
+
+		System.out.println(String.format("%,d bytes, %,d bytes blocks", size, blockSize));
+		System.out.println(String.format("%-10s %8s %12s %12s", "density", "ranges", "scan ms", "merkle ms"));
+		for (double density : DENSITIES) {
+			byte[] right = left.clone();
+			long mismatches = Math.round(size * density);
+			for (long i = 0; i < mismatches; i++) right[random.nextInt(size)]++;
+			Payload rightPayload = new Payload(new HeapStorage().store(right), 2, blockSize);
+
+			DiffRanges ranges = null;
+			long scan = Long.MAX_VALUE, merkle = Long.MAX_VALUE;
+			for (int run = 0; run < WARMUP + RUNS; run++) {
+				long start = System.nanoTime();
+				ranges = parallelDiff.diff(leftPayload.buffer(), rightPayload.buffer(), size);
+				long middle = System.nanoTime();
+				DiffRanges guided = parallelDiff.diff(leftPayload, rightPayload);
+				long end = System.nanoTime();
+				if (!guided.equals(ranges)) throw new IllegalStateException("Different results");
+				if (run >= WARMUP) {
+					scan = Math.min(scan, middle - start);
+					merkle = Math.min(merkle, end - middle);
+				}
+			}
+			System.out.println(String.format("%-10s %8d %12.2f %12.2f", density, ranges.size(), scan / 1e6, merkle / 1e6));
+		}
+		parallelDiff.shutdown();
+	}
+}
@@ -0,0 +1,111 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import services.DiffStore;
+import services.Side;
+import services.persistence.PayloadJournal;
+import services.persistence.WriteAheadLog;
+import services.storage.MappedStorage;
+
+/**
+ *******************************************************************************
+ *Benchmark of a restart with the write ahead log: a snapshot is written, then
+ *a log tail of updates and patches is appended without closing the log (as
+ *after a crash), and the time to read it back and to restart a DiffStore
+ *from it is measured. Inputs live in mapped storage, so the dataset can be
+ *larger than the heap (run with: sbt "test:runMain RecoveryBenchmark")
+ *Arguments: snapshot size in MB (default 1024), log tail size in MB (default
+ *1024), input size in MB (default 16), directory (default a temporary one)
+ *@author      Alessandro Hunhoff
+ *@author 	   ale0711@gmail.com
+ *******************************************************************************
+ **/
+
+public class RecoveryBenchmark {
+
+	//bytes of the patch appended after every update of the tail
+	private static final int PATCH = 4096;
+	private static final int RUNS = 3;
+
+	public static void main(String[] args) throws Exception {
+		long snapshotSize = (args.length > 0 ? Long.parseLong(args[0]) : 1024) * 1024 * 1024;
+		long tailSize = (args.length > 1 ? Long.parseLong(args[1]) : 1024) * 1024 * 1024;
+		int inputSize = (args.length > 2 ? Integer.parseInt(args[2]) : 16) * 1024 * 1024;
+		File directory = args.length > 3 ? new File(args[3]) : Files.createTempDirectory("diff-recovery").toFile();
+		File wal = new File(directory, "wal");
+		Random random = new Random(1);
+		byte[] data = new byte[inputSize];
+
+		//both sides of an id are inputs of the snapshot, the tail updates them in turn
+		int inputs = (int) Math.max(1, snapshotSize / inputSize);
+		MappedStorage written = new MappedStorage(new File(directory, "written"));
+		WriteAheadLog journal = new WriteAheadLog(wal, 64, 1, 0);
+		DiffStore store = new DiffStore(written, journal);
+		long start = System.nanoTime();
+		for (int i = 0; i < inputs; i++) {
+			random.nextBytes(data);
+			store.create("id" + i / 2, Side.values()[i % 2], data);
+		}
+		journal.snapshot();
+		long snapshotNanos = System.nanoTime() - start;
+		start = System.nanoTime();
+		long updates = Math.max(1, tailSize / inputSize);
+		byte[] patch = new byte[PATCH];
+		for (long i = 0; i < updates; i++) {
+			String id = "id" + (i % inputs) / 2;
+			Side side = Side.values()[(int) (i % inputs % 2)];
+			random.nextBytes(data);
+			store.update(id, side, data);
+			random.nextBytes(patch);
+			store.patch(id, side, random.nextInt(inputSize - PATCH), patch);
+		}
+		long tailNanos = System.nanoTime() - start;
+		//left unclosed, as after a crash, so the next start replays the tail
+		store = null;
+		written.close();
+
+		long snapshotBytes = 0, tailBytes = 0;
+		for (File file : wal.listFiles()) {
+			if (file.getName().startsWith("snapshot-")) snapshotBytes += file.length();
+			else tailBytes += file.length();
+		}
+		System.out.println(String.format("snapshot %,d bytes (%d inputs of %,d bytes) written in %.0f ms",
+				snapshotBytes, inputs, inputSize, snapshotNanos / 1e6));
+		System.out.println(String.format("log tail %,d bytes (%d updates, %d patches of %,d bytes) written in %.0f ms",
+				tailBytes, updates, updates, PATCH, tailNanos / 1e6));
+		System.out.println(String.format("%-8s %12s %12s %12s %12s", "run", "read ms", "read MB/s", "restart ms", "restart MB/s"));
+
+		double total = (snapshotBytes + tailBytes) / (1024.0 * 1024);
+		for (int run = 0; run < RUNS; run++) {
+			//only reading and checking the records
+			AtomicLong replayed = new AtomicLong();
+			WriteAheadLog reader = new WriteAheadLog(wal, 64, 1, 0);
+			start = System.nanoTime();
+			reader.recover(new PayloadJournal.Replay() {
+
+				@Override
+				public void put(String id, Side side, byte[] input){
+					replayed.addAndGet(input.length);
+				}
+
+				@Override
+				public void patch(String id, Side side, int offset, byte[] input){
+					replayed.addAndGet(input.length);
+				}
+			});
+			long read = System.nanoTime() - start;
+
+			//a whole restart, storing every input again
+			MappedStorage restored = new MappedStorage(new File(directory, "restored"));
+			start = System.nanoTime();
+			DiffStore restarted = new DiffStore(restored, new WriteAheadLog(wal, 64, 1, 0));
+			long restart = System.nanoTime() - start;
+			if (restarted.get("id0", Side.LEFT) == null || replayed.get() == 0) throw new IllegalStateException("Nothing recovered");
+			restored.close();
+			System.out.println(String.format("%-8d %12.0f %12.1f %12.0f %12.1f", run, read / 1e6, total / (read / 1e9),
+					restart / 1e6, total / (restart / 1e9)));
+		}
+	}
+}
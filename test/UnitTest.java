@@ -11,6 +11,8 @@ import static play.test.Helpers.contentAsString;
 import static play.test.Helpers.fakeRequest;
 import static play.test.Helpers.route;
 
+import java.util.List;
+
 import javax.validation.constraints.AssertFalse;
 
 import org.junit.Before;
@@ -19,13 +21,42 @@ import org.junit.Test;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
+import akka.stream.Materializer;
+import akka.stream.javadsl.Sink;
+import akka.util.ByteString;
 import controllers.HomeController;
 import play.libs.Json;
 import play.mvc.Http.RequestBuilder;
 import play.mvc.Result;
 import play.test.Helpers;
 import play.test.WithApplication;
+import services.Base64Codec;
+import services.BlockDelta;
+import services.BlockDiff;
+import services.DiffEvents;
+import services.DiffExecutor;
+import services.DiffPage;
+import services.DiffPrecompute;
+import services.DiffRanges;
+import services.DiffResult;
+import services.DiffResultCache;
+import services.DiffResultWriter;
+import services.DiffStore;
 import services.DiffTools;
+import services.EditScript;
+import services.Fingerprint;
+import services.MyersDiff;
+import services.ParallelDiff;
+import services.Payload;
+import services.Side;
+import services.UploadStore;
+import services.persistence.H2Journal;
+import services.persistence.WriteAheadLog;
+import services.storage.HeapStorage;
+import services.storage.MappedStorage;
+import services.storage.OffHeapStorage;
+import services.storage.PayloadStorage;
+import services.storage.StorageBlock;
 
 /**
  *******************************************************************************
@@ -89,12 +120,824 @@ public class UnitTest extends WithApplication {
 		assertEquals("[Offset: 0 & Lenght: 10]",diffTools.diffString("0000000000", "1111111111").toString());
 	}
 
+	/**
+	 * Test byte diff offsets and lengths, on unaligned lengths and ranges straddling the 8 bytes words
+	 */
+	@Test
+	public void testDiffBytesRanges() {
+		DiffTools diffTools = new DiffTools();
+		String[][] inputs = {
+				{"00000100000", "00000100000", "[]"},
+				{"10000100000", "00000100000", "[Offset: 0 & Lenght: 1]"},
+				{"00000100000", "00000100001", "[Offset: 10 & Lenght: 1]"},
+				{"1100000000111000011111000000000000000111", "0000000000000000000000000000000000000000",
+						"[Offset: 0 & Lenght: 2, Offset: 10 & Lenght: 3, Offset: 17 & Lenght: 5, Offset: 37 & Lenght: 3]"},
+				{"0000000000", "1111111111", "[Offset: 0 & Lenght: 10]"},
+				//the equal last byte is not counted into the run (the former string diff gave length 2)
+				{"10", "00", "[Offset: 0 & Lenght: 1]"},
+				{"0110", "0000", "[Offset: 1 & Lenght: 2]"},
+				//a run ending on the word boundary, and one straddling two words
+				{"0000000110", "0000000000", "[Offset: 7 & Lenght: 2]"},
+				{"00000001111111110000000000000000011111111", "00000000000000000000000000000000000000000",
+						"[Offset: 7 & Lenght: 9, Offset: 33 & Lenght: 8]"},
+				//unaligned lengths, differences in the tail shorter than a word
+				{"0000000000001", "0000000000000", "[Offset: 12 & Lenght: 1]"},
+				{"000000001", "000000000", "[Offset: 8 & Lenght: 1]"},
+				{"0000001111000000", "0000000000000000", "[Offset: 6 & Lenght: 4]"},
+				{"0000000101000000", "0000000000000000", "[Offset: 7 & Lenght: 1, Offset: 9 & Lenght: 1]"}};
+		for (String[] input : inputs) {
+			assertEquals(input[2], diffTools.diffBytes(input[0].getBytes(), input[1].getBytes()).toString());
+			assertEquals(input[2], diffTools.diffString(input[0], input[1]).toString());
+		}
+		//bytes above 0x7f differ like any other
+		assertEquals("[Offset: 3 & Lenght: 1]", diffTools.diffBytes(new byte[] {0, 0, 0, (byte) 0x80, 0}, new byte[5]).toString());
+		assertEquals(0, diffTools.diffBytes("0123".getBytes(), "01234".getBytes()).size());
+	}
+
+	/**
+	 * Test byte diff with differences crossing the 8 bytes words
+	 */
+	@Test
+	public void testDiffBytesAcrossWords() {
+		DiffTools diffTools = new DiffTools();
+		byte[] left = new byte[1000];
+		byte[] right = new byte[1000];
+		for (int i = 7; i < 17; i++) right[i] = 1;
+		for (int i = 500; i < 508; i++) right[i] = 1;
+		right[999] = 1;
+		assertEquals("[Offset: 7 & Lenght: 10, Offset: 500 & Lenght: 8, Offset: 999 & Lenght: 1]",
+				diffTools.diffBytes(left, right).toString());
+	}
+
+	/**
+	 * Test parallel diff gives the same ranges as the sequential one, including ranges crossing chunks
+	 */
+	@Test
+	public void testParallelDiffSameAsSequential() {
+		DiffTools diffTools = new DiffTools();
+		ParallelDiff parallelDiff = new ParallelDiff(4, 0, 64);
+		try {
+			java.util.Random random = new java.util.Random(7);
+			byte[] left = new byte[10000];
+			random.nextBytes(left);
+			byte[] right = left.clone();
+			for (int i = 60; i < 200; i++) right[i]++;
+			for (int i = 0; i < 300; i++) right[random.nextInt(right.length)]++;
+			right[right.length - 1]++;
+			assertEquals(diffTools.diffBytes(left, right), parallelDiff.diffBytes(left, right));
+			assertEquals(0, parallelDiff.diffBytes(left, left.clone()).size());
+		} finally {
+			parallelDiff.shutdown();
+		}
+	}
+
+	/**
+	 * Test a comparison finding more ranges than allowed is stopped, sequentially and in parallel
+	 */
+	@Test
+	public void testMaxRanges() {
+		ParallelDiff sequential = new ParallelDiff(2, Long.MAX_VALUE, 64, 100);
+		ParallelDiff parallel = new ParallelDiff(2, 0, 64, 100);
+		try {
+			byte[] left = new byte[10000];
+			byte[] right = new byte[10000];
+			//every other byte different
+			for (int i = 0; i < right.length; i += 2) right[i] = 1;
+			for (ParallelDiff parallelDiff : new ParallelDiff[] {sequential, parallel}) {
+				try {
+					parallelDiff.diffBytes(left, right);
+					assertTrue(false);
+				} catch (ParallelDiff.TooManyRangesException e) {
+					assertTrue(e.getMessage().contains("100"));
+				}
+				//exactly the maximum is still allowed
+				assertEquals(100, parallelDiff.diffBytes(java.util.Arrays.copyOf(left, 200), java.util.Arrays.copyOf(right, 200)).size());
+			}
+
+			//the result says so instead of holding the ranges, and is cached like any other
+			DiffStore diffStore = new DiffStore(new HeapStorage());
+			DiffResultCache cache = new DiffResultCache(100, 1 << 20);
+			DiffPrecompute precompute = new DiffPrecompute(diffStore, cache, parallel, 0);
+			Payload leftPayload = diffStore.create("many", Side.LEFT, left);
+			Payload rightPayload = diffStore.create("many", Side.RIGHT, right);
+			DiffResult result = precompute.result("many", leftPayload, rightPayload);
+			assertEquals(DiffResult.Status.TOO_MANY_RANGES, result.status());
+			assertEquals(0, result.ranges().size());
+			assertTrue(result == cache.peek("many", leftPayload.version(), rightPayload.version()));
+		} finally {
+			sequential.shutdown();
+			parallel.shutdown();
+		}
+	}
+
+	/**
+	 * Test store keeps one decoded input per side, created once and replaced on update
+	 */
+	@Test
+	public void testDiffStore() {
+		DiffStore diffStore = new DiffStore(new HeapStorage());
+		assertEquals(null, diffStore.update("store", Side.LEFT, "ABC".getBytes()));
+		Payload created = diffStore.create("store", Side.LEFT, "ABC".getBytes());
+		assertEquals(3, created.length());
+		assertEquals(null, diffStore.create("store", Side.LEFT, "ABD".getBytes()));
+		assertEquals(null, diffStore.get("store", Side.RIGHT));
+		Payload updated = diffStore.update("store", Side.LEFT, "ABD".getBytes());
+		assertTrue(updated.version() > created.version());
+		assertFalse(updated.fingerprint().equals(created.fingerprint()));
+		assertEquals("ABD", new String(diffStore.get("store", Side.LEFT).copyBytes()));
+	}
+
+	/**
+	 * Test result cache only answers for the same versions and respects its bounds
+	 */
+	@Test
+	public void testDiffResultCache() {
+		DiffResultCache diffCache = new DiffResultCache(2, 1024);
+		DiffResult equal = new DiffResult(DiffResult.Status.EQUAL, null);
+		diffCache.put("a", 1, 2, equal);
+		assertEquals(equal, diffCache.get("a", 1, 2));
+		assertEquals(null, diffCache.get("a", 1, 3));
+		diffCache.put("b", 3, 4, equal);
+		diffCache.get("a", 1, 2);
+		diffCache.put("c", 5, 6, equal);
+		assertEquals(null, diffCache.get("b", 3, 4));
+		assertEquals(2, diffCache.size());
+		DiffRanges large = new DiffRanges();
+		for (int i = 0; i < 256; i++) large.add(i * 2, 1);
+		diffCache.put("d", 7, 8, new DiffResult(DiffResult.Status.SAME_SIZE, large));
+		assertEquals(null, diffCache.get("d", 7, 8));
+		diffCache.invalidate("a");
+		assertEquals(null, diffCache.get("a", 1, 2));
+		assertEquals(2, diffCache.hits());
+		assertEquals(4, diffCache.misses());
+		assertEquals(1, diffCache.evictions());
+	}
+
+	/**
+	 * Test repeated diff requests are answered from the cache until an input is updated
+	 */
+	@Test
+	public void testCachedDifference() {
+		jsonInput0 = Json.newObject();
+		jsonInput1 = Json.newObject();
+		jsonInput0.put("input","MTIzNDQ2Nzg5");
+		jsonInput1.put("input","MDIzNDU2Nzg5");
+		route(app, requestWithJsonBody("POST","/v1/diff/test/left",Json.toJson(jsonInput0)));
+		route(app, requestWithJsonBody("POST","/v1/diff/test/right",Json.toJson(jsonInput1)));
+
+		RequestBuilder request = Helpers.fakeRequest().method(GET).uri("/v1/diff/test");
+		String first = contentAsString(route(app, request));
+		assertEquals(first, contentAsString(route(app, request)));
+		assertTrue(first.contains("Offset: 0 & Lenght: 1, Offset: 4 & Lenght: 1"));
+
+		route(app, requestWithJsonBody("PUT","/v1/diff/test/right",Json.toJson(jsonInput0)));
+		assertTrue(contentAsString(route(app, request)).contains("inputs are equal"));
+
+		JsonNode stats = Json.parse(contentAsString(route(app, Helpers.fakeRequest().method(GET).uri("/v1/stats/cache"))));
+		assertEquals(1, stats.get("hits").asInt());
+		assertEquals(2, stats.get("misses").asInt());
+	}
+
+	/**
+	 * Test large range lists are streamed in chunks with the same content as a whole response
+	 */
+	@Test
+	public void testStreamedDifference() {
+		DiffRanges ranges = new DiffRanges();
+		for (int i = 0; i < 10; i++) ranges.add(i * 3, 2);
+		DiffResult result = new DiffResult(DiffResult.Status.SAME_SIZE, ranges);
+		DiffResultWriter writer = new DiffResultWriter(4, 3);
+		assertTrue(writer.streams(result));
+		ObjectNode expected = Json.newObject();
+		expected.put("result", "inputs have the same size");
+		expected.put("diff", ranges.toString());
+		assertEquals(Json.stringify(expected), new String(writer.toBytes(result)));
+
+		Materializer materializer = app.injector().instanceOf(Materializer.class);
+		List<ByteString> chunks = writer.stream(result).runWith(Sink.seq(), materializer).toCompletableFuture().join();
+		assertEquals(4, chunks.size());
+		ByteString streamed = ByteString.empty();
+		for (ByteString chunk : chunks) streamed = streamed.concat(chunk);
+		assertEquals(Json.stringify(expected), streamed.utf8String());
+		assertEquals("{\"result\":\"inputs are equal\"}", new String(writer.toBytes(new DiffResult(DiffResult.Status.EQUAL, null))));
+
+		//same size inputs differing on every other byte go over the default threshold
+		byte[] left = new byte[8192];
+		byte[] right = new byte[8192];
+		for (int i = 0; i < right.length; i += 2) right[i] = 1;
+		ObjectNode jsonLeft = Json.newObject();
+		ObjectNode jsonRight = Json.newObject();
+		jsonLeft.put("input", org.apache.commons.codec.binary.Base64.encodeBase64String(left));
+		jsonRight.put("input", org.apache.commons.codec.binary.Base64.encodeBase64String(right));
+		route(app, requestWithJsonBody("POST","/v1/diff/stream/left",jsonLeft));
+		route(app, requestWithJsonBody("POST","/v1/diff/stream/right",jsonRight));
+		Result response = route(app, Helpers.fakeRequest().method(GET).uri("/v1/diff/stream"));
+		assertEquals(OK, response.status());
+		assertFalse(response.body() instanceof play.http.HttpEntity.Strict);
+		JsonNode json = Json.parse(contentAsString(response, materializer));
+		assertEquals("inputs have the same size", json.get("result").asText());
+		assertTrue(json.get("diff").asText().endsWith("Offset: 8190 & Lenght: 1]"));
+	}
+
+	/**
+	 * Test the diff result is negotiated as offsets/lengths arrays or varint encoded ranges
+	 */
+	@Test
+	public void testDiffFormats() {
+		jsonInput0 = Json.newObject();
+		jsonInput1 = Json.newObject();
+		jsonInput0.put("input","MTIzNDQ2Nzg5");
+		jsonInput1.put("input","MDIzNDU2Nzg5");
+		route(app, requestWithJsonBody("POST","/v1/diff/format/left",Json.toJson(jsonInput0)));
+		route(app, requestWithJsonBody("POST","/v1/diff/format/right",Json.toJson(jsonInput1)));
+
+		Result legacy = route(app, Helpers.fakeRequest().method(GET).uri("/v1/diff/format").header("Accept", "*/*"));
+		assertTrue(contentAsString(legacy).contains("Offset: 0 & Lenght: 1, Offset: 4 & Lenght: 1"));
+
+		Result arrays = route(app, Helpers.fakeRequest().method(GET).uri("/v1/diff/format")
+				.header("Accept", "application/vnd.diff+json, application/json;q=0.5"));
+		assertEquals("application/vnd.diff+json", arrays.contentType().get());
+		JsonNode json = Json.parse(contentAsString(arrays));
+		assertEquals("inputs have the same size", json.get("result").asText());
+		assertEquals("[0,4]", json.get("offsets").toString());
+		assertEquals("[1,1]", json.get("lengths").toString());
+
+		Result binary = route(app, Helpers.fakeRequest().method(GET).uri("/v1/diff/format").header("Accept", "application/vnd.diff+binary"));
+		assertEquals("application/vnd.diff+binary", binary.contentType().get());
+		byte[] encoded = Helpers.contentAsBytes(binary).toArray();
+		//same size status, 2 ranges, (gap 0, length 1), (gap 3, length 1)
+		assertEquals("[1, 2, 0, 1, 3, 1]", java.util.Arrays.toString(encoded));
+
+		DiffRanges ranges = new DiffRanges();
+		ranges.add(300, 200);
+		DiffResultWriter writer = new DiffResultWriter(1024, 4096);
+		byte[] large = writer.toBytes(new DiffResult(DiffResult.Status.SAME_SIZE, ranges), DiffResultWriter.Format.BINARY);
+		assertEquals("[1, 1, -84, 2, -56, 1]", java.util.Arrays.toString(large));
+		assertEquals("{\"result\":\"inputs are equal\",\"offsets\":[],\"lengths\":[]}",
+				new String(writer.toBytes(new DiffResult(DiffResult.Status.EQUAL, null), DiffResultWriter.Format.ARRAYS)));
+	}
+
+	/**
+	 * Test diff pages by range and byte window, and iterating them with the cursor
+	 */
+	@Test
+	public void testDiffPages() {
+		DiffRanges ranges = new DiffRanges();
+		for (int i = 0; i < 10; i++) ranges.add(i * 10, 4);
+		assertEquals(0, ranges.firstEndingAfter(0));
+		assertEquals(1, ranges.firstEndingAfter(4));
+		assertEquals(1, ranges.firstStartingAt(1));
+		assertEquals(10, ranges.firstStartingAt(95));
+		DiffPage window = new DiffPage(1, 2, 12, 32, 0, 2);
+		assertEquals(3, window.total(ranges));
+		assertEquals("[Offset: 12 & Lenght: 2, Offset: 20 & Lenght: 4]", window.select(ranges).toString());
+		DiffPage next = DiffPage.fromCursor(window.next(ranges).cursor());
+		assertTrue(next.matches(1, 2));
+		assertEquals("[Offset: 30 & Lenght: 2]", next.select(ranges).toString());
+		assertEquals(null, next.next(ranges));
+		assertEquals(null, DiffPage.fromCursor("not a cursor"));
+
+		//"ABCDEFGH" vs "AXCXEXGX" differ on every odd byte
+		jsonInput0 = Json.newObject();
+		jsonInput1 = Json.newObject();
+		jsonInput0.put("input","QUJDREVGR0g=");
+		jsonInput1.put("input","QVhDWEVYR1g=");
+		route(app, requestWithJsonBody("POST","/v1/diff/page/left",Json.toJson(jsonInput0)));
+		route(app, requestWithJsonBody("POST","/v1/diff/page/right",Json.toJson(jsonInput1)));
+
+		Result first = route(app, Helpers.fakeRequest().method(GET).uri("/v1/diff/page?limit=3"));
+		assertEquals("4", first.header("X-Total-Count").get());
+		assertTrue(contentAsString(first).contains("[Offset: 1 & Lenght: 1, Offset: 3 & Lenght: 1, Offset: 5 & Lenght: 1]"));
+		Result second = route(app, Helpers.fakeRequest().method(GET).uri("/v1/diff/page?cursor=" + first.header("X-Next-Cursor").get()));
+		assertTrue(contentAsString(second).contains("[Offset: 7 & Lenght: 1]"));
+		assertFalse(second.header("X-Next-Cursor").isPresent());
+
+		Result bytes = route(app, Helpers.fakeRequest().method(GET).uri("/v1/diff/page?byteStart=2&byteEnd=6"));
+		assertTrue(contentAsString(bytes).contains("[Offset: 3 & Lenght: 1, Offset: 5 & Lenght: 1]"));
+		assertEquals(BAD_REQUEST, route(app, Helpers.fakeRequest().method(GET).uri("/v1/diff/page?limit=x")).status());
+
+		route(app, requestWithJsonBody("PUT","/v1/diff/page/right",Json.toJson(jsonInput0)));
+		assertEquals(CONFLICT, route(app, Helpers.fakeRequest().method(GET).uri("/v1/diff/page?cursor=" + first.header("X-Next-Cursor").get())).status());
+	}
+
+	/**
+	 * Test patches are applied in place unless read, and the cached diff is updated only around them
+	 */
+	@Test
+	public void testPatch() {
+		DiffRanges ranges = new DiffRanges();
+		ranges.add(0, 2);
+		ranges.add(5, 5);
+		ranges.add(12, 1);
+		DiffRanges region = new DiffRanges();
+		region.add(8, 1);
+		assertEquals("[Offset: 0 & Lenght: 2, Offset: 5 & Lenght: 2, Offset: 8 & Lenght: 2, Offset: 12 & Lenght: 1]",
+				ranges.replace(7, 9, region).toString());
+		region = new DiffRanges();
+		region.add(2, 3);
+		assertEquals("[Offset: 0 & Lenght: 10, Offset: 12 & Lenght: 1]", ranges.replace(2, 5, region).toString());
+		assertEquals("[Offset: 0 & Lenght: 2, Offset: 12 & Lenght: 1]", ranges.replace(3, 11, new DiffRanges()).toString());
+
+		DiffStore diffStore = new DiffStore(new HeapStorage());
+		diffStore.create("patch", Side.LEFT, "abcdef".getBytes());
+		Payload reading = diffStore.acquire("patch", Side.LEFT);
+		Payload copied = diffStore.patch("patch", Side.LEFT, 1, "XY".getBytes());
+		assertEquals("abcdef", new String(reading.copyBytes()));
+		assertEquals("aXYdef", new String(copied.copyBytes()));
+		assertEquals(reading.version(), copied.baseVersion());
+		reading.release();
+		Payload inPlace = diffStore.patch("patch", Side.LEFT, 5, "Z".getBytes());
+		assertEquals("aXYdeZ", new String(inPlace.copyBytes()));
+		assertFalse(copied.retain());
+		assertEquals(null, diffStore.patch("missing", Side.LEFT, 0, "Z".getBytes()));
+
+		//"ABCDEFGH" vs "AXCXEXGX"
+		jsonInput0 = Json.newObject();
+		jsonInput1 = Json.newObject();
+		jsonInput0.put("input","QUJDREVGR0g=");
+		jsonInput1.put("input","QVhDWEVYR1g=");
+		route(app, requestWithJsonBody("POST","/v1/diff/patched/left",Json.toJson(jsonInput0)));
+		route(app, requestWithJsonBody("POST","/v1/diff/patched/right",Json.toJson(jsonInput1)));
+		RequestBuilder request = Helpers.fakeRequest().method(GET).uri("/v1/diff/patched");
+		contentAsString(route(app, request));
+
+		//"XCX" at 1 makes the left "AXCXEFGH"
+		ObjectNode patch = Json.newObject();
+		patch.put("offset", 1);
+		patch.put("input", "WENY");
+		assertEquals(OK, route(app, requestWithJsonBody("PATCH","/v1/diff/patched/left",patch)).status());
+		JsonNode stats = Json.parse(contentAsString(route(app, Helpers.fakeRequest().method(GET).uri("/v1/stats/cache"))));
+		assertTrue(contentAsString(route(app, request)).contains("[Offset: 5 & Lenght: 1, Offset: 7 & Lenght: 1]"));
+		JsonNode after = Json.parse(contentAsString(route(app, Helpers.fakeRequest().method(GET).uri("/v1/stats/cache"))));
+		assertEquals(stats.get("hits").asInt() + 1, after.get("hits").asInt());
+
+		patch.put("offset", 7);
+		assertEquals(BAD_REQUEST, route(app, requestWithJsonBody("PATCH","/v1/diff/patched/left",patch)).status());
+		assertEquals(NOT_FOUND, route(app, requestWithJsonBody("PATCH","/v1/diff/nothing/left",patch)).status());
+	}
+
+	/**
+	 * Test edit scripts rebuild the right input with the shortest distance, and respect the caps
+	 */
+	@Test
+	public void testEditScript() {
+		MyersDiff myersDiff = new MyersDiff(1000, 1000);
+		EditScript script = myersDiff.diff(java.nio.ByteBuffer.wrap("ABCABBA".getBytes()), java.nio.ByteBuffer.wrap("CBABAC".getBytes()));
+		assertEquals(5, script.distance());
+
+		java.util.Random random = new java.util.Random(7);
+		for (int round = 0; round < 200; round++) {
+			byte[] left = new byte[random.nextInt(40)];
+			byte[] right = new byte[random.nextInt(40)];
+			for (int i = 0; i < left.length; i++) left[i] = (byte) random.nextInt(3);
+			for (int i = 0; i < right.length; i++) right[i] = (byte) random.nextInt(3);
+			script = myersDiff.diff(java.nio.ByteBuffer.wrap(left), java.nio.ByteBuffer.wrap(right));
+
+			//shortest distance from the longest common subsequence
+			int[][] lcs = new int[left.length + 1][right.length + 1];
+			for (int i = 1; i <= left.length; i++) {
+				for (int j = 1; j <= right.length; j++) {
+					lcs[i][j] = left[i-1] == right[j-1] ? lcs[i-1][j-1] + 1 : Math.max(lcs[i-1][j], lcs[i][j-1]);
+				}
+			}
+			assertEquals(left.length + right.length - 2 * lcs[left.length][right.length], script.distance());
+
+			java.io.ByteArrayOutputStream rebuilt = new java.io.ByteArrayOutputStream();
+			int leftAt = 0, rightAt = 0;
+			for (int i = 0; i < script.size(); i++) {
+				assertEquals(leftAt, script.leftOffset(i));
+				assertEquals(rightAt, script.rightOffset(i));
+				if (script.op(i) == EditScript.Op.EQUAL) {
+					rebuilt.write(left, leftAt, script.length(i));
+					leftAt += script.length(i);
+					rightAt += script.length(i);
+				} else if (script.op(i) == EditScript.Op.INSERT) {
+					rebuilt.write(right, rightAt, script.length(i));
+					rightAt += script.length(i);
+				} else {
+					leftAt += script.length(i);
+				}
+			}
+			assertEquals(java.util.Arrays.toString(right), java.util.Arrays.toString(rebuilt.toByteArray()));
+		}
+
+		assertEquals(null, new MyersDiff(3, 1000).diff(java.nio.ByteBuffer.wrap("ABCABBA".getBytes()), java.nio.ByteBuffer.wrap("CBABAC".getBytes())));
+
+		//"ABCDEFGH" vs "ABXCDEFGH"
+		jsonInput0 = Json.newObject();
+		jsonInput1 = Json.newObject();
+		jsonInput0.put("input","QUJDREVGR0g=");
+		jsonInput1.put("input","QUJYQ0RFRkdI");
+		route(app, requestWithJsonBody("POST","/v1/diff/edits/left",Json.toJson(jsonInput0)));
+		route(app, requestWithJsonBody("POST","/v1/diff/edits/right",Json.toJson(jsonInput1)));
+		JsonNode json = Json.parse(contentAsString(route(app, Helpers.fakeRequest().method(GET).uri("/v1/diff/edits?mode=edits"))));
+		assertEquals("inputs have different sizes", json.get("result").asText());
+		assertEquals(1, json.get("distance").asInt());
+		assertEquals("insert", json.get("edits").get(1).get("op").asText());
+		assertEquals(2, json.get("edits").get(1).get("leftOffset").asInt());
+		assertEquals(2, json.get("edits").get(1).get("rightOffset").asInt());
+		assertEquals(1, json.get("edits").get(1).get("length").asInt());
+	}
+
+	/**
+	 * Test block deltas rebuild the right input and find shifted and moved blocks
+	 */
+	@Test
+	public void testBlockDelta() {
+		java.util.Random random = new java.util.Random(11);
+		byte[] left = new byte[64 * 1024 + 100];
+		random.nextBytes(left);
+
+		//one byte inserted near the start
+		byte[] shifted = new byte[left.length + 1];
+		shifted[10] = 42;
+		System.arraycopy(left, 0, shifted, 0, 10);
+		System.arraycopy(left, 10, shifted, 11, left.length - 10);
+		BlockDiff blockDiff = new BlockDiff(1024);
+		BlockDelta delta = blockDiff.diff(java.nio.ByteBuffer.wrap(left), java.nio.ByteBuffer.wrap(shifted));
+		assertEquals(shifted.length, delta.total(BlockDelta.Op.COPY) + delta.total(BlockDelta.Op.INSERT));
+		assertTrue(delta.total(BlockDelta.Op.INSERT) <= 1024 + 1);
+		assertEquals(rebuild(left, shifted, delta), java.util.Arrays.toString(shifted));
+
+		//first and second halves swapped
+		byte[] moved = new byte[left.length];
+		System.arraycopy(left, 32 * 1024, moved, 0, left.length - 32 * 1024);
+		System.arraycopy(left, 0, moved, left.length - 32 * 1024, 32 * 1024);
+		delta = blockDiff.diff(java.nio.ByteBuffer.wrap(left), java.nio.ByteBuffer.wrap(moved));
+		assertEquals(rebuild(left, moved, delta), java.util.Arrays.toString(moved));
+		assertTrue(delta.total(BlockDelta.Op.INSERT) < 2 * 1024);
+
+		byte[] unrelated = new byte[5000];
+		random.nextBytes(unrelated);
+		delta = blockDiff.diff(java.nio.ByteBuffer.wrap(left), java.nio.ByteBuffer.wrap(unrelated));
+		assertEquals("[insert(0, 5000)]", delta.toString());
+
+		//zero filled inputs put every left block in one chain, still found without walking it
+		byte[] zeros = new byte[16 * 1024 * 1024];
+		byte[] changed = new byte[zeros.length + 1];
+		changed[changed.length / 2] = 1;
+		long start = System.currentTimeMillis();
+		delta = new BlockDiff(64).diff(java.nio.ByteBuffer.wrap(zeros), java.nio.ByteBuffer.wrap(changed));
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(changed.length, delta.total(BlockDelta.Op.COPY) + delta.total(BlockDelta.Op.INSERT));
+		assertTrue(delta.total(BlockDelta.Op.INSERT) <= 64);
+		//consecutive blocks still merge into one copy on each side of the changed byte
+		assertTrue(delta.size() <= 4);
+
+		jsonInput0 = Json.newObject();
+		jsonInput1 = Json.newObject();
+		jsonInput0.put("input","QUJDREVGR0g=");
+		jsonInput1.put("input","QUJYQ0RFRkdI");
+		route(app, requestWithJsonBody("POST","/v1/diff/blocks/left",Json.toJson(jsonInput0)));
+		route(app, requestWithJsonBody("POST","/v1/diff/blocks/right",Json.toJson(jsonInput1)));
+		JsonNode json = Json.parse(contentAsString(route(app, Helpers.fakeRequest().method(GET).uri("/v1/diff/blocks?mode=blocks"))));
+		assertEquals("inputs have different sizes", json.get("result").asText());
+		assertEquals(9, json.get("inserted").asInt() + json.get("copied").asInt());
+	}
+
+	private static String rebuild(byte[] left, byte[] right, BlockDelta delta) {
+		java.io.ByteArrayOutputStream rebuilt = new java.io.ByteArrayOutputStream();
+		for (int i = 0; i < delta.size(); i++) {
+			assertEquals(rebuilt.size(), delta.rightOffset(i));
+			if (delta.op(i) == BlockDelta.Op.COPY) {
+				rebuilt.write(left, delta.leftOffset(i), delta.length(i));
+			} else {
+				rebuilt.write(right, delta.rightOffset(i), delta.length(i));
+			}
+		}
+		return java.util.Arrays.toString(rebuilt.toByteArray());
+	}
+
+	/**
+	 * Test Merkle trees only report the differing blocks, and are kept up to date by patches
+	 */
+	@Test
+	public void testMerkleTree() {
+		Fingerprint first = Fingerprint.of("first".getBytes());
+		Fingerprint second = Fingerprint.of("second".getBytes());
+		java.nio.ByteBuffer both = java.nio.ByteBuffer.allocate(32).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+		both.putLong(first.high()).putLong(first.low()).putLong(second.high()).putLong(second.low());
+		assertEquals(Fingerprint.of(both.array()), Fingerprint.combine(first, second));
+
+		java.util.Random random = new java.util.Random(3);
+		byte[] left = new byte[10 * 64 + 10];
+		random.nextBytes(left);
+		byte[] right = left.clone();
+		right[70]++;
+		right[645]++;
+		Payload leftPayload = new Payload(new HeapStorage().store(left), 1, 64);
+		Payload rightPayload = new Payload(new HeapStorage().store(right), 2, 64);
+		assertEquals(11, leftPayload.tree().leaves());
+		assertEquals("[1, 10]", java.util.Arrays.toString(leftPayload.tree().differingLeaves(rightPayload.tree())));
+		assertEquals(new Payload(new HeapStorage().store(left.clone()), 3, 64).fingerprint(), leftPayload.fingerprint());
+
+		DiffTools diffTools = new DiffTools();
+		ParallelDiff sequential = new ParallelDiff(2, Long.MAX_VALUE, 64);
+		ParallelDiff parallel = new ParallelDiff(2, 0, 128);
+		for (int round = 0; round < 50; round++) {
+			right = left.clone();
+			for (int i = random.nextInt(20); i > 0; i--) right[random.nextInt(right.length)]++;
+			rightPayload = new Payload(new HeapStorage().store(right), 2, 64);
+			DiffRanges expected = diffTools.diffBytes(left, right);
+			assertEquals(expected, sequential.diff(leftPayload, rightPayload));
+			assertEquals(expected, parallel.diff(leftPayload, rightPayload));
+		}
+		sequential.shutdown();
+		parallel.shutdown();
+
+		DiffStore diffStore = new DiffStore(new HeapStorage(), new services.persistence.NoJournal(), 64);
+		diffStore.create("merkle", Side.LEFT, left.clone());
+		Payload patched = diffStore.patch("merkle", Side.LEFT, 100, new byte[] {1, 2, 3});
+		byte[] expected = left.clone();
+		expected[100] = 1;
+		expected[101] = 2;
+		expected[102] = 3;
+		assertEquals(new Payload(new HeapStorage().store(expected), 4, 64).fingerprint(), patched.fingerprint());
+	}
+
+	/**
+	 * Test the diff executor rejects work at once when its queue is full
+	 */
+	@Test
+	public void testDiffExecutor() throws Exception {
+		DiffExecutor diffExecutor = new DiffExecutor(1, 1, 3);
+		java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+		java.util.concurrent.CompletionStage<String> running = diffExecutor.supply(() -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return "running";
+		});
+		//wait for the worker to take the first task
+		while (diffExecutor.queued() > 0) Thread.sleep(1);
+		java.util.concurrent.CompletionStage<String> queued = diffExecutor.supply(() -> "queued");
+		try {
+			diffExecutor.supply(() -> "rejected");
+			assertTrue(false);
+		} catch (java.util.concurrent.RejectedExecutionException e) {
+			assertEquals(1, diffExecutor.rejected());
+		}
+		release.countDown();
+		assertEquals("running", running.toCompletableFuture().get());
+		assertEquals("queued", queued.toCompletableFuture().get());
+		assertEquals(3, diffExecutor.retryAfterSeconds());
+		diffExecutor.shutdown();
+	}
+
+	/**
+	 * Test a batch stores every valid item, reports the invalid ones and returns the diff results in order
+	 */
+	@Test
+	public void testBatch() {
+		Materializer materializer = app.injector().instanceOf(Materializer.class);
+		ObjectNode batch = Json.newObject();
+		batch.put("diff", true);
+		com.fasterxml.jackson.databind.node.ArrayNode items = batch.putArray("items");
+		items.addObject().put("id", "batch1").put("left", "QUJD").put("right", "QUJD");
+		items.addObject().put("id", "batch2").put("left", "QUJD").put("right", "QUJF");
+		items.addObject().put("id", "batch3").put("left", "QUJD");
+		items.addObject().put("id", "batch4").put("left", "QUJD").put("right", "not base64!");
+		items.addObject().put("left", "QUJD");
+		Result result = route(app, requestWithJsonBody("POST", "/v1/diff/batch", batch));
+		assertEquals(OK, result.status());
+		JsonNode json = Json.parse(contentAsString(result, materializer));
+		assertEquals(5, json.size());
+		assertEquals("batch1", json.get(0).get("id").asText());
+		assertEquals("inputs are equal", json.get(0).get("diff").get("result").asText());
+		assertEquals("inputs have the same size", json.get(1).get("diff").get("result").asText());
+		assertEquals("[Offset: 2 & Lenght: 1]", json.get(1).get("diff").get("diff").asText());
+		assertEquals("stored", json.get(2).get("result").asText());
+		assertEquals("missing input", json.get(2).get("diff").get("result").asText());
+		assertEquals("Input is not Base64, invalid character at offset 3", json.get(3).get("error").asText());
+		assertEquals("Missing parameter [id]", json.get(4).get("error").asText());
+		assertEquals(NOT_FOUND, route(app, fakeRequest(GET, "/v1/diff/batch4/left/decode")).status());
+
+		//stored items are updated by the next batch, without diff results unless asked for
+		ObjectNode update = Json.newObject();
+		update.putArray("items").addObject().put("id", "batch2").put("right", "QUJD");
+		json = Json.parse(contentAsString(route(app, requestWithJsonBody("POST", "/v1/diff/batch", update)), materializer));
+		assertEquals("stored", json.get(0).get("result").asText());
+		assertFalse(json.get(0).has("diff"));
+		json = Json.parse(contentAsString(route(app, fakeRequest(GET, "/v1/diff/batch2")), materializer));
+		assertEquals("inputs are equal", json.get("result").asText());
+
+		assertEquals(BAD_REQUEST, route(app, requestWithJsonBody("POST", "/v1/diff/batch", Json.newObject())).status());
+	}
+
+	/**
+	 * Test a baseline is compared with stored ids and uploaded candidates, one summary each
+	 */
+	@Test
+	public void testBaseline() {
+		ObjectNode baseline = Json.newObject();
+		baseline.put("input", "QUJDREVG");
+		assertEquals(CREATED, route(app, requestWithJsonBody("PUT", "/v1/baseline/reference", baseline)).status());
+		assertEquals(OK, route(app, requestWithJsonBody("PUT", "/v1/baseline/reference", baseline)).status());
+		ObjectNode input = Json.newObject();
+		input.put("input", "QUJDREVG");
+		route(app, requestWithJsonBody("POST", "/v1/diff/fan1/right", input));
+		input.put("input", "QUJYREVa");
+		route(app, requestWithJsonBody("POST", "/v1/diff/fan2/right", input));
+
+		ObjectNode compare = Json.newObject();
+		compare.putArray("ids").add("fan1").add("fan2").add("fan3");
+		compare.putArray("candidates").add("QUJDREVGR0g=").add("QUJD").add("not base64!");
+		Result result = route(app, requestWithJsonBody("POST", "/v1/baseline/reference/compare", compare));
+		assertEquals(OK, result.status());
+		JsonNode results = Json.parse(contentAsString(result)).get("results");
+		assertEquals(6, results.size());
+		assertEquals("fan1", results.get(0).get("id").asText());
+		assertTrue(results.get(0).get("equal").asBoolean());
+		assertEquals("inputs have the same size", results.get(1).get("result").asText());
+		assertEquals(2, results.get(1).get("ranges").asInt());
+		assertEquals(2, results.get(1).get("bytes").asInt());
+		assertEquals("missing input", results.get(2).get("error").asText());
+		assertEquals(0, results.get(3).get("candidate").asInt());
+		assertEquals(2, results.get(3).get("sizeDifference").asInt());
+		assertEquals(0, results.get(3).get("ranges").asInt());
+		assertEquals(2, results.get(3).get("bytes").asInt());
+		assertEquals(-3, results.get(4).get("sizeDifference").asInt());
+		assertEquals("inputs have different sizes", results.get(4).get("result").asText());
+		assertEquals("Input is not Base64, invalid character at offset 3", results.get(5).get("error").asText());
+
+		compare.put("side", "middle");
+		assertEquals(BAD_REQUEST, route(app, requestWithJsonBody("POST", "/v1/baseline/reference/compare", compare)).status());
+		assertEquals(OK, route(app, fakeRequest("DELETE", "/v1/baseline/reference")).status());
+		compare.remove("side");
+		assertEquals(NOT_FOUND, route(app, requestWithJsonBody("POST", "/v1/baseline/reference/compare", compare)).status());
+	}
+
+	/**
+	 * Test fingerprints only depend on the content and equality is confirmed on the bytes
+	 */
+	@Test
+	public void testFingerprint() {
+		byte[] content = "0123456789abcdefghij".getBytes();
+		assertEquals(Fingerprint.of(content), Fingerprint.of(content.clone()));
+		assertEquals(Fingerprint.of("abcdefghij".getBytes()), Fingerprint.of(java.nio.ByteBuffer.wrap(content), 10, 10));
+		for (int i = 0; i < content.length; i++) {
+			byte[] changed = content.clone();
+			changed[i]++;
+			assertFalse(Fingerprint.of(content).equals(Fingerprint.of(changed)));
+		}
+		Payload left = new Payload(content, 1);
+		assertTrue(left.contentEquals(new Payload(content.clone(), 2)));
+		assertFalse(left.contentEquals(new Payload("0123456789".getBytes(), 3)));
+	}
+
+	/**
+	 * Test every storage backend keeps the inputs and the diff reads straight from their buffers
+	 */
+	@Test
+	public void testStorageBackends() throws Exception {
+		java.io.File directory = java.nio.file.Files.createTempDirectory("diff-payloads").toFile();
+		PayloadStorage[] storages = {new HeapStorage(), new OffHeapStorage(4096), new MappedStorage(directory)};
+		ParallelDiff parallelDiff = new ParallelDiff(2, 0, 64);
+		try {
+			for (PayloadStorage storage : storages) {
+				DiffStore diffStore = new DiffStore(storage);
+				diffStore.create("s", Side.LEFT, "0000000000000000000011".getBytes());
+				diffStore.create("s", Side.RIGHT, "1000000000000000000000".getBytes());
+				Payload left = diffStore.acquire("s", Side.LEFT);
+				Payload right = diffStore.acquire("s", Side.RIGHT);
+				assertEquals("[Offset: 0 & Lenght: 1, Offset: 20 & Lenght: 2]",
+						parallelDiff.diff(left.buffer(), right.buffer(), left.length()).toString());
+				left.release();
+				right.release();
+				//released blocks are recycled by the next allocation
+				diffStore.update("s", Side.LEFT, new byte[5000]);
+				diffStore.update("s", Side.RIGHT, "1000000000000000000000".getBytes());
+				assertTrue(diffStore.get("s", Side.LEFT).contentEquals(new Payload(new byte[5000], 0)));
+				assertEquals("1000000000000000000000", new String(diffStore.get("s", Side.RIGHT).copyBytes()));
+				storage.close();
+			}
+		} finally {
+			parallelDiff.shutdown();
+		}
+	}
+
+	/**
+	 * Test inputs survive a restart, from the log after a crash (ignoring a torn record) and from the snapshot after a clean stop
+	 */
+	@Test
+	public void testWriteAheadLogRecovery() throws Exception {
+		java.io.File directory = java.nio.file.Files.createTempDirectory("diff-wal").toFile();
+		DiffStore crashed = new DiffStore(new HeapStorage(), new WriteAheadLog(directory, 16, 1, 0));
+		crashed.create("w", Side.LEFT, "left".getBytes());
+		crashed.create("w", Side.RIGHT, "right".getBytes());
+		crashed.update("w", Side.LEFT, "left2".getBytes());
+		crashed.patch("w", Side.LEFT, 0, "L".getBytes());
+		for (java.io.File log : directory.listFiles()) {
+			java.nio.file.Files.write(log.toPath(), new byte[] {(byte) 0xD1, (byte) 0xFF, 0, 1, 1, 0},
+					java.nio.file.StandardOpenOption.APPEND);
+		}
+
+		WriteAheadLog journal = new WriteAheadLog(directory, 16, 1, 0);
+		DiffStore restarted = new DiffStore(new HeapStorage(), journal);
+		assertEquals("Left2", new String(restarted.get("w", Side.LEFT).copyBytes()));
+		assertEquals("right", new String(restarted.get("w", Side.RIGHT).copyBytes()));
+		restarted.update("w", Side.RIGHT, "right2".getBytes());
+		journal.close();
+
+		DiffStore snapshot = new DiffStore(new HeapStorage(), new WriteAheadLog(directory, 16, 1, 0));
+		assertEquals("Left2", new String(snapshot.get("w", Side.LEFT).copyBytes()));
+		assertEquals("right2", new String(snapshot.get("w", Side.RIGHT).copyBytes()));
+	}
+
+	/**
+	 * Test a snapshot taken while an input is patched in place keeps it, so the patch 
+	 * journaled after the snapshot can be replayed, and readers wait for the patched input
+	 */
+	@Test
+	public void testSnapshotDuringPatch() throws Exception {
+		//the patch is held inside its in place write, the first time it reads the block
+		java.util.concurrent.CountDownLatch paused = new java.util.concurrent.CountDownLatch(1);
+		java.util.concurrent.CountDownLatch resume = new java.util.concurrent.CountDownLatch(1);
+		java.util.concurrent.atomic.AtomicBoolean armed = new java.util.concurrent.atomic.AtomicBoolean();
+		HeapStorage heap = new HeapStorage();
+		PayloadStorage gated = length -> {
+			StorageBlock block = heap.allocate(length);
+			return new StorageBlock() {
+
+				@Override
+				public java.nio.ByteBuffer buffer(){
+					if (Thread.currentThread().getName().equals("patcher") && armed.compareAndSet(true, false)) {
+						paused.countDown();
+						try {
+							resume.await();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+					return block.buffer();
+				}
+
+				@Override
+				public void release(){
+					block.release();
+				}
+			};
+		};
+		java.io.File directory = java.nio.file.Files.createTempDirectory("diff-wal").toFile();
+		WriteAheadLog journal = new WriteAheadLog(directory, 16, 1, 0);
+		DiffStore crashed = new DiffStore(gated, journal, 64);
+		crashed.create("s", Side.LEFT, "abcdef".getBytes());
+		armed.set(true);
+		Thread patcher = new Thread(() -> crashed.patch("s", Side.LEFT, 0, "X".getBytes()), "patcher");
+		patcher.start();
+		paused.await();
+		Thread snapshot = new Thread(() -> {
+			try {
+				journal.snapshot();
+			} catch (java.io.IOException e) {
+				throw new java.io.UncheckedIOException(e);
+			}
+		});
+		snapshot.start();
+		java.util.concurrent.CompletableFuture<Payload> reader = java.util.concurrent.CompletableFuture.supplyAsync(() -> crashed.acquire("s", Side.LEFT));
+		//the snapshot waits for the patch instead of leaving the input out, readers wait for it as well
+		snapshot.join(300);
+		assertTrue(snapshot.isAlive());
+		assertFalse(reader.isDone());
+		resume.countDown();
+		patcher.join();
+		snapshot.join();
+		Payload read = reader.get(5, java.util.concurrent.TimeUnit.SECONDS);
+		assertEquals("Xbcdef", new String(read.copyBytes()));
+		read.release();
+
+		DiffStore restarted = new DiffStore(new HeapStorage(), new WriteAheadLog(directory, 16, 1, 0), 64);
+		assertEquals("Xbcdef", new String(restarted.get("s", Side.LEFT).copyBytes()));
+	}
+
+	/**
+	 * Test inputs survive a restart with the H2 journal
+	 */
+	@Test
+	public void testH2JournalRecovery() throws Exception {
+		java.io.File directory = java.nio.file.Files.createTempDirectory("diff-h2").toFile();
+		H2Journal journal = new H2Journal(directory, 2, 16, 1);
+		DiffStore diffStore = new DiffStore(new HeapStorage(), journal);
+		diffStore.create("h", Side.LEFT, "left".getBytes());
+		diffStore.create("h", Side.RIGHT, "right".getBytes());
+		diffStore.update("h", Side.LEFT, "left2".getBytes());
+		journal.close();
+
+		journal = new H2Journal(directory, 2, 16, 1);
+		DiffStore restarted = new DiffStore(new HeapStorage(), journal);
+		assertEquals("left2", new String(restarted.get("h", Side.LEFT).copyBytes()));
+		assertEquals("right", new String(restarted.get("h", Side.RIGHT).copyBytes()));
+		journal.close();
+	}
+
 	/**
 	 * Test root path using index
 	 */
 	@Test
 	public void testIndex() {
-		Result result = new HomeController().index();
+		Result result = app.injector().instanceOf(HomeController.class).index();
 		assertEquals(OK, result.status());
 		assertEquals("text/plain", result.contentType().get());
 		assertEquals("utf-8", result.charset().get());
@@ -117,7 +960,7 @@ public class UnitTest extends WithApplication {
 	@Test
 	public void testCreateValidInputs() {
 		jsonInput0 = Json.newObject();
-		jsonInput0.put("input","QUJDYWJjMTI0w");
+		jsonInput0.put("input","QUJDYWJjMTI0");
 		JsonNode jsonNode = Json.toJson(jsonInput0);
 		Result result = route(app, requestWithJsonBody("POST","/v1/diff/test/left",jsonNode));
 		assertEquals(CREATED, result.status());
@@ -150,7 +993,7 @@ public class UnitTest extends WithApplication {
 	@Test
 	public void testForParameter() {
 		jsonInput0 = Json.newObject();
-		jsonInput0.put("missingInput","QUJDYWJjMTI0w");
+		jsonInput0.put("missingInput","QUJDYWJjMTI0");
 		JsonNode jsonNode = Json.toJson(jsonInput0);
 		Result result = route(app, requestWithJsonBody("POST","/v1/diff/test/left",jsonNode));
 		assertEquals(BAD_REQUEST, result.status());
@@ -172,7 +1015,7 @@ public class UnitTest extends WithApplication {
 	@Test
 	public void testConflictsWhileCreatingInputs() {
 		jsonInput0 = Json.newObject();
-		jsonInput0.put("input","QUJDYWJjMTI0w");
+		jsonInput0.put("input","QUJDYWJjMTI0");
 		JsonNode jsonNode = Json.toJson(jsonInput0);
 		Result result = route(app, requestWithJsonBody("POST","/v1/diff/test/left",jsonNode));
 		result = route(app, requestWithJsonBody("POST","/v1/diff/test/left",jsonNode));
@@ -190,7 +1033,7 @@ public class UnitTest extends WithApplication {
 	@Test
 	public void testUpdateInputs() {
 		jsonInput0 = Json.newObject();
-		jsonInput0.put("input","QUJDYWJjMTI0w");
+		jsonInput0.put("input","QUJDYWJjMTI0");
 		JsonNode jsonNode = Json.toJson(jsonInput0);
 		Result result = route(app, requestWithJsonBody("POST","/v1/diff/test/left",jsonNode));
 		result = route(app, requestWithJsonBody("PUT","/v1/diff/test/left",jsonNode));
@@ -208,7 +1051,7 @@ public class UnitTest extends WithApplication {
 	@Test
 	public void testNotFoundWhenUpdating() {
 		jsonInput0 = Json.newObject();
-		jsonInput0.put("input","QUJDYWJjMTI0w");
+		jsonInput0.put("input","QUJDYWJjMTI0");
 		JsonNode jsonNode = Json.toJson(jsonInput0);
 		Result result = route(app, requestWithJsonBody("PUT","/v1/diff/test/left",jsonNode));
 		assertEquals(NOT_FOUND, result.status());
@@ -238,7 +1081,7 @@ public class UnitTest extends WithApplication {
 	@Test
 	public void testDecodeInputs() {
 		jsonInput0 = Json.newObject();
-		jsonInput0.put("input","QUJDYWJjMTI0w");
+		jsonInput0.put("input","QUJDYWJjMTI0");
 		JsonNode jsonNode = Json.toJson(jsonInput0);
 		
 		Result result = route(app, requestWithJsonBody("POST","/v1/diff/test/left",jsonNode));
@@ -256,6 +1099,536 @@ public class UnitTest extends WithApplication {
 		assertTrue(contentAsString(result).contains("ABCabc124"));
 	}
 
+	/**
+	 * Test the strict codec decodes like commons-codec and reports the first invalid character
+	 */
+	@Test
+	public void testBase64Codec() {
+		java.util.Random random = new java.util.Random(7);
+		for (int length = 0; length < 64; length++) {
+			byte[] data = new byte[length];
+			random.nextBytes(data);
+			String encoded = org.apache.commons.codec.binary.Base64.encodeBase64String(data);
+			assertEquals(-1, Base64Codec.invalidOffset(encoded));
+			assertTrue(java.util.Arrays.equals(data, Base64Codec.decode(encoded)));
+			StorageBlock block = Base64Codec.decode(encoded, new OffHeapStorage(1024));
+			byte[] stored = new byte[length];
+			block.buffer().duplicate().get(stored);
+			assertTrue(java.util.Arrays.equals(data, stored));
+		}
+		assertEquals(1, Base64Codec.invalidOffset("Q#JD"));
+		assertEquals(4, Base64Codec.invalidOffset("QUJD\nQUJD"));
+		assertEquals(12, Base64Codec.invalidOffset("QUJDYWJjMTI0w"));
+		assertEquals(2, Base64Codec.invalidOffset("QU=D"));
+		assertEquals(0, Base64Codec.invalidOffset("===="));
+		//unused bits of the last character must be zero
+		assertEquals(-1, Base64Codec.invalidOffset("QQ=="));
+		assertEquals(1, Base64Codec.invalidOffset("QR=="));
+		assertEquals(2, Base64Codec.invalidOffset("QUJ="));
+		assertEquals(-1, Base64Codec.invalidOffset("QUI="));
+		try {
+			Base64Codec.decode("QUJDQUJDQ", new HeapStorage());
+			assertTrue(false);
+		} catch (Base64Codec.InvalidBase64Exception e) {
+			assertEquals(8, e.offset());
+		}
+		try {
+			Base64Codec.decode("QUJD QUJDQUJD", new HeapStorage());
+			assertTrue(false);
+		} catch (Base64Codec.InvalidBase64Exception e) {
+			assertEquals(4, e.offset());
+		}
+	}
+
+	/**
+	 * Test inputs are decoded while the body is read, in chunks of any size and with Json escapes
+	 */
+	@Test
+	public void testStreamingInput() {
+		java.util.Random random = new java.util.Random(11);
+		byte[] data = new byte[10000];
+		random.nextBytes(data);
+		byte[] encoded = org.apache.commons.codec.binary.Base64.encodeBase64String(data).getBytes();
+		//small expected length, so the block grows while decoding
+		Base64Codec.StreamDecoder decoder = new Base64Codec.StreamDecoder(new HeapStorage(), 10);
+		for (int from = 0; from < encoded.length; ) {
+			int to = Math.min(encoded.length, from + 1 + random.nextInt(700));
+			assertTrue(decoder.update(encoded, from, to));
+			from = to;
+		}
+		StorageBlock block = decoder.finish();
+		byte[] decoded = new byte[block.buffer().limit()];
+		block.buffer().duplicate().get(decoded);
+		assertTrue(java.util.Arrays.equals(data, decoded));
+
+		decoder = new Base64Codec.StreamDecoder(new HeapStorage(), 10);
+		assertTrue(decoder.update("QUJD".getBytes(), 0, 4));
+		assertFalse(decoder.update("QU JD".getBytes(), 0, 5));
+		assertEquals(6, decoder.invalidOffset());
+		decoder.abort();
+		assertEquals(0, new Base64Codec.StreamDecoder(new HeapStorage(), 10).finish().buffer().limit());
+		try {
+			decoder = new Base64Codec.StreamDecoder(new HeapStorage(), 10);
+			decoder.update("QR==".getBytes(), 0, 4);
+			decoder.finish();
+			assertTrue(false);
+		} catch (Base64Codec.InvalidBase64Exception e) {
+			assertEquals(1, e.offset());
+		}
+		//the block grows as characters arrive, never past the decoded length bound
+		List<Integer> allocated = new java.util.ArrayList<Integer>();
+		HeapStorage heap = new HeapStorage();
+		decoder = new Base64Codec.StreamDecoder(length -> {
+			allocated.add(length);
+			return heap.allocate(length);
+		}, 4, 9);
+		for (int from = 0; from < 12; from += 4) assertTrue(decoder.update("QUJDREVGR0hJ".getBytes(), from, from + 4));
+		block = decoder.finish();
+		assertEquals("ABCDEFGHI", java.nio.charset.StandardCharsets.US_ASCII.decode(block.buffer().duplicate()).toString());
+		assertEquals(java.util.Arrays.asList(4, 8, 9), allocated);
+
+		//"QUJD/w==" sent with escaped characters and other fields around it
+		RequestBuilder request = Helpers.fakeRequest().method("POST").uri("/v1/diff/streamed/left")
+				.bodyText("{\"name\": {\"input\": 1}, \"input\": \"QU\\u004aD\\/w==\", \"other\": 2}")
+				.header("Content-Type", "application/json");
+		Result result = route(app, request);
+		assertEquals(CREATED, result.status());
+		assertEquals(4, Json.parse(contentAsString(result)).get("length").asInt());
+		result = route(app, fakeRequest(GET, "/v1/diff/streamed/left/decode"));
+		assertEquals("QUJD/w==", Json.parse(contentAsString(result)).get("input").asText());
+
+		request = Helpers.fakeRequest().method("PUT").uri("/v1/diff/streamed/left")
+				.bodyText("{\"other\": \"QUJD\"}").header("Content-Type", "application/json");
+		result = route(app, request);
+		assertEquals(BAD_REQUEST, result.status());
+		assertEquals("Missing parameter [input]", contentAsString(result));
+		request = Helpers.fakeRequest().method("PUT").uri("/v1/diff/streamed/left")
+				.bodyText("{\"input\": \"QUJD").header("Content-Type", "application/json");
+		result = route(app, request);
+		assertEquals(BAD_REQUEST, result.status());
+	}
+
+	/**
+	 * Test raw inputs are stored as sent and read back whole or by Range
+	 */
+	@Test
+	public void testRawInput() {
+		Materializer materializer = app.injector().instanceOf(Materializer.class);
+		byte[] data = new byte[200000];
+		new java.util.Random(21).nextBytes(data);
+		//without Content-Length the block grows as the body arrives
+		RequestBuilder request = Helpers.fakeRequest().method("POST").uri("/v1/diff/raw/left")
+				.bodyRaw(data).header("Content-Type", "application/octet-stream");
+		Result result = route(app, request);
+		assertEquals(CREATED, result.status());
+		assertEquals(data.length, Json.parse(contentAsString(result)).get("length").asInt());
+		request = Helpers.fakeRequest().method("POST").uri("/v1/diff/raw/right")
+				.bodyRaw(data).header("Content-Type", "application/octet-stream")
+				.header("Content-Length", String.valueOf(data.length));
+		assertEquals(CREATED, route(app, request).status());
+		result = route(app, fakeRequest(GET, "/v1/diff/raw"));
+		assertEquals("inputs are equal", Json.parse(contentAsString(result)).get("result").asText());
+
+		result = route(app, fakeRequest(GET, "/v1/diff/raw/left/raw"));
+		assertEquals(OK, result.status());
+		assertEquals("bytes", result.header("Accept-Ranges").get());
+		assertTrue(java.util.Arrays.equals(data, Helpers.contentAsBytes(result, materializer).toArray()));
+
+		result = route(app, fakeRequest(GET, "/v1/diff/raw/right/raw").header("Range", "bytes=100-199"));
+		assertEquals(206, result.status());
+		assertEquals("bytes 100-199/200000", result.header("Content-Range").get());
+		assertTrue(java.util.Arrays.equals(java.util.Arrays.copyOfRange(data, 100, 200),
+				Helpers.contentAsBytes(result, materializer).toArray()));
+		result = route(app, fakeRequest(GET, "/v1/diff/raw/right/raw").header("Range", "bytes=-10"));
+		assertEquals("bytes 199990-199999/200000", result.header("Content-Range").get());
+		assertTrue(java.util.Arrays.equals(java.util.Arrays.copyOfRange(data, 199990, 200000),
+				Helpers.contentAsBytes(result, materializer).toArray()));
+		result = route(app, fakeRequest(GET, "/v1/diff/raw/right/raw").header("Range", "bytes=199000-"));
+		assertEquals(1000, Helpers.contentAsBytes(result, materializer).size());
+		result = route(app, fakeRequest(GET, "/v1/diff/raw/right/raw").header("Range", "bytes=200000-"));
+		assertEquals(416, result.status());
+		assertEquals("bytes */200000", result.header("Content-Range").get());
+		assertEquals(NOT_FOUND, route(app, fakeRequest(GET, "/v1/diff/none/left/raw")).status());
+		request = Helpers.fakeRequest().method("POST").uri("/v1/diff/empty/left")
+				.bodyRaw(new byte[0]).header("Content-Type", "application/octet-stream");
+		assertEquals(CREATED, route(app, request).status());
+		result = route(app, fakeRequest(GET, "/v1/diff/empty/left/raw").header("Range", "bytes=-5"));
+		assertEquals(416, result.status());
+		assertEquals("bytes */0", result.header("Content-Range").get());
+
+		//a response whose body is never read keeps no reference, the input is not held past its replacement
+		Payload stored = app.injector().instanceOf(DiffStore.class).get("raw", Side.RIGHT);
+		assertEquals(OK, route(app, fakeRequest(GET, "/v1/diff/raw/right/raw")).status());
+		app.injector().instanceOf(DiffStore.class).patch("raw", Side.RIGHT, 0, new byte[] {1});
+		assertFalse(stored.retain());
+
+		//the raw input replaces the json one the same way
+		request = Helpers.fakeRequest().method("PUT").uri("/v1/diff/raw/left")
+				.bodyRaw(new byte[] {'A', 'B', 'C'}).header("Content-Type", "application/octet-stream");
+		assertEquals(OK, route(app, request).status());
+		result = route(app, fakeRequest(GET, "/v1/diff/raw/left/decode"));
+		assertEquals("QUJD", Json.parse(contentAsString(result)).get("input").asText());
+		request = Helpers.fakeRequest().method("PUT").uri("/v1/diff/raw/left")
+				.bodyText("ABC").header("Content-Type", "text/plain");
+		assertEquals(BAD_REQUEST, route(app, request).status());
+	}
+
+	/**
+	 * Test chunks of an upload are written in any order, sent again and committed once all are there
+	 */
+	@Test
+	public void testUpload() {
+		DiffStore diffStore = new DiffStore(new HeapStorage(), new services.persistence.NoJournal(), 64);
+		//chunk size rounded up to a multiple of the merkle block size
+		UploadStore uploads = new UploadStore(diffStore, 100, 10000, 2, 10000, 60000);
+		byte[] data = new byte[300];
+		new java.util.Random(22).nextBytes(data);
+		UploadStore.Upload upload = uploads.open("up", Side.LEFT, data.length);
+		assertEquals(128, upload.chunkSize());
+		assertEquals(3, upload.chunks());
+		assertTrue(upload.write(2, java.nio.ByteBuffer.wrap(data, 256, 44)));
+		assertTrue(upload.write(0, java.nio.ByteBuffer.wrap(data, 0, 128)));
+		assertEquals(1, upload.missing().length);
+		assertEquals(1, upload.missing()[0]);
+		assertEquals(null, uploads.commit(upload));
+		try {
+			upload.write(1, java.nio.ByteBuffer.wrap(data, 128, 100));
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+			assertEquals("Invalid chunk size, expected 128 bytes", e.getMessage());
+		}
+		assertTrue(upload.write(1, java.nio.ByteBuffer.wrap(new byte[128])));
+		//sent again, replacing the previous bytes
+		assertTrue(upload.write(1, java.nio.ByteBuffer.wrap(data, 128, 128)));
+		Payload payload = uploads.commit(upload);
+		assertTrue(java.util.Arrays.equals(data, payload.copyBytes()));
+		assertEquals(new Payload(new HeapStorage().store(data), 1, 64).fingerprint(), payload.fingerprint());
+		assertEquals(payload, diffStore.get("up", Side.LEFT));
+		assertEquals(null, uploads.get(upload.key()));
+		assertFalse(upload.write(0, java.nio.ByteBuffer.wrap(data, 0, 128)));
+
+		uploads.open("up", Side.RIGHT, 10);
+		UploadStore.Upload aborted = uploads.open("up", Side.RIGHT, 10);
+		assertEquals(null, uploads.open("up", Side.RIGHT, 10));
+		assertTrue(uploads.remove(aborted.key()));
+		assertFalse(uploads.remove(aborted.key()));
+		assertEquals(1, uploads.size());
+		assertEquals(10, uploads.reserved());
+
+		//the lengths of the open uploads are bounded, whatever their number
+		UploadStore bounded = new UploadStore(diffStore, 100, 10000, 16, 500, 60000);
+		UploadStore.Upload reserved = bounded.open("up", Side.LEFT, 300);
+		assertEquals(null, bounded.open("up", Side.RIGHT, 300));
+		assertEquals(300, bounded.reserved());
+		assertTrue(bounded.remove(reserved.key()));
+		assertEquals(0, bounded.reserved());
+		assertTrue(bounded.open("up", Side.RIGHT, 300) != null);
+		//idle uploads are dropped by any call, not only by opening another one
+		UploadStore expiring = new UploadStore(diffStore, 100, 10000, 2, 10000, 1);
+		UploadStore.Upload idle = expiring.open("up", Side.LEFT, 300);
+		try {
+			Thread.sleep(10);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		assertEquals(null, expiring.get(idle.key()));
+		assertEquals(0, expiring.size());
+		assertEquals(0, expiring.reserved());
+		assertFalse(idle.write(0, java.nio.ByteBuffer.wrap(data, 0, 128)));
+
+		//through the routes
+		ObjectNode open = Json.newObject();
+		open.put("length", 5);
+		Result result = route(app, requestWithJsonBody("POST", "/v1/diff/upload/right/uploads", open));
+		assertEquals(CREATED, result.status());
+		JsonNode json = Json.parse(contentAsString(result));
+		String key = json.get("upload").asText();
+		assertEquals(1, json.get("chunks").asInt());
+		assertEquals(409, route(app, fakeRequest("POST", "/v1/uploads/" + key + "/commit")).status());
+		result = route(app, fakeRequest("PUT", "/v1/uploads/" + key + "/1").bodyRaw(new byte[] {'A'}));
+		assertEquals(BAD_REQUEST, result.status());
+		result = route(app, fakeRequest("PUT", "/v1/uploads/" + key + "/0").bodyRaw("ABCDE".getBytes()));
+		assertEquals(OK, result.status());
+		assertEquals(0, Json.parse(contentAsString(route(app, fakeRequest(GET, "/v1/uploads/" + key)))).get("missing").size());
+		result = route(app, fakeRequest("POST", "/v1/uploads/" + key + "/commit"));
+		assertEquals(OK, result.status());
+		assertEquals(NOT_FOUND, route(app, fakeRequest(GET, "/v1/uploads/" + key)).status());
+		result = route(app, fakeRequest(GET, "/v1/diff/upload/right/decode"));
+		assertEquals("QUJDREU=", Json.parse(contentAsString(result)).get("input").asText());
+		open.put("length", -1);
+		assertEquals(BAD_REQUEST, route(app, requestWithJsonBody("POST", "/v1/diff/upload/right/uploads", open)).status());
+	}
+
+	/**
+	 * Test eager results are computed once in the background, coalescing changes and joined by readers
+	 */
+	@Test
+	public void testEagerDiff() throws Exception {
+		java.util.concurrent.CountDownLatch started = new java.util.concurrent.CountDownLatch(1);
+		java.util.concurrent.CountDownLatch proceed = new java.util.concurrent.CountDownLatch(1);
+		//holds the only background thread inside the first computation
+		ParallelDiff parallelDiff = new ParallelDiff(1, 1 << 20, 1 << 20) {
+
+			@Override
+			public DiffRanges diff(Payload left, Payload right){
+				started.countDown();
+				try {
+					proceed.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.diff(left, right);
+			}
+		};
+		DiffStore diffStore = new DiffStore(new HeapStorage());
+		DiffResultCache cache = new DiffResultCache(100, 1 << 20);
+		DiffPrecompute precompute = new DiffPrecompute(diffStore, cache, parallelDiff, 1);
+		try {
+			diffStore.create("eager1", Side.LEFT, "ABCD".getBytes());
+			precompute.schedule("eager1");
+			//nothing to compute with only one input
+			assertEquals(0, precompute.pending());
+			diffStore.create("eager1", Side.RIGHT, "ABCE".getBytes());
+			precompute.schedule("eager1");
+			started.await();
+
+			diffStore.create("eager2", Side.LEFT, "ABCD".getBytes());
+			diffStore.create("eager2", Side.RIGHT, "ABC".getBytes());
+			precompute.schedule("eager2");
+			diffStore.update("eager2", Side.RIGHT, "AB".getBytes());
+			precompute.schedule("eager2");
+			precompute.schedule("eager2");
+			assertEquals(1, precompute.pending());
+			assertEquals(2, precompute.coalesced());
+
+			//a reader of the same versions waits for the computation in progress
+			Payload left = diffStore.acquire("eager1", Side.LEFT);
+			Payload right = diffStore.acquire("eager1", Side.RIGHT);
+			java.util.concurrent.CompletableFuture<DiffResult> read = java.util.concurrent.CompletableFuture.supplyAsync(
+					() -> precompute.result("eager1", left, right));
+			while (precompute.joined() == 0) Thread.sleep(1);
+			proceed.countDown();
+			assertEquals("[Offset: 3 & Lenght: 1]", read.get().ranges().toString());
+			left.release();
+			right.release();
+
+			long deadline = System.currentTimeMillis() + 5000;
+			while (precompute.computed() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+			assertEquals(2, precompute.computed());
+			Payload left2 = diffStore.get("eager2", Side.LEFT);
+			Payload right2 = diffStore.get("eager2", Side.RIGHT);
+			assertEquals(DiffResult.Status.DIFFERENT_SIZES, cache.peek("eager2", left2.version(), right2.version()).status());
+			assertEquals(DiffResult.Status.DIFFERENT_SIZES, precompute.result("eager2", left2, right2).status());
+			assertEquals(2, precompute.computed());
+		} finally {
+			precompute.shutdown();
+			parallelDiff.shutdown();
+		}
+	}
+
+	/**
+	 * Test subscribers receive the diff summary of the ids they follow when their inputs change
+	 */
+	@Test
+	public void testDiffEvents() throws Exception {
+		Materializer materializer = app.injector().instanceOf(Materializer.class);
+		DiffEvents events = app.injector().instanceOf(DiffEvents.class);
+		ObjectNode left = Json.newObject();
+		left.put("input", "QUJDRA==");
+		ObjectNode right = Json.newObject();
+		right.put("input", "QUJDRQ==");
+		route(app, requestWithJsonBody("POST", "/v1/diff/sse1/left", left));
+		route(app, requestWithJsonBody("POST", "/v1/diff/sse1/right", left));
+
+		java.util.concurrent.CompletableFuture<List<ObjectNode>> received = events
+				.subscribe(java.util.Collections.singleton("sse1"))
+				.take(1)
+				.runWith(Sink.seq(), materializer).toCompletableFuture();
+		long deadline = System.currentTimeMillis() + 5000;
+		while (events.subscribed() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+		//changes made before the subscriber is attached to the hub are not sent to it
+		while (!received.isDone() && System.currentTimeMillis() < deadline) {
+			route(app, requestWithJsonBody("POST", "/v1/diff/sse2/left", left));
+			route(app, requestWithJsonBody("PUT", "/v1/diff/sse1/right", right));
+			Thread.sleep(20);
+		}
+		JsonNode event = received.get().get(0);
+		assertEquals("sse1", event.get("id").asText());
+		assertEquals("inputs have the same size", event.get("result").asText());
+		assertEquals(1, event.get("ranges").asInt());
+		assertEquals(1, event.get("bytes").asInt());
+		assertEquals(0, event.get("sizeDifference").asInt());
+		while (events.subscribed() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(1);
+		assertEquals(0, events.subscribed());
+
+		assertEquals(BAD_REQUEST, route(app, fakeRequest(GET, "/v1/diff/events")).status());
+		Result result = route(app, fakeRequest(GET, "/v1/diff/events?ids=sse1,sse2"));
+		assertEquals(OK, result.status());
+		assertEquals("text/event-stream", result.contentType().get());
+	}
+
+	/**
+	 * Test a change made while the summary of an id is being published is published after it, never before
+	 */
+	@Test
+	public void testDiffEventsOrder() throws Exception {
+		Materializer materializer = app.injector().instanceOf(Materializer.class);
+		ParallelDiff parallelDiff = new ParallelDiff(1, Long.MAX_VALUE, 64, 1000);
+		DiffExecutor executor = new DiffExecutor(2, 10, 1);
+		java.util.concurrent.atomic.AtomicBoolean armed = new java.util.concurrent.atomic.AtomicBoolean();
+		java.util.concurrent.CountDownLatch paused = new java.util.concurrent.CountDownLatch(1);
+		java.util.concurrent.CountDownLatch resume = new java.util.concurrent.CountDownLatch(1);
+		try {
+			DiffStore diffStore = new DiffStore(new HeapStorage());
+			//the first summary computed once armed waits until resumed
+			DiffPrecompute precompute = new DiffPrecompute(diffStore, new DiffResultCache(100, 1 << 20), parallelDiff, 0) {
+				@Override
+				public DiffResult result(String id, Payload left, Payload right){
+					if (armed.compareAndSet(true, false)) {
+						paused.countDown();
+						try {
+							resume.await();
+						} catch (InterruptedException e) {
+							throw new IllegalStateException(e);
+						}
+					}
+					return super.result(id, left, right);
+				}
+			};
+			DiffEvents events = new DiffEvents(diffStore, precompute, executor, materializer, 16);
+			List<JsonNode> received = new java.util.concurrent.CopyOnWriteArrayList<JsonNode>();
+			events.subscribe(java.util.Collections.singleton("order")).runForeach(received::add, materializer);
+			diffStore.create("order", Side.LEFT, "a".getBytes());
+			diffStore.create("order", Side.RIGHT, "b".getBytes());
+			long deadline = System.currentTimeMillis() + 5000;
+			while (received.isEmpty() && System.currentTimeMillis() < deadline) {
+				events.changed("order");
+				Thread.sleep(20);
+			}
+			assertFalse(received.isEmpty());
+			Thread.sleep(100);
+
+			armed.set(true);
+			diffStore.update("order", Side.RIGHT, "c".getBytes());
+			events.changed("order");
+			assertTrue(paused.await(5, java.util.concurrent.TimeUnit.SECONDS));
+			long last = diffStore.update("order", Side.RIGHT, "d".getBytes()).version();
+			events.changed("order");
+			//a second worker is free, but the newer summary waits for the one being published
+			Thread.sleep(200);
+			resume.countDown();
+			while (received.get(received.size() - 1).get("rightVersion").asLong() != last
+					&& System.currentTimeMillis() < deadline) Thread.sleep(10);
+			Thread.sleep(200);
+			long previous = 0;
+			for (JsonNode event : received) {
+				assertTrue(event.get("rightVersion").asLong() >= previous);
+				previous = event.get("rightVersion").asLong();
+			}
+			assertEquals(last, previous);
+		} finally {
+			resume.countDown();
+			executor.shutdown();
+			parallelDiff.shutdown();
+		}
+	}
+
+	/**
+	 * Test concurrent changes are swapped without losing any, and the versions answer If-Match/If-None-Match
+	 */
+	@Test
+	public void testOptimisticConcurrency() throws Exception {
+		DiffStore diffStore = new DiffStore(new HeapStorage());
+		//only one of the concurrent creates stores its input
+		java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(8);
+		List<java.util.concurrent.Future<Payload>> creates = new java.util.ArrayList<java.util.concurrent.Future<Payload>>();
+		for (int i = 0; i < 8; i++) {
+			byte[] input = new byte[] {(byte) i};
+			creates.add(pool.submit(() -> diffStore.create("cas", Side.LEFT, input)));
+		}
+		int created = 0;
+		for (java.util.concurrent.Future<Payload> create : creates) {
+			if (create.get() != null) created++;
+		}
+		assertEquals(1, created);
+
+		//concurrent patches of different bytes are all kept
+		diffStore.create("cas", Side.RIGHT, new byte[8]);
+		List<java.util.concurrent.Future<?>> patches = new java.util.ArrayList<java.util.concurrent.Future<?>>();
+		for (int i = 0; i < 8; i++) {
+			int offset = i;
+			patches.add(pool.submit(() -> {
+				for (int n = 1; n <= 200; n++) diffStore.patch("cas", Side.RIGHT, offset, new byte[] {(byte) n});
+			}));
+		}
+		for (java.util.concurrent.Future<?> patch : patches) patch.get();
+
+		//patches of one side racing updates of the other side are all kept, the recycled blocks 
+		//of the updates never overwrite the patched side and it can still be read
+		DiffStore recycling = new DiffStore(new OffHeapStorage(4096));
+		recycling.create("sides", Side.LEFT, new byte[8]);
+		recycling.create("sides", Side.RIGHT, new byte[8]);
+		java.util.concurrent.Future<?> patching = pool.submit(() -> {
+			for (int n = 0; n < 4000; n++) recycling.patch("sides", Side.LEFT, n % 8, new byte[] {(byte) (n / 8)});
+		});
+		java.util.concurrent.Future<?> updating = pool.submit(() -> {
+			for (int n = 0; n < 4000; n++) recycling.update("sides", Side.RIGHT, new byte[] {-1, -1, -1, -1, -1, -1, -1, -1});
+		});
+		patching.get(10, java.util.concurrent.TimeUnit.SECONDS);
+		updating.get(10, java.util.concurrent.TimeUnit.SECONDS);
+		Payload left = pool.submit(() -> recycling.acquire("sides", Side.LEFT)).get(10, java.util.concurrent.TimeUnit.SECONDS);
+		try {
+			byte[] expected = new byte[8];
+			java.util.Arrays.fill(expected, (byte) (3999 / 8));
+			assertTrue(java.util.Arrays.equals(expected, left.copyBytes()));
+		} finally {
+			left.release();
+		}
+		pool.shutdown();
+		byte[] patched = diffStore.get("cas", Side.RIGHT).copyBytes();
+		for (int i = 0; i < 8; i++) assertEquals((byte) 200, patched[i]);
+
+		//an update expecting an older version is refused, the block is not kept
+		long version = diffStore.get("cas", Side.RIGHT).version();
+		diffStore.patch("cas", Side.RIGHT, 0, new byte[] {1});
+		try {
+			diffStore.update("cas", Side.RIGHT, diffStore.storage().store(new byte[] {2}), version);
+			assertTrue(false);
+		} catch (DiffStore.VersionMismatchException e) {
+			assertEquals(diffStore.get("cas", Side.RIGHT).version(), e.current());
+		}
+		assertEquals(null, diffStore.update("none", Side.RIGHT, diffStore.storage().store(new byte[] {2}), version));
+
+		ObjectNode input = Json.newObject();
+		input.put("input", "QUJD");
+		Result result = route(app, requestWithJsonBody("POST", "/v1/diff/etag/left", input));
+		String etag = result.header("ETag").get();
+		route(app, requestWithJsonBody("POST", "/v1/diff/etag/right", input));
+		input.put("input", "QUJE");
+		result = route(app, requestWithJsonBody("PUT", "/v1/diff/etag/left", input).header("If-Match", "\"0\""));
+		assertEquals(412, result.status());
+		assertEquals(etag, result.header("ETag").get());
+		result = route(app, requestWithJsonBody("PUT", "/v1/diff/etag/left", input).header("If-Match", "\"0\", " + etag));
+		assertEquals(OK, result.status());
+		assertFalse(etag.equals(result.header("ETag").get()));
+		//the ETag read before the update is stale now
+		assertEquals(412, route(app, requestWithJsonBody("PUT", "/v1/diff/etag/left", input).header("If-Match", etag)).status());
+		assertEquals(OK, route(app, requestWithJsonBody("PUT", "/v1/diff/etag/left", input).header("If-Match", "*")).status());
+
+		result = route(app, fakeRequest(GET, "/v1/diff/etag"));
+		assertEquals(OK, result.status());
+		String diffTag = result.header("ETag").get();
+		assertTrue(diffTag.startsWith("W/"));
+		result = route(app, fakeRequest(GET, "/v1/diff/etag").header("If-None-Match", diffTag));
+		assertEquals(304, result.status());
+		assertEquals(diffTag, result.header("ETag").get());
+		//a change of either input changes the tag
+		route(app, requestWithJsonBody("PUT", "/v1/diff/etag/right", input));
+		assertEquals(OK, route(app, fakeRequest(GET, "/v1/diff/etag").header("If-None-Match", diffTag)).status());
+		result = route(app, fakeRequest(GET, "/v1/diff/etag/left/raw"));
+		assertEquals(304, route(app, fakeRequest(GET, "/v1/diff/etag/left/raw").header("If-None-Match", result.header("ETag").get())).status());
+	}
+
 	/**
 	 * Test create/update with non-base64 inputs
 	 */
@@ -274,7 +1647,7 @@ public class UnitTest extends WithApplication {
 		assertTrue(contentAsString(result).contains("Input is not Base64"));
 		
 		//create inputs to allow the update execution
-		jsonInput0.put("input","QUJDYWJjMTI0w");
+		jsonInput0.put("input","QUJDYWJjMTI0");
 		jsonNode = Json.toJson(jsonInput0);
 		result = route(app, requestWithJsonBody("POST","/v1/diff/test/left",jsonNode));
 		result = route(app, requestWithJsonBody("POST","/v1/diff/test/right",jsonNode));
@@ -296,7 +1669,7 @@ public class UnitTest extends WithApplication {
 	@Test
 	public void testSameBase64Inputs() {
 		jsonInput0 = Json.newObject();
-		jsonInput0.put("input","QUJDYWJjMTI0w");
+		jsonInput0.put("input","QUJDYWJjMTI0");
 		JsonNode jsonNode = Json.toJson(jsonInput0);
 
 		Result result1 = route(app, requestWithJsonBody("POST","/v1/diff/test/right",jsonNode));
@@ -365,7 +1738,7 @@ public class UnitTest extends WithApplication {
 	@Test
 	public void testMissingLeftInputs() {
 		jsonInput0 = Json.newObject();
-		jsonInput0.put("input","QUJDYWJjMTI0w");
+		jsonInput0.put("input","QUJDYWJjMTI0");
 		JsonNode jsonNode = Json.toJson(jsonInput0);
 
 		Result result1 = route(app, requestWithJsonBody("POST","/v1/diff/test/left",jsonNode));
@@ -384,7 +1757,7 @@ public class UnitTest extends WithApplication {
 	@Test
 	public void testMissingRihtInputs() {
 		jsonInput0 = Json.newObject();
-		jsonInput0.put("input","QUJDYWJjMTI0w");
+		jsonInput0.put("input","QUJDYWJjMTI0");
 		JsonNode jsonNode = Json.toJson(jsonInput0);
 
 		Result result1 = route(app, requestWithJsonBody("POST","/v1/diff/test/right",jsonNode));